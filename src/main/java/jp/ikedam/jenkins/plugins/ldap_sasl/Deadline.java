@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import org.acegisecurity.AuthenticationServiceException;
+
+/**
+ * A point of time an operation must be finished by.
+ * 
+ * Shared among all stages of an operation (connecting, binding, searching),
+ * so that the operation is bounded by a single timeout.
+ */
+final class Deadline
+{
+    private static final Deadline UNLIMITED = new Deadline(Long.MAX_VALUE);
+    
+    private final long expiresAt;
+    
+    private Deadline(long expiresAt)
+    {
+        this.expiresAt = expiresAt;
+    }
+    
+    /**
+     * @param timeoutMillis milliseconds from now. 0 or less for no deadline.
+     * @return a deadline the specified milliseconds later.
+     */
+    public static Deadline after(long timeoutMillis)
+    {
+        if(timeoutMillis <= 0)
+        {
+            return UNLIMITED;
+        }
+        return new Deadline(System.currentTimeMillis() + timeoutMillis);
+    }
+    
+    /**
+     * @return a deadline never expires.
+     */
+    public static Deadline unlimited()
+    {
+        return UNLIMITED;
+    }
+    
+    /**
+     * @return whether this deadline never expires.
+     */
+    public boolean isUnlimited()
+    {
+        return expiresAt == Long.MAX_VALUE;
+    }
+    
+    /**
+     * @return milliseconds remaining. 0 if already expired. {@link Long#MAX_VALUE} if unlimited.
+     */
+    public long remaining()
+    {
+        if(isUnlimited())
+        {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, expiresAt - System.currentTimeMillis());
+    }
+    
+    /**
+     * @return whether already expired.
+     */
+    public boolean isExpired()
+    {
+        return remaining() <= 0;
+    }
+    
+    /**
+     * Shortens a timeout not to exceed this deadline.
+     * 
+     * @param timeoutMillis a timeout in milliseconds. 0 or less means no timeout.
+     * @return the timeout in milliseconds to be used. 0 means no timeout.
+     */
+    public int bound(int timeoutMillis)
+    {
+        if(isUnlimited())
+        {
+            return timeoutMillis;
+        }
+        long remaining = Math.max(1, remaining());
+        if(timeoutMillis > 0 && timeoutMillis < remaining)
+        {
+            return timeoutMillis;
+        }
+        return (int)Math.min(Integer.MAX_VALUE, remaining);
+    }
+    
+    /**
+     * Fails if this deadline is already expired.
+     * 
+     * @param stage what is going to be done, used in the message.
+     * @throws AuthenticationServiceException already expired.
+     */
+    public void check(String stage) throws AuthenticationServiceException
+    {
+        if(isExpired())
+        {
+            throw new AuthenticationServiceException(String.format("Timed out before %s", stage));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import hudson.Util;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers credentials rejected by LDAP servers for a short time.
+ * 
+ * Clients retrying a wrong password are rejected locally,
+ * without binding to LDAP servers.
+ * Neither usernames nor passwords are stored: entries are keyed with the hash
+ * of the username and the password salted with a random value for each instance.
+ */
+class LdapBadCredentialCache
+{
+    private final long ttl;
+    private final int maxSize;
+    private final byte[] salt;
+    
+    /**
+     * Key to the time the entry expires, in the order of insertion.
+     */
+    private final LinkedHashMap<String, Long> entries;
+    
+    /**
+     * @param ttl milliseconds to remember rejected credentials.
+     * @param maxSize maximum number of credentials to remember.
+     */
+    public LdapBadCredentialCache(long ttl, final int maxSize)
+    {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        this.entries = new LinkedHashMap<String, Long>()
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+    
+    /**
+     * @return whether this cache remembers anything.
+     */
+    public boolean isEnabled()
+    {
+        return ttl > 0 && maxSize > 0;
+    }
+    
+    /**
+     * @param username
+     * @param password
+     * @return whether the credential is rejected recently.
+     */
+    public boolean isRejected(String username, String password)
+    {
+        if(!isEnabled())
+        {
+            return false;
+        }
+        String key = toKey(username, password);
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            Long expiresAt = entries.get(key);
+            if(expiresAt == null)
+            {
+                return false;
+            }
+            if(expiresAt <= now)
+            {
+                entries.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Remembers the credential rejected.
+     * 
+     * @param username
+     * @param password
+     */
+    public void reject(String username, String password)
+    {
+        if(!isEnabled())
+        {
+            return;
+        }
+        String key = toKey(username, password);
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            purgeExpired(now);
+            // re-insert to keep the order of expiration.
+            entries.remove(key);
+            entries.put(key, now + ttl);
+        }
+    }
+    
+    /**
+     * Forgets all credentials.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+    
+    /**
+     * @return the number of credentials remembered, including expired ones not purged yet.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+    
+    /**
+     * Entries are in the order of expiration, as the TTL is fixed.
+     */
+    private void purgeExpired(long now)
+    {
+        Iterator<Long> it = entries.values().iterator();
+        while(it.hasNext())
+        {
+            if(it.next() > now)
+            {
+                break;
+            }
+            it.remove();
+        }
+    }
+    
+    private String toKey(String username, String password)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            digest.update(Util.fixNull(username).getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(Util.fixNull(password).getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for(byte b: digest.digest())
+            {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            // SHA-256 is always available.
+            throw new IllegalStateException(e);
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            // UTF-8 is always available.
+            throw new IllegalStateException(e);
+        }
+    }
+}
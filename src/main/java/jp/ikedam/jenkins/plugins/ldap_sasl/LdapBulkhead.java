@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.acegisecurity.AuthenticationServiceException;
+
+/**
+ * Limits concurrent operations (binds and searches) sent to a LDAP server.
+ * 
+ * * At most maxConcurrent operations are performed at the same time.
+ * * At most maxQueue operations wait for others to finish, for queueTimeout milliseconds at most.
+ * * Operations exceeding those limits are rejected immediately.
+ */
+public class LdapBulkhead
+{
+    /**
+     * Thrown when an operation is rejected.
+     */
+    public static class RejectedException extends AuthenticationServiceException
+    {
+        private static final long serialVersionUID = 7079394549327858407L;
+        
+        public RejectedException(String msg)
+        {
+            super(msg);
+        }
+    }
+    
+    private final String name;
+    private final int maxConcurrent;
+    private final int maxQueue;
+    private final long queueTimeout;
+    private final Semaphore permits;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    
+    /**
+     * @param name the name of the resource, used in messages.
+     * @param maxConcurrent maximum number of concurrent operations. 0 or less for no limit.
+     * @param maxQueue maximum number of operations waiting.
+     * @param queueTimeout milliseconds to wait.
+     */
+    public LdapBulkhead(String name, int maxConcurrent, int maxQueue, long queueTimeout)
+    {
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeout = queueTimeout;
+        this.permits = (maxConcurrent > 0)?new Semaphore(maxConcurrent, true):null;
+    }
+    
+    /**
+     * Waits for the turn of an operation.
+     * 
+     * Must be followed by {@link #release()} when succeeded.
+     * 
+     * @throws RejectedException too many operations are waiting, or timed out.
+     */
+    public void acquire() throws RejectedException
+    {
+        acquire(Deadline.unlimited());
+    }
+    
+    /**
+     * Waits for the turn of an operation, not exceeding the deadline.
+     * 
+     * Must be followed by {@link #release()} when succeeded.
+     * 
+     * @param deadline the operation must be finished by this.
+     * @throws RejectedException too many operations are waiting, or timed out.
+     */
+    public void acquire(Deadline deadline) throws RejectedException
+    {
+        if(permits == null || permits.tryAcquire())
+        {
+            return;
+        }
+        if(queued.incrementAndGet() > maxQueue)
+        {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw new RejectedException(String.format("Too many requests to %s: %d waiting", name, maxQueue));
+        }
+        try
+        {
+            if(!permits.tryAcquire(Math.min(queueTimeout, deadline.remaining()), TimeUnit.MILLISECONDS))
+            {
+                timedOut.incrementAndGet();
+                throw new RejectedException(String.format("Timed out waiting for requests to %s", name));
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedException(String.format("Interrupted while waiting for requests to %s", name));
+        }
+        finally
+        {
+            queued.decrementAndGet();
+        }
+    }
+    
+    /**
+     * Notifies an operation finished.
+     */
+    public void release()
+    {
+        if(permits != null)
+        {
+            permits.release();
+        }
+    }
+    
+    /**
+     * @return maximum number of concurrent operations. 0 or less for no limit.
+     */
+    public int getMaxConcurrent()
+    {
+        return maxConcurrent;
+    }
+    
+    /**
+     * @return number of operations in progress. 0 if not limited.
+     */
+    public int getInFlight()
+    {
+        return (permits != null)?(maxConcurrent - permits.availablePermits()):0;
+    }
+    
+    /**
+     * @return number of operations waiting.
+     */
+    public int getQueueDepth()
+    {
+        return queued.get();
+    }
+    
+    /**
+     * @return number of operations rejected as too many operations are waiting.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+    
+    /**
+     * @return number of operations rejected as timed out to wait.
+     */
+    public long getTimedOutCount()
+    {
+        return timedOut.get();
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format(
+                "in-flight=%d/%d, queued=%d, rejected=%d, timed out=%d",
+                getInFlight(),
+                getMaxConcurrent(),
+                getQueueDepth(),
+                getRejectedCount(),
+                getTimedOutCount()
+        );
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import org.springframework.dao.DataRetrievalFailureException;
+
+/**
+ * Size bounded cache with TTL, evicting with W-TinyLFU.
+ * 
+ * New entries are placed in a small LRU window.
+ * Entries evicted from the window are admitted to the main space
+ * only when they are used more frequently than the entry to be evicted from the main space,
+ * estimated with a count-min sketch.
+ * This keeps frequently used entries against scans of entries used only once.
+ * 
+ * Entries read after a part of TTL passed can be reloaded in background (refresh-ahead),
+ * not to make readers wait for reloading when they expire.
+ * 
+ * Concurrent loads of the same key are coalesced into one,
+ * and all readers receive its result or its exception.
+ * Readers waiting for the load by another thread give up at their deadline.
+ * 
+ * @param <K> type of keys
+ * @param <V> type of values
+ */
+public class LdapCache<K, V>
+{
+    /**
+     * Percentage of the window in the whole space.
+     */
+    private static final int WINDOW_PERCENT = 1;
+    
+    private static final Logger LOGGER = Logger.getLogger(LdapCache.class.getName());
+    
+    /**
+     * Loads values not cached.
+     * 
+     * @param <K> type of keys
+     * @param <V> type of values
+     */
+    public static interface Loader<K, V>
+    {
+        /**
+         * @param key
+         * @return the value. null if not available, and not cached.
+         */
+        @CheckForNull
+        public V load(K key);
+    }
+    
+    private static class Entry<V>
+    {
+        public final V value;
+        public final long createdAt;
+        public final long expiresAt;
+        /**
+         * Guarded by the cache.
+         * Kept true when reloading failed, not to retry until expiration.
+         */
+        public boolean refreshing;
+        
+        public Entry(V value, long createdAt, long expiresAt)
+        {
+            this.value = value;
+            this.createdAt = createdAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    /**
+     * Estimates frequencies of keys with 4 bit counters, halved periodically to forget old usages.
+     */
+    private static class FrequencySketch
+    {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x97cb3127, 0x2f8b4b9d, 0x5a5b2c7d, 0x7ed55d16};
+        private final byte[] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+        
+        public FrequencySketch(int maxSize)
+        {
+            int width = Integer.highestOneBit(Math.max(16, maxSize) * 4 - 1);
+            this.counters = new byte[width * DEPTH];
+            this.mask = width - 1;
+            this.sampleSize = Math.max(16, maxSize) * 10;
+        }
+        
+        private int indexOf(int hash, int row)
+        {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+        
+        public void increment(Object key)
+        {
+            int hash = key.hashCode();
+            boolean added = false;
+            for(int row = 0; row < DEPTH; ++row)
+            {
+                int index = indexOf(hash, row);
+                if(counters[index] < 15)
+                {
+                    ++counters[index];
+                    added = true;
+                }
+            }
+            if(added && ++additions >= sampleSize)
+            {
+                for(int i = 0; i < counters.length; ++i)
+                {
+                    counters[i] = (byte)(counters[i] >> 1);
+                }
+                additions /= 2;
+            }
+        }
+        
+        public int frequency(Object key)
+        {
+            int hash = key.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for(int row = 0; row < DEPTH; ++row)
+            {
+                frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+    }
+    
+    private final String name;
+    private final int maxSize;
+    private final int windowSize;
+    private final long ttl;
+    private final long refreshAfter;
+    private final Executor refreshExecutor;
+    private final LinkedHashMap<K, Entry<V>> window;
+    private final LinkedHashMap<K, Entry<V>> main;
+    private final FrequencySketch sketch;
+    /**
+     * Loads in progress. Guarded by the cache.
+     */
+    private final Map<K, FutureTask<V>> loading = new HashMap<K, FutureTask<V>>();
+    
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+    private long expirationCount;
+    private long refreshCount;
+    private long refreshFailureCount;
+    private long coalescedCount;
+    
+    /**
+     * @param name the name of the cache, used in logs and the status page.
+     * @param maxSize maximum number of entries. 0 to disable.
+     * @param ttl milliseconds to keep entries. 0 to disable.
+     */
+    public LdapCache(String name, int maxSize, long ttl)
+    {
+        this(name, maxSize, ttl, 0, null);
+    }
+    
+    /**
+     * @param name the name of the cache, used in logs and the status page.
+     * @param maxSize maximum number of entries. 0 to disable.
+     * @param ttl milliseconds to keep entries. 0 to disable.
+     * @param refreshAheadPercent entries read after this percentage of TTL are reloaded in background.
+     *     0 to disable.
+     * @param refreshExecutor runs reloading in background. can be null if refreshAheadPercent is 0.
+     */
+    public LdapCache(String name, int maxSize, long ttl, int refreshAheadPercent, @CheckForNull Executor refreshExecutor)
+    {
+        this.name = name;
+        this.maxSize = Math.max(0, maxSize);
+        this.windowSize = Math.max(1, this.maxSize * WINDOW_PERCENT / 100);
+        this.ttl = ttl;
+        this.refreshAfter = (refreshAheadPercent > 0 && refreshAheadPercent < 100 && refreshExecutor != null)
+                ?(ttl * refreshAheadPercent / 100)
+                :0;
+        this.refreshExecutor = refreshExecutor;
+        this.window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        this.main = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        this.sketch = new FrequencySketch(this.maxSize);
+    }
+    
+    /**
+     * @return the name of the cache.
+     */
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * @return whether this cache holds anything.
+     */
+    public boolean isEnabled()
+    {
+        return maxSize > 0 && ttl > 0;
+    }
+    
+    /**
+     * @param key
+     * @return the value cached. null if not cached or expired.
+     */
+    @CheckForNull
+    public synchronized V get(K key)
+    {
+        if(!isEnabled())
+        {
+            return null;
+        }
+        Entry<V> entry = lookup(key);
+        return (entry != null)?entry.value:null;
+    }
+    
+    /**
+     * Returns the value, loading it if not cached.
+     * 
+     * @param key
+     * @param loader loads the value if not cached, and reloads in background.
+     * @return the value. null if not available.
+     */
+    @CheckForNull
+    public V get(K key, Loader<K, V> loader)
+    {
+        return get(key, loader, loader);
+    }
+    
+    /**
+     * Returns the value, loading it if not cached.
+     * 
+     * @param key
+     * @param loader loads the value if not cached.
+     * @param refresher reloads the value in background. null not to reload.
+     * @return the value. null if not available.
+     */
+    @CheckForNull
+    public V get(K key, Loader<K, V> loader, @CheckForNull Loader<K, V> refresher)
+    {
+        return get(key, loader, refresher, Deadline.unlimited());
+    }
+    
+    /**
+     * Returns the value, loading it if not cached.
+     * 
+     * @param key
+     * @param loader loads the value if not cached.
+     * @param refresher reloads the value in background. null not to reload.
+     * @param deadline gives up waiting for the load by another thread at this.
+     * @return the value. null if not available.
+     * @throws DataRetrievalFailureException timed out or interrupted while waiting for the load,
+     *     or the load failed with a checked exception.
+     */
+    @CheckForNull
+    public V get(K key, Loader<K, V> loader, @CheckForNull Loader<K, V> refresher, Deadline deadline)
+    {
+        Entry<V> entry = null;
+        boolean refresh = false;
+        synchronized(this)
+        {
+            if(isEnabled())
+            {
+                entry = lookup(key);
+            }
+            if(
+                    entry != null
+                    && refresher != null
+                    && refreshAfter > 0
+                    && !entry.refreshing
+                    && System.currentTimeMillis() - entry.createdAt >= refreshAfter
+            )
+            {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+        if(entry != null)
+        {
+            if(refresh)
+            {
+                refresh(key, entry, refresher);
+            }
+            return entry.value;
+        }
+        return load(key, loader, deadline);
+    }
+    
+    /**
+     * Loads the value, or waits for the load of the same key in progress.
+     */
+    @CheckForNull
+    private V load(final K key, final Loader<K, V> loader, Deadline deadline)
+    {
+        FutureTask<V> task;
+        boolean owner = false;
+        synchronized(this)
+        {
+            task = loading.get(key);
+            if(task != null)
+            {
+                ++coalescedCount;
+            }
+            else
+            {
+                task = new FutureTask<V>(new Callable<V>()
+                {
+                    public V call()
+                    {
+                        return loader.load(key);
+                    }
+                });
+                loading.put(key, task);
+                owner = true;
+            }
+        }
+        
+        if(owner)
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                synchronized(this)
+                {
+                    // not replaced with invalidate() while loading.
+                    if(loading.get(key) == task)
+                    {
+                        loading.remove(key);
+                        V value = getDone(task);
+                        if(value != null && isEnabled())
+                        {
+                            put(key, value);
+                        }
+                    }
+                }
+            }
+        }
+        return getValue(key, task, deadline);
+    }
+    
+    /**
+     * @return the value of the completed task. null if failed.
+     */
+    @CheckForNull
+    private V getDone(FutureTask<V> task)
+    {
+        try
+        {
+            return task.get();
+        }
+        catch(InterruptedException e)
+        {
+            // never happens as completed.
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch(ExecutionException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Waits for the task until the deadline, and throws its runtime exception as is.
+     */
+    @CheckForNull
+    private V getValue(K key, FutureTask<V> task, Deadline deadline)
+    {
+        try
+        {
+            if(deadline.isUnlimited())
+            {
+                return task.get();
+            }
+            return task.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new DataRetrievalFailureException(String.format("Timed out to wait for loading %s to %s", key, name), e);
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException(String.format("Interrupted while loading %s to %s", key, name), e);
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+            {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new DataRetrievalFailureException(String.format("Failed to load %s to %s", key, name), cause);
+        }
+    }
+    
+    /**
+     * Reloads the value in background.
+     * The current value is kept if failed.
+     * The value reloaded is discarded if the entry is invalidated or replaced while reloading.
+     */
+    private void refresh(final K key, final Entry<V> entry, final Loader<K, V> refresher)
+    {
+        try
+        {
+            refreshExecutor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    V value = null;
+                    try
+                    {
+                        value = refresher.load(key);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        LOGGER.log(Level.FINE, String.format("Failed to reload %s in %s", key, name), e);
+                    }
+                    synchronized(LdapCache.this)
+                    {
+                        if(value == null)
+                        {
+                            ++refreshFailureCount;
+                            return;
+                        }
+                        if(getEntry(key) != entry)
+                        {
+                            // not to restore the entry flushed.
+                            LOGGER.fine(String.format("Discarded %s reloaded in %s as changed while reloading", key, name));
+                            return;
+                        }
+                        ++refreshCount;
+                        put(key, value);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            synchronized(this)
+            {
+                // try again later.
+                entry.refreshing = false;
+            }
+        }
+    }
+    
+    /**
+     * Finds the entry, and updates statistics. Must be called in synchronized.
+     */
+    @CheckForNull
+    private Entry<V> lookup(K key)
+    {
+        sketch.increment(key);
+        Entry<V> entry = window.get(key);
+        if(entry == null)
+        {
+            entry = main.get(key);
+        }
+        if(entry == null)
+        {
+            ++missCount;
+            return null;
+        }
+        if(entry.expiresAt <= System.currentTimeMillis())
+        {
+            window.remove(key);
+            main.remove(key);
+            ++expirationCount;
+            ++missCount;
+            return null;
+        }
+        ++hitCount;
+        return entry;
+    }
+    
+    /**
+     * Returns the value without affecting statistics and eviction.
+     * 
+     * @param key
+     * @return the value cached. null if not cached or expired.
+     */
+    @CheckForNull
+    public synchronized V peek(K key)
+    {
+        Entry<V> entry = getEntry(key);
+        if(entry == null || entry.expiresAt <= System.currentTimeMillis())
+        {
+            return null;
+        }
+        return entry.value;
+    }
+    
+    /**
+     * Finds the entry without updating statistics. Must be called in synchronized.
+     */
+    @CheckForNull
+    private Entry<V> getEntry(K key)
+    {
+        Entry<V> entry = window.get(key);
+        return (entry != null)?entry:main.get(key);
+    }
+    
+    /**
+     * Caches the value.
+     * 
+     * @param key
+     * @param value
+     */
+    public synchronized void put(K key, V value)
+    {
+        if(!isEnabled())
+        {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Entry<V> entry = new Entry<V>(value, now, now + ttl);
+        if(main.containsKey(key))
+        {
+            main.put(key, entry);
+            return;
+        }
+        window.put(key, entry);
+        while(window.size() > windowSize)
+        {
+            Map.Entry<K, Entry<V>> candidate = removeEldest(window);
+            admit(candidate.getKey(), candidate.getValue());
+        }
+    }
+    
+    /**
+     * Moves an entry evicted from the window to the main space, if it is more valuable.
+     */
+    private void admit(K key, Entry<V> entry)
+    {
+        if(window.size() + main.size() < maxSize)
+        {
+            main.put(key, entry);
+            return;
+        }
+        if(main.isEmpty())
+        {
+            ++evictionCount;
+            return;
+        }
+        K victim = main.keySet().iterator().next();
+        if(sketch.frequency(key) > sketch.frequency(victim))
+        {
+            main.remove(victim);
+            main.put(key, entry);
+        }
+        ++evictionCount;
+    }
+    
+    private Map.Entry<K, Entry<V>> removeEldest(LinkedHashMap<K, Entry<V>> map)
+    {
+        Iterator<Map.Entry<K, Entry<V>>> it = map.entrySet().iterator();
+        Map.Entry<K, Entry<V>> eldest = it.next();
+        it.remove();
+        return eldest;
+    }
+    
+    /**
+     * Removes the entry.
+     * 
+     * @param key
+     */
+    public synchronized void invalidate(K key)
+    {
+        window.remove(key);
+        main.remove(key);
+        loading.remove(key);
+    }
+    
+    /**
+     * Removes all entries. Statistics are kept.
+     */
+    public synchronized void invalidateAll()
+    {
+        window.clear();
+        main.clear();
+        loading.clear();
+    }
+    
+    /**
+     * @return the number of entries, including expired ones not purged yet.
+     */
+    public synchronized int getSize()
+    {
+        return window.size() + main.size();
+    }
+    
+    /**
+     * @return the maximum number of entries.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    /**
+     * @return milliseconds to keep entries.
+     */
+    public long getTtl()
+    {
+        return ttl;
+    }
+    
+    /**
+     * @return the number of lookups found values.
+     */
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+    
+    /**
+     * @return the number of lookups found no values.
+     */
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+    
+    /**
+     * @return the number of entries evicted for the size limit.
+     */
+    public synchronized long getEvictionCount()
+    {
+        return evictionCount;
+    }
+    
+    /**
+     * @return the number of entries removed as expired.
+     */
+    public synchronized long getExpirationCount()
+    {
+        return expirationCount;
+    }
+    
+    /**
+     * @return the number of entries reloaded in background.
+     */
+    public synchronized long getRefreshCount()
+    {
+        return refreshCount;
+    }
+    
+    /**
+     * @return the number of entries failed to reload in background.
+     */
+    public synchronized long getRefreshFailureCount()
+    {
+        return refreshFailureCount;
+    }
+    
+    /**
+     * @return the number of lookups waited for the load of the same key by another thread.
+     */
+    public synchronized long getCoalescedCount()
+    {
+        return coalescedCount;
+    }
+    
+    /**
+     * @return the percentage of lookups found values.
+     */
+    public synchronized int getHitRate()
+    {
+        long total = hitCount + missCount;
+        return (total > 0)?(int)(hitCount * 100 / total):0;
+    }
+    
+    @Override
+    public synchronized String toString()
+    {
+        return String.format(
+                "%s: size=%d/%d, hits=%d, misses=%d, evictions=%d",
+                name,
+                getSize(),
+                maxSize,
+                hitCount,
+                missCount,
+                evictionCount
+        );
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.ldap.LdapContext;
+
+import org.acegisecurity.AuthenticationException;
+import org.acegisecurity.AuthenticationServiceException;
+
+/**
+ * Connects to several LDAP servers in parallel, and takes the first one connected.
+ * 
+ * Connections are started one by one with a small stagger,
+ * and the next one is started immediately when a connection fails.
+ * Connections established after the winner is decided are closed.
+ * 
+ * This bounds the latency to connect even when some servers hang,
+ * where sequential failover takes the connection timeout for each server.
+ * When the executor is saturated, connects in the calling thread instead.
+ */
+class LdapConnectionRacer
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapConnectionRacer.class.getName());
+    
+    /**
+     * Connects to a server. Called in other threads.
+     */
+    public static interface Connector
+    {
+        /**
+         * @param server the server to connect to.
+         * @return the context connected.
+         * @throws NamingException failed to connect.
+         */
+        public LdapContext connect(LdapServerSelector.ServerState server) throws NamingException;
+    }
+    
+    /**
+     * The connection established first.
+     */
+    public static class Winner
+    {
+        public final LdapServerSelector.ServerState server;
+        public final LdapContext ctx;
+        
+        private Winner(LdapServerSelector.ServerState server, LdapContext ctx)
+        {
+            this.server = server;
+            this.ctx = ctx;
+        }
+    }
+    
+    /**
+     * Result of an attempt posted from racers.
+     */
+    private static class Attempt
+    {
+        public final LdapServerSelector.ServerState server;
+        public final LdapContext ctx;
+        public final Exception failure;
+        
+        public Attempt(LdapServerSelector.ServerState server, LdapContext ctx, Exception failure)
+        {
+            this.server = server;
+            this.ctx = ctx;
+            this.failure = failure;
+        }
+    }
+    
+    private final ExecutorService executor;
+    private final int maxRacers;
+    private final long stagger;
+    
+    /**
+     * @param executor runs connections.
+     * @param maxRacers maximum number of servers to try.
+     * @param stagger milliseconds to wait before starting the next connection.
+     */
+    public LdapConnectionRacer(ExecutorService executor, int maxRacers, long stagger)
+    {
+        this.executor = executor;
+        this.maxRacers = Math.max(1, maxRacers);
+        this.stagger = Math.max(0, stagger);
+    }
+    
+    /**
+     * Races connections.
+     * 
+     * @param servers servers in the preferred order. Only first ones are used.
+     * @param connector connects to a server.
+     * @param deadline gives up when exceeding this.
+     * @return the connection established first.
+     * @throws NamingException all connections failed. The last failure is thrown.
+     * @throws AuthenticationException timed out, or the last failure.
+     */
+    public Winner race(
+            List<LdapServerSelector.ServerState> servers,
+            final Connector connector,
+            Deadline deadline
+    ) throws NamingException, AuthenticationServiceException
+    {
+        final int racers = Math.min(maxRacers, servers.size());
+        final LinkedBlockingQueue<Attempt> attempts = new LinkedBlockingQueue<Attempt>();
+        final Object lock = new Object();
+        final boolean[] decided = {false};
+        Future<?>[] futures = new Future<?>[racers];
+        
+        int started = 0;
+        int finished = 0;
+        Exception lastFailure = null;
+        try
+        {
+            while(true)
+            {
+                if(started < racers)
+                {
+                    final LdapServerSelector.ServerState server = servers.get(started);
+                    Runnable racer = new Runnable()
+                    {
+                        public void run()
+                        {
+                            Attempt attempt;
+                            try
+                            {
+                                attempt = new Attempt(server, connector.connect(server), null);
+                            }
+                            catch(Exception e)
+                            {
+                                attempt = new Attempt(server, null, e);
+                            }
+                            synchronized(lock)
+                            {
+                                if(decided[0])
+                                {
+                                    // lost the race.
+                                    LdapResourceTracker.closeQuietly(attempt.ctx);
+                                    return;
+                                }
+                                attempts.add(attempt);
+                            }
+                        }
+                    };
+                    ++started;
+                    LOGGER.fine(String.format("Started connecting to %s", server.getUri()));
+                    try
+                    {
+                        futures[started - 1] = executor.submit(racer);
+                    }
+                    catch(RejectedExecutionException e)
+                    {
+                        LOGGER.fine(String.format("Too many connections in progress. Connecting to %s in this thread.", server.getUri()));
+                        racer.run();
+                    }
+                }
+                
+                if(finished >= started)
+                {
+                    break;
+                }
+                
+                if(deadline.isExpired())
+                {
+                    throw new AuthenticationServiceException("Timed out to connect to LDAP servers");
+                }
+                long wait = (started < racers)?Math.min(stagger, deadline.remaining()):deadline.remaining();
+                Attempt attempt;
+                try
+                {
+                    attempt = attempts.poll(wait, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new AuthenticationServiceException("Interrupted while connecting to LDAP servers", e);
+                }
+                if(attempt == null)
+                {
+                    // no one finished in the stagger. start the next one.
+                    continue;
+                }
+                ++finished;
+                if(attempt.ctx != null)
+                {
+                    LOGGER.fine(String.format("Connected to %s first", attempt.server.getUri()));
+                    Winner winner = new Winner(attempt.server, attempt.ctx);
+                    decide(lock, decided, attempts, futures);
+                    return winner;
+                }
+                LOGGER.log(Level.FINE, String.format("Failed to connect to %s", attempt.server.getUri()), attempt.failure);
+                lastFailure = attempt.failure;
+                // start the next one immediately.
+            }
+        }
+        catch(RuntimeException e)
+        {
+            decide(lock, decided, attempts, futures);
+            throw e;
+        }
+        
+        decide(lock, decided, attempts, futures);
+        if(lastFailure instanceof NamingException)
+        {
+            throw (NamingException)lastFailure;
+        }
+        if(lastFailure instanceof AuthenticationException)
+        {
+            throw (AuthenticationException)lastFailure;
+        }
+        ServiceUnavailableException e = new ServiceUnavailableException("Failed to connect to LDAP servers");
+        e.setRootCause(lastFailure);
+        throw e;
+    }
+    
+    /**
+     * Finishes the race, and closes connections not taken.
+     */
+    private void decide(Object lock, boolean[] decided, LinkedBlockingQueue<Attempt> attempts, Future<?>[] futures)
+    {
+        synchronized(lock)
+        {
+            decided[0] = true;
+        }
+        Attempt attempt;
+        while((attempt = attempts.poll()) != null)
+        {
+            LdapResourceTracker.closeQuietly(attempt.ctx);
+        }
+        for(Future<?> future: futures)
+        {
+            if(future != null)
+            {
+                future.cancel(true);
+            }
+        }
+    }
+}
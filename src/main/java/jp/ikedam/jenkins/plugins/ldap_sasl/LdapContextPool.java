@@ -0,0 +1,503 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.naming.CommunicationException;
+import javax.naming.LimitExceededException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.NamingSecurityException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.LdapContext;
+
+import org.acegisecurity.AuthenticationException;
+import org.acegisecurity.AuthenticationServiceException;
+
+/**
+ * A bounded pool of {@link LdapContext}s already bound as the same user.
+ * 
+ * * Contexts are borrowed with {@link #borrow()} and returned with {@link Lease#close()}.
+ * * Contexts idle for longer than idleTimeout are closed in background.
+ * * Contexts older than maxLifetime are closed and replaced with new ones.
+ * * Contexts idle for longer than validationInterval are validated when borrowed.
+ */
+class LdapContextPool
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapContextPool.class.getName());
+    
+    /**
+     * Contexts failed while borrowed. Not returned to the pool.
+     */
+    private static final Map<LdapContext, Boolean> failed
+            = Collections.synchronizedMap(new WeakHashMap<LdapContext, Boolean>());
+    
+    /**
+     * Records a failure in an operation with a context.
+     * 
+     * Contexts failed with errors other than authentication ones
+     * are closed instead of returned to the pool,
+     * as the connection may be broken.
+     * Entries not found and exceeded limits are not considered failures.
+     * 
+     * @param ctx the context used in the operation. May not be pooled.
+     * @param e the failure.
+     */
+    public static void recordFailure(LdapContext ctx, NamingException e)
+    {
+        if(ctx == null
+                || e instanceof NamingSecurityException
+                || e instanceof NameNotFoundException
+                || e instanceof LimitExceededException)
+        {
+            return;
+        }
+        failed.put(ctx, Boolean.TRUE);
+    }
+    
+    /**
+     * Creates and validates contexts pooled.
+     */
+    public static interface Factory
+    {
+        /**
+         * @return a new context bound as the pooled user.
+         * @throws AuthenticationException failed to connect or bind.
+         */
+        public LdapContext create() throws AuthenticationException;
+    }
+    
+    /**
+     * A context borrowed from the pool.
+     * 
+     * Must be closed after used.
+     */
+    public class Lease
+    {
+        private final Entry entry;
+        private boolean invalid = false;
+        private boolean closed = false;
+        
+        private Lease(Entry entry)
+        {
+            this.entry = entry;
+        }
+        
+        /**
+         * @return the context bound as the pooled user.
+         */
+        public LdapContext getContext()
+        {
+            return entry.ctx;
+        }
+        
+        /**
+         * Marks the context not to be returned to the pool.
+         * 
+         * Call this when the connection seems broken.
+         */
+        public void invalidate()
+        {
+            invalid = true;
+        }
+        
+        /**
+         * Returns the context to the pool.
+         * 
+         * Safe to call more than once.
+         */
+        public void close()
+        {
+            if(closed)
+            {
+                return;
+            }
+            closed = true;
+            giveBack(entry, invalid || failed.remove(entry.ctx) != null);
+        }
+    }
+    
+    /**
+     * Evicts idle contexts periodically.
+     * 
+     * A static class not to hold the pool strongly.
+     */
+    private static final class Evictor extends LdapSaslExecutors.WeakPeriodicTask<LdapContextPool>
+    {
+        public Evictor(LdapContextPool pool)
+        {
+            super(pool);
+        }
+        
+        @Override
+        protected void run(LdapContextPool pool)
+        {
+            pool.evict();
+        }
+    }
+    
+    private static class Entry
+    {
+        public final LdapContext ctx;
+        public final long createdAt;
+        public long lastUsedAt;
+        
+        public Entry(LdapContext ctx)
+        {
+            this.ctx = ctx;
+            this.createdAt = System.currentTimeMillis();
+            this.lastUsedAt = this.createdAt;
+        }
+    }
+    
+    private final Factory factory;
+    private final int maxSize;
+    private final long borrowTimeout;
+    private final long idleTimeout;
+    private final long maxLifetime;
+    private final long validationInterval;
+    
+    /**
+     * Permits to hold contexts, including ones idle in the pool.
+     */
+    private final Semaphore permits;
+    
+    /**
+     * Idle contexts. Most recently used at the head.
+     */
+    private final LinkedList<Entry> idle = new LinkedList<Entry>();
+    
+    private volatile boolean closed = false;
+    
+    private final LdapSaslExecutors.WeakPeriodicTask<LdapContextPool> evictor;
+    
+    /**
+     * @param factory creates contexts.
+     * @param maxSize maximum number of contexts, including both borrowed and idle ones.
+     * @param borrowTimeout milliseconds to wait for a context when all contexts are borrowed.
+     * @param idleTimeout milliseconds to keep an idle context. 0 or less not to close idle contexts.
+     * @param maxLifetime milliseconds to use a context. 0 or less to use contexts forever.
+     * @param validationInterval validates contexts idle for longer than this milliseconds when borrowed.
+     */
+    public LdapContextPool(
+            Factory factory,
+            int maxSize,
+            long borrowTimeout,
+            long idleTimeout,
+            long maxLifetime,
+            long validationInterval
+    )
+    {
+        this.factory = factory;
+        this.maxSize = Math.max(1, maxSize);
+        this.borrowTimeout = borrowTimeout;
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+        this.validationInterval = validationInterval;
+        this.permits = new Semaphore(this.maxSize, true);
+        
+        if(idleTimeout > 0)
+        {
+            evictor = new Evictor(this).schedule(Math.max(1000, idleTimeout / 2));
+        }
+        else
+        {
+            evictor = null;
+        }
+    }
+    
+    /**
+     * @return the task evicting idle contexts. null if not scheduled.
+     */
+    LdapSaslExecutors.WeakPeriodicTask<LdapContextPool> getEvictor()
+    {
+        return evictor;
+    }
+    
+    /**
+     * @return maximum number of contexts.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+    
+    /**
+     * @return number of contexts idle in the pool.
+     */
+    public synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+    
+    /**
+     * @return number of contexts borrowed now.
+     */
+    public int getActiveCount()
+    {
+        return maxSize - permits.availablePermits() - getIdleCount();
+    }
+    
+    /**
+     * Borrows a context from the pool.
+     * 
+     * Creates a new context if no valid context is idle.
+     * 
+     * @return the lease of the context. Must be closed.
+     * @throws AuthenticationException failed to create a new context, or the pool is exhausted.
+     */
+    public Lease borrow() throws AuthenticationException
+    {
+        if(closed)
+        {
+            throw new AuthenticationServiceException("LDAP connection pool is already closed.");
+        }
+        try
+        {
+            if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS))
+            {
+                throw new AuthenticationServiceException(String.format(
+                        "Timed out to get a LDAP connection from the pool (max %d connections)", maxSize
+                ));
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException("Interrupted while waiting for a LDAP connection", e);
+        }
+        return lease();
+    }
+    
+    /**
+     * Borrows a context from the pool without waiting.
+     * 
+     * @return the lease of the context. Must be closed. null if the pool is exhausted.
+     * @throws AuthenticationException failed to create a new context.
+     */
+    @CheckForNull
+    public Lease tryBorrow() throws AuthenticationException
+    {
+        if(closed)
+        {
+            throw new AuthenticationServiceException("LDAP connection pool is already closed.");
+        }
+        if(!permits.tryAcquire())
+        {
+            return null;
+        }
+        return lease();
+    }
+    
+    /**
+     * Leases an idle context or a new context. A permit must be acquired.
+     */
+    private Lease lease() throws AuthenticationException
+    {
+        boolean acquired = false;
+        try
+        {
+            Entry entry;
+            while((entry = pollIdle()) != null)
+            {
+                if(isUsable(entry, System.currentTimeMillis()))
+                {
+                    acquired = true;
+                    LdapResourceTracker.markInUse(entry.ctx);
+                    return new Lease(entry);
+                }
+                destroy(entry);
+            }
+            entry = new Entry(factory.create());
+            acquired = true;
+            return new Lease(entry);
+        }
+        finally
+        {
+            if(!acquired)
+            {
+                permits.release();
+            }
+        }
+    }
+    
+    private synchronized Entry pollIdle()
+    {
+        return idle.pollFirst();
+    }
+    
+    private boolean isUsable(Entry entry, long now)
+    {
+        if(isExpired(entry, now))
+        {
+            return false;
+        }
+        if(now - entry.lastUsedAt < validationInterval)
+        {
+            return true;
+        }
+        return validate(entry.ctx);
+    }
+    
+    private boolean isExpired(Entry entry, long now)
+    {
+        if(maxLifetime > 0 && now - entry.createdAt >= maxLifetime)
+        {
+            return true;
+        }
+        if(idleTimeout > 0 && now - entry.lastUsedAt >= idleTimeout)
+        {
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Tests the connection with reading the base entry without attributes.
+     * 
+     * Any response from the server, even an error (e.g. the base entry does not exist),
+     * means the connection is alive.
+     * 
+     * @param ctx
+     * @return whether the connection is available.
+     */
+    private boolean validate(LdapContext ctx)
+    {
+        try
+        {
+            SearchControls searchControls = new SearchControls();
+            searchControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+            searchControls.setReturningAttributes(new String[]{"1.1"});
+            ctx.search("", "(objectClass=*)", searchControls).close();
+            return true;
+        }
+        catch(CommunicationException e)
+        {
+            LOGGER.log(Level.FINE, "Discarded a pooled LDAP connection failed in validation", e);
+            return false;
+        }
+        catch(ServiceUnavailableException e)
+        {
+            LOGGER.log(Level.FINE, "Discarded a pooled LDAP connection failed in validation", e);
+            return false;
+        }
+        catch(NamingException e)
+        {
+            return true;
+        }
+    }
+    
+    private void giveBack(Entry entry, boolean invalid)
+    {
+        try
+        {
+            long now = System.currentTimeMillis();
+            if(!invalid && !closed && !isExpired(entry, now))
+            {
+                entry.lastUsedAt = now;
+                LdapResourceTracker.markIdle(entry.ctx);
+                synchronized(this)
+                {
+                    idle.addFirst(entry);
+                }
+                return;
+            }
+            destroy(entry);
+        }
+        finally
+        {
+            permits.release();
+        }
+    }
+    
+    private void destroy(Entry entry)
+    {
+        failed.remove(entry.ctx);
+        LdapResourceTracker.closeQuietly(entry.ctx);
+    }
+    
+    /**
+     * Closes idle contexts expired.
+     */
+    public void evict()
+    {
+        long now = System.currentTimeMillis();
+        List<Entry> expired = new ArrayList<Entry>();
+        synchronized(this)
+        {
+            for(Entry entry: idle)
+            {
+                if(isExpired(entry, now))
+                {
+                    expired.add(entry);
+                }
+            }
+            idle.removeAll(expired);
+        }
+        for(Entry entry: expired)
+        {
+            destroy(entry);
+        }
+        if(!expired.isEmpty())
+        {
+            LOGGER.fine(String.format("Closed %d idle LDAP connections", expired.size()));
+        }
+    }
+    
+    /**
+     * Closes all idle contexts and stops pooling.
+     * 
+     * Borrowed contexts are closed when returned.
+     */
+    public void close()
+    {
+        closed = true;
+        if(evictor != null)
+        {
+            evictor.cancel();
+        }
+        List<Entry> entries;
+        synchronized(this)
+        {
+            entries = new ArrayList<Entry>(idle);
+            idle.clear();
+        }
+        for(Entry entry: entries)
+        {
+            destroy(entry);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import hudson.security.GroupDetails;
+
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingException;
+
+import org.acegisecurity.AuthenticationException;
+
+/**
+ * Group information.
+ * Added DN field, and members read when requested.
+ */
+public class LdapGroup extends GroupDetails
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapGroup.class.getName());
+    
+    private final String name;
+    private final String dn;
+    private final transient LdapGroupNameIndex index;
+    private transient volatile Set<String> memberDns;
+    
+    /**
+     * @param name the name of the group, with the prefix.
+     * @param dn the DN of the group.
+     * @param index used to read members.
+     */
+    LdapGroup(String name, String dn, LdapGroupNameIndex index)
+    {
+        this.name = name;
+        this.dn = dn;
+        this.index = index;
+    }
+    
+    /**
+     * @return the name of the group, with the prefix.
+     * @see hudson.security.GroupDetails#getName()
+     */
+    @Override
+    public String getName()
+    {
+        return name;
+    }
+    
+    /**
+     * Returns dn of this group.
+     * 
+     * @return DN
+     */
+    public String getDn()
+    {
+        return dn;
+    }
+    
+    /**
+     * Returns DNs of members of this group.
+     * 
+     * Read at the first call, not to read members of large groups
+     * only to know the group exists.
+     * 
+     * @return DNs of members. null if failed to read.
+     */
+    @CheckForNull
+    public Set<String> getMemberDns()
+    {
+        Set<String> memberDns = this.memberDns;
+        if(memberDns != null || index == null)
+        {
+            return memberDns;
+        }
+        try
+        {
+            memberDns = index.getMembers(dn);
+            this.memberDns = memberDns;
+            return memberDns;
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.WARNING, String.format("Failed to read members of %s", dn), e);
+        }
+        catch(AuthenticationException e)
+        {
+            LOGGER.log(Level.WARNING, String.format("Failed to connect to read members of %s", dn), e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+import org.acegisecurity.AuthenticationException;
+
+/**
+ * Groups and their members loaded from LDAP in bulk,
+ * to resolve groups of users without searching.
+ * 
+ * All groups under the base DN are loaded with {@link LdapGroupLoader},
+ * and indexed with DNs of their members.
+ * Groups modified after that are found by polling modifyTimestamp, and updated in place.
+ * As deleted groups and changes made while loading cannot be found by polling,
+ * all groups are reloaded periodically.
+ */
+public class LdapGroupIndex
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapGroupIndex.class.getName());
+    
+    /**
+     * Updates groups periodically.
+     * 
+     * A static class not to hold the index strongly.
+     */
+    private static final class UpdateTask extends LdapSaslExecutors.WeakPeriodicTask<LdapGroupIndex>
+    {
+        public UpdateTask(LdapGroupIndex index)
+        {
+            super(index);
+        }
+        
+        @Override
+        protected void run(LdapGroupIndex index)
+        {
+            index.update();
+        }
+    }
+    
+    private final LdapContextPool pool;
+    private final LdapGroupLoader loader;
+    private final String searchBase;
+    private final long reloadInterval;
+    private final AtomicBoolean updating = new AtomicBoolean(false);
+    
+    // guarded by this.
+    /**
+     * Groups keyed with normalized DNs. null until loaded.
+     */
+    private Map<String, LdapGroupLoader.Group> groups;
+    /**
+     * Normalized DNs of groups keyed with normalized DNs of members.
+     */
+    private Map<String, Set<String>> memberships;
+    /**
+     * The latest modifyTimestamp of groups loaded. null if not provided by the server.
+     */
+    private String lastModified;
+    private long loadedAt;
+    private long updatedAt;
+    private long loadMillis;
+    private long updateCount;
+    private long failureCount;
+    
+    /**
+     * Starts loading groups in background.
+     * 
+     * @param pool connections to search groups.
+     * @param loader loads groups with members.
+     * @param pollInterval milliseconds to poll modified groups.
+     * @param reloadInterval milliseconds to reload all groups.
+     */
+    public LdapGroupIndex(LdapContextPool pool, LdapGroupLoader loader, long pollInterval, long reloadInterval)
+    {
+        this.pool = pool;
+        this.loader = loader;
+        this.searchBase = loader.getSearchBase();
+        this.reloadInterval = reloadInterval;
+        
+        new UpdateTask(this).schedule(Math.max(1000, pollInterval));
+        update();
+    }
+    
+    /**
+     * Returns groups the member belongs to.
+     * 
+     * @param dn the DN of the member. Can be a group.
+     * @return groups with normalized DNs. null if not loaded yet.
+     */
+    @CheckForNull
+    public synchronized List<LdapNestedGroupResolver.Group> getGroups(String dn)
+    {
+        if(groups == null)
+        {
+            return null;
+        }
+        Set<String> keys = memberships.get(LdapSaslSecurityRealm.normalizeDn(dn));
+        if(keys == null)
+        {
+            return Collections.emptyList();
+        }
+        List<LdapNestedGroupResolver.Group> found = new ArrayList<LdapNestedGroupResolver.Group>(keys.size());
+        for(String key: keys)
+        {
+            found.add(new LdapNestedGroupResolver.Group(key, groups.get(key).getNames().get(0)));
+        }
+        return found;
+    }
+    
+    /**
+     * Reloads all groups in background.
+     */
+    public void reload()
+    {
+        synchronized(this)
+        {
+            loadedAt = 0;
+        }
+        update();
+    }
+    
+    /**
+     * Polls modified groups, or reloads all groups if required, in background.
+     */
+    public void update()
+    {
+        if(!updating.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            LdapSaslExecutors.getBackgroundExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        updateNow();
+                    }
+                    finally
+                    {
+                        updating.set(false);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            updating.set(false);
+        }
+    }
+    
+    /**
+     * Polls modified groups, or reloads all groups if required.
+     * 
+     * @return whether succeeded.
+     */
+    boolean updateNow()
+    {
+        long now = System.currentTimeMillis();
+        String since;
+        synchronized(this)
+        {
+            since = (groups != null && now - loadedAt < reloadInterval)?lastModified:null;
+        }
+        
+        LdapContextPool.Lease lease = null;
+        boolean succeeded = false;
+        try
+        {
+            lease = pool.borrow();
+            if(since == null)
+            {
+                load(lease.getContext());
+            }
+            else
+            {
+                poll(lease.getContext(), since);
+            }
+            succeeded = true;
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.WARNING, String.format("Failed to load groups under %s", searchBase), e);
+        }
+        catch(AuthenticationException e)
+        {
+            LOGGER.log(Level.WARNING, String.format("Failed to connect to load groups under %s", searchBase), e);
+        }
+        finally
+        {
+            if(lease != null)
+            {
+                if(!succeeded)
+                {
+                    lease.invalidate();
+                }
+                lease.close();
+            }
+            if(!succeeded)
+            {
+                synchronized(this)
+                {
+                    ++failureCount;
+                }
+            }
+        }
+        return succeeded;
+    }
+    
+    private void load(LdapContext ctx) throws NamingException
+    {
+        long started = System.currentTimeMillis();
+        Map<String, LdapGroupLoader.Group> groups = new HashMap<String, LdapGroupLoader.Group>();
+        String lastModified = loader.load(ctx, null, groups);
+        
+        Map<String, Set<String>> memberships = new HashMap<String, Set<String>>();
+        for(Map.Entry<String, LdapGroupLoader.Group> group: groups.entrySet())
+        {
+            addMemberships(memberships, group.getKey(), group.getValue());
+        }
+        
+        long now = System.currentTimeMillis();
+        synchronized(this)
+        {
+            this.groups = groups;
+            this.memberships = memberships;
+            this.lastModified = lastModified;
+            this.loadedAt = now;
+            this.updatedAt = now;
+            this.loadMillis = now - started;
+            ++updateCount;
+        }
+        LOGGER.fine(String.format("Loaded %d groups under %s in %d ms", groups.size(), searchBase, now - started));
+    }
+    
+    private void poll(LdapContext ctx, String since) throws NamingException
+    {
+        Map<String, LdapGroupLoader.Group> modified = new HashMap<String, LdapGroupLoader.Group>();
+        String lastModified = loader.load(ctx, since, modified);
+        
+        synchronized(this)
+        {
+            for(Map.Entry<String, LdapGroupLoader.Group> group: modified.entrySet())
+            {
+                LdapGroupLoader.Group old = groups.put(group.getKey(), group.getValue());
+                if(old != null)
+                {
+                    removeMemberships(memberships, group.getKey(), old);
+                }
+                addMemberships(memberships, group.getKey(), group.getValue());
+            }
+            if(lastModified != null && lastModified.compareTo(this.lastModified) > 0)
+            {
+                this.lastModified = lastModified;
+            }
+            this.updatedAt = System.currentTimeMillis();
+            ++updateCount;
+        }
+        LOGGER.fine(String.format("Updated %d groups modified since %s under %s", modified.size(), since, searchBase));
+    }
+    
+    private static void addMemberships(Map<String, Set<String>> memberships, String key, LdapGroupLoader.Group group)
+    {
+        for(String member: group.getMembers())
+        {
+            Set<String> keys = memberships.get(member);
+            if(keys == null)
+            {
+                keys = new HashSet<String>();
+                memberships.put(member, keys);
+            }
+            keys.add(key);
+        }
+    }
+    
+    private static void removeMemberships(Map<String, Set<String>> memberships, String key, LdapGroupLoader.Group group)
+    {
+        for(String member: group.getMembers())
+        {
+            Set<String> keys = memberships.get(member);
+            if(keys != null)
+            {
+                keys.remove(key);
+                if(keys.isEmpty())
+                {
+                    memberships.remove(member);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return whether groups are loaded.
+     */
+    public synchronized boolean isLoaded()
+    {
+        return groups != null;
+    }
+    
+    /**
+     * @return the number of groups loaded.
+     */
+    public synchronized int getGroupCount()
+    {
+        return (groups != null)?groups.size():0;
+    }
+    
+    /**
+     * @return the number of members belonging to any groups.
+     */
+    public synchronized int getMemberCount()
+    {
+        return (memberships != null)?memberships.size():0;
+    }
+    
+    /**
+     * @return when all groups are loaded last. null if not loaded yet.
+     */
+    @CheckForNull
+    public synchronized Date getLoadedAt()
+    {
+        return (groups != null)?new Date(loadedAt):null;
+    }
+    
+    /**
+     * @return when groups are loaded or polled last. null if not loaded yet.
+     */
+    @CheckForNull
+    public synchronized Date getUpdatedAt()
+    {
+        return (groups != null)?new Date(updatedAt):null;
+    }
+    
+    /**
+     * @return milliseconds took to load all groups last.
+     */
+    public synchronized long getLoadMillis()
+    {
+        return loadMillis;
+    }
+    
+    /**
+     * @return the number of loads and polls succeeded.
+     */
+    public synchronized long getUpdateCount()
+    {
+        return updateCount;
+    }
+    
+    /**
+     * @return the number of loads and polls failed.
+     */
+    public synchronized long getFailureCount()
+    {
+        return failureCount;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Loads groups from LDAP in bulk, for indexes of groups in memory.
+ * 
+ * Groups are searched with the group query replacing the DN of the member with a wildcard,
+ * so that indexes hold the same groups as searches for each user.
+ */
+final class LdapGroupLoader
+{
+    private static final String[] MEMBER_ATTRIBUTES = {"uniqueMember", "member"};
+    private static final String[] NAME_ATTRIBUTES = {"cn", "modifyTimestamp"};
+    private static final String[] RETURNING_ATTRIBUTES = {"cn", "uniqueMember", "member", "modifyTimestamp"};
+    
+    /**
+     * A group loaded.
+     */
+    public static final class Group
+    {
+        private final String dn;
+        private final List<String> names;
+        private final Set<String> members;
+        
+        public Group(String dn, List<String> names, Set<String> members)
+        {
+            this.dn = dn;
+            this.names = names;
+            this.members = members;
+        }
+        
+        /**
+         * @return the DN of the group.
+         */
+        public String getDn()
+        {
+            return dn;
+        }
+        
+        /**
+         * @return values of cn. never empty.
+         */
+        public List<String> getNames()
+        {
+            return names;
+        }
+        
+        /**
+         * @return normalized DNs of members. empty if members are not loaded.
+         */
+        public Set<String> getMembers()
+        {
+            return members;
+        }
+    }
+    
+    private final String searchBase;
+    private final String filter;
+    private final int pageSize;
+    private final boolean withMembers;
+    
+    /**
+     * @param searchBase the base DN of groups.
+     * @param filter the filter to find all groups.
+     * @param pageSize the number of groups to receive in a page.
+     * @param withMembers whether to load members of groups.
+     */
+    public LdapGroupLoader(String searchBase, String filter, int pageSize, boolean withMembers)
+    {
+        this.searchBase = searchBase;
+        this.filter = filter;
+        this.pageSize = Math.max(1, pageSize);
+        this.withMembers = withMembers;
+    }
+    
+    /**
+     * @return the base DN of groups.
+     */
+    public String getSearchBase()
+    {
+        return searchBase;
+    }
+    
+    /**
+     * Loads groups page by page, regardless of the size and time budget.
+     * 
+     * @param ctx
+     * @param modifiedSince loads only groups with modifyTimestamp at or after this. null to load all groups.
+     * @param found groups found are stored, keyed with normalized DNs.
+     * @return the latest modifyTimestamp of groups found. null if not provided.
+     * @throws NamingException
+     */
+    @CheckForNull
+    public String load(LdapContext ctx, @CheckForNull String modifiedSince, final Map<String, Group> found)
+            throws NamingException
+    {
+        final String[] lastModified = new String[1];
+        new LdapPagedSearch(pageSize, 0, 0).search(
+                ctx,
+                searchBase,
+                (modifiedSince != null)?String.format("(&%s(modifyTimestamp>={0}))", filter):filter,
+                (modifiedSince != null)?new Object[]{ modifiedSince }:null,
+                newSearchControls(),
+                new LdapPagedSearch.Handler()
+                {
+                    public boolean handle(SearchResult entry) throws NamingException
+                    {
+                        Group group = toGroup(entry);
+                        if(group == null)
+                        {
+                            return true;
+                        }
+                        found.put(LdapSaslSecurityRealm.normalizeDn(group.getDn()), group);
+                        Attribute modifyTimestamp = entry.getAttributes().get("modifyTimestamp");
+                        if(modifyTimestamp != null && modifyTimestamp.get() != null)
+                        {
+                            String timestamp = modifyTimestamp.get().toString();
+                            if(lastModified[0] == null || timestamp.compareTo(lastModified[0]) > 0)
+                            {
+                                lastModified[0] = timestamp;
+                            }
+                        }
+                        return true;
+                    }
+                }
+        );
+        return lastModified[0];
+    }
+    
+    /**
+     * Searches a group by name, without loading all groups.
+     * 
+     * @param ctx
+     * @param name the name of the group.
+     * @param timeLimit milliseconds to complete the search.
+     * @return the group. null if not found.
+     * @throws NamingException
+     */
+    @CheckForNull
+    public Group find(LdapContext ctx, String name, long timeLimit) throws NamingException
+    {
+        final Group[] found = new Group[1];
+        new LdapPagedSearch(0, 0, timeLimit).search(
+                ctx,
+                searchBase,
+                String.format("(&%s(cn={0}))", filter),
+                new Object[]{ name },
+                newSearchControls(),
+                new LdapPagedSearch.Handler()
+                {
+                    public boolean handle(SearchResult entry) throws NamingException
+                    {
+                        found[0] = toGroup(entry);
+                        return found[0] == null;
+                    }
+                }
+        );
+        return found[0];
+    }
+    
+    private SearchControls newSearchControls()
+    {
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(withMembers?RETURNING_ATTRIBUTES:NAME_ATTRIBUTES);
+        return controls;
+    }
+    
+    /**
+     * @return the group. null if it has no name.
+     */
+    @CheckForNull
+    private Group toGroup(SearchResult entry) throws NamingException
+    {
+        Attributes attrs = entry.getAttributes();
+        Attribute cn = attrs.get("cn");
+        List<String> names = new ArrayList<String>();
+        for(int i = 0; cn != null && i < cn.size(); ++i)
+        {
+            if(cn.get(i) != null)
+            {
+                names.add(cn.get(i).toString());
+            }
+        }
+        if(names.isEmpty())
+        {
+            return null;
+        }
+        Set<String> members = new HashSet<String>();
+        for(int i = 0; withMembers && i < MEMBER_ATTRIBUTES.length; ++i)
+        {
+            Attribute attr = attrs.get(MEMBER_ATTRIBUTES[i]);
+            for(int j = 0; attr != null && j < attr.size(); ++j)
+            {
+                members.add(LdapSaslSecurityRealm.normalizeDn(attr.get(j).toString()));
+            }
+        }
+        return new Group(
+                entry.getNameInNamespace(),
+                Collections.unmodifiableList(names),
+                Collections.unmodifiableSet(members)
+        );
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.ldap.LdapContext;
+
+import org.acegisecurity.AuthenticationException;
+
+/**
+ * Names of groups loaded from LDAP in bulk, to look up groups by name in memory.
+ * 
+ * Only names and DNs are loaded with {@link LdapGroupLoader},
+ * and members are read for each group when requested.
+ * Groups are loaded in background at the first lookup, and searched one by one until loaded.
+ * They are reloaded in background when looked up after the reload interval.
+ * Names are also sorted to complete names.
+ */
+final class LdapGroupNameIndex
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapGroupNameIndex.class.getName());
+    
+    private static final String[] MEMBER_ATTRIBUTES = {"uniqueMember", "member"};
+    
+    /**
+     * A group found.
+     */
+    public static final class Entry
+    {
+        private final String name;
+        private final String dn;
+        
+        public Entry(String name, String dn)
+        {
+            this.name = name;
+            this.dn = dn;
+        }
+        
+        /**
+         * @return the name of the group, without the prefix.
+         */
+        public String getName()
+        {
+            return name;
+        }
+        
+        /**
+         * @return the DN of the group.
+         */
+        public String getDn()
+        {
+            return dn;
+        }
+    }
+    
+    private final LdapContextPool pool;
+    private final LdapGroupLoader loader;
+    private final String searchBase;
+    private final long reloadInterval;
+    private final long searchTimeLimit;
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+    
+    /**
+     * Groups keyed with names in lower case. null until loaded.
+     * Replaced as a whole, and never modified.
+     */
+    private volatile Map<String, Entry> groups;
+    private volatile LdapPrefixIndex names = LdapPrefixIndex.EMPTY;
+    private volatile long loadedAt;
+    
+    /**
+     * @param pool connections to search groups.
+     * @param loader loads names of groups.
+     * @param reloadInterval milliseconds to reload groups.
+     * @param searchTimeLimit milliseconds to search a group until groups are loaded.
+     */
+    public LdapGroupNameIndex(LdapContextPool pool, LdapGroupLoader loader, long reloadInterval, long searchTimeLimit)
+    {
+        this.pool = pool;
+        this.loader = loader;
+        this.searchBase = loader.getSearchBase();
+        this.reloadInterval = reloadInterval;
+        this.searchTimeLimit = searchTimeLimit;
+    }
+    
+    /**
+     * Looks up a group.
+     * Starts loading groups in background and searches the group if not loaded yet,
+     * not to make the request wait for loading all groups.
+     * 
+     * @param name the name of the group without the prefix. case insensitive.
+     * @return the group. null if not found.
+     * @throws NamingException failed to search the group.
+     */
+    @CheckForNull
+    public Entry get(String name) throws NamingException
+    {
+        Map<String, Entry> groups = this.groups;
+        if(groups == null)
+        {
+            loadInBackground();
+            return search(name);
+        }
+        if(System.currentTimeMillis() - loadedAt >= reloadInterval)
+        {
+            reload();
+        }
+        return groups.get(toKey(name));
+    }
+    
+    /**
+     * Searches a group without loading all groups.
+     * 
+     * @param name the name of the group without the prefix. case insensitive.
+     * @return the group. null if not found.
+     * @throws NamingException
+     */
+    @CheckForNull
+    private Entry search(String name) throws NamingException
+    {
+        LdapGroupLoader.Group group;
+        LdapContextPool.Lease lease = pool.borrow();
+        boolean succeeded = false;
+        try
+        {
+            group = loader.find(lease.getContext(), name, searchTimeLimit);
+            succeeded = true;
+        }
+        finally
+        {
+            if(!succeeded)
+            {
+                lease.invalidate();
+            }
+            lease.close();
+        }
+        if(group == null)
+        {
+            return null;
+        }
+        for(String cn: group.getNames())
+        {
+            if(toKey(cn).equals(toKey(name)))
+            {
+                return new Entry(cn, group.getDn());
+            }
+        }
+        return new Entry(group.getNames().get(0), group.getDn());
+    }
+    
+    /**
+     * Completes names of groups.
+     * Starts loading groups in background if not loaded yet,
+     * not to make users wait for loading while typing.
+     * 
+     * @param prefix the name being input, without the prefix of groups.
+     * @param max maximum number of names to return.
+     * @return names of groups starting with the prefix. empty if not loaded yet.
+     */
+    public List<String> complete(String prefix, int max)
+    {
+        if(groups == null || System.currentTimeMillis() - loadedAt >= reloadInterval)
+        {
+            loadInBackground();
+        }
+        return names.find(prefix, max);
+    }
+    
+    /**
+     * @return whether groups are loaded.
+     */
+    public boolean isLoaded()
+    {
+        return groups != null;
+    }
+    
+    /**
+     * @return the number of groups loaded.
+     */
+    public int getGroupCount()
+    {
+        Map<String, Entry> groups = this.groups;
+        return (groups != null)?groups.size():0;
+    }
+    
+    /**
+     * Reloads groups in background.
+     * Not loaded if not loaded yet, as they are loaded at the first lookup or completion.
+     */
+    public void reload()
+    {
+        if(groups == null)
+        {
+            return;
+        }
+        loadInBackground();
+    }
+    
+    private void loadInBackground()
+    {
+        if(!reloading.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            LdapSaslExecutors.getBackgroundExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        loadNow();
+                    }
+                    catch(NamingException e)
+                    {
+                        LOGGER.log(Level.WARNING, String.format("Failed to load names of groups under %s", searchBase), e);
+                    }
+                    catch(AuthenticationException e)
+                    {
+                        LOGGER.log(Level.WARNING, String.format("Failed to connect to load names of groups under %s", searchBase), e);
+                    }
+                    finally
+                    {
+                        reloading.set(false);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            reloading.set(false);
+        }
+    }
+    
+    /**
+     * Loads all groups.
+     * 
+     * @throws NamingException
+     */
+    void loadNow() throws NamingException
+    {
+        long started = System.currentTimeMillis();
+        Map<String, LdapGroupLoader.Group> found = new HashMap<String, LdapGroupLoader.Group>();
+        LdapContextPool.Lease lease = pool.borrow();
+        boolean succeeded = false;
+        try
+        {
+            loader.load(lease.getContext(), null, found);
+            succeeded = true;
+        }
+        finally
+        {
+            if(!succeeded)
+            {
+                lease.invalidate();
+            }
+            lease.close();
+        }
+        
+        Map<String, Entry> groups = new HashMap<String, Entry>();
+        for(LdapGroupLoader.Group group: found.values())
+        {
+            for(String name: group.getNames())
+            {
+                groups.put(toKey(name), new Entry(name, group.getDn()));
+            }
+        }
+        List<String> names = new ArrayList<String>(groups.size());
+        for(Entry group: groups.values())
+        {
+            names.add(group.getName());
+        }
+        this.names = new LdapPrefixIndex(names);
+        this.groups = Collections.unmodifiableMap(groups);
+        this.loadedAt = System.currentTimeMillis();
+        LOGGER.fine(String.format("Loaded names of %d groups under %s in %d ms", groups.size(), searchBase, loadedAt - started));
+    }
+    
+    /**
+     * Reads members of a group.
+     * 
+     * @param dn the DN of the group.
+     * @return DNs of members.
+     * @throws NamingException
+     */
+    public Set<String> getMembers(String dn) throws NamingException
+    {
+        LdapContextPool.Lease lease = pool.borrow();
+        boolean succeeded = false;
+        try
+        {
+            LdapContext ctx = lease.getContext();
+            Attributes attrs = ctx.getAttributes(dn, MEMBER_ATTRIBUTES);
+            Set<String> members = new LinkedHashSet<String>();
+            for(String name: MEMBER_ATTRIBUTES)
+            {
+                Attribute attr = attrs.get(name);
+                for(int i = 0; attr != null && i < attr.size(); ++i)
+                {
+                    members.add(attr.get(i).toString());
+                }
+            }
+            succeeded = true;
+            return Collections.unmodifiableSet(members);
+        }
+        finally
+        {
+            if(!succeeded)
+            {
+                lease.invalidate();
+            }
+            lease.close();
+        }
+    }
+    
+    private static String toKey(String name)
+    {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Expands groups to groups they belong to, breadth first.
+ * 
+ * Groups already found are not expanded again, which also stops cycles.
+ * Parents of each group are memoized, so groups shared among users are searched only once,
+ * and parents of groups in the same depth are searched in parallel.
+ */
+final class LdapNestedGroupResolver
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapNestedGroupResolver.class.getName());
+    
+    /**
+     * A group. Immutable.
+     */
+    public static final class Group
+    {
+        private final String dn;
+        private final String name;
+        
+        /**
+         * @param dn the DN of the group.
+         * @param name the name of the group, that is cn.
+         */
+        public Group(String dn, String name)
+        {
+            this.dn = dn;
+            this.name = name;
+        }
+        
+        /**
+         * @return the DN of the group.
+         */
+        public String getDn()
+        {
+            return dn;
+        }
+        
+        /**
+         * @return the name of the group.
+         */
+        public String getName()
+        {
+            return name;
+        }
+    }
+    
+    /**
+     * Searches groups a group directly belongs to.
+     */
+    public static interface ParentSearcher
+    {
+        /**
+         * Called from multiple threads in parallel.
+         * 
+         * @param dn the DN of the group.
+         * @return groups the group belongs to. null if failed.
+         */
+        @CheckForNull
+        public List<Group> searchParents(String dn);
+    }
+    
+    private final int maxDepth;
+    private final int parallelism;
+    private final LdapCache<String, List<Group>> parentCache;
+    private final ExecutorService executor;
+    
+    /**
+     * @param maxDepth maximum levels of groups to expand.
+     * @param parallelism maximum number of searches in parallel.
+     * @param parentCache memoizes parents of groups, keyed with normalized DNs. null not to memoize.
+     * @param executor runs searches in parallel. null to search one by one.
+     */
+    public LdapNestedGroupResolver(
+            int maxDepth,
+            int parallelism,
+            @CheckForNull LdapCache<String, List<Group>> parentCache,
+            @CheckForNull ExecutorService executor
+    )
+    {
+        this.maxDepth = maxDepth;
+        this.parallelism = Math.max(1, parallelism);
+        this.parentCache = parentCache;
+        this.executor = executor;
+    }
+    
+    /**
+     * Expands groups.
+     * 
+     * @param groups groups directly belonging to.
+     * @param searcher searches parents of groups.
+     * @return groups including ones belonging to indirectly, without duplicates.
+     */
+    public List<Group> expand(List<Group> groups, ParentSearcher searcher)
+    {
+        Map<String, Group> found = new LinkedHashMap<String, Group>();
+        List<Group> frontier = new ArrayList<Group>();
+        for(Group group: groups)
+        {
+            if(add(found, group))
+            {
+                frontier.add(group);
+            }
+        }
+        
+        for(int depth = 0; depth < maxDepth && !frontier.isEmpty(); ++depth)
+        {
+            List<Group> next = new ArrayList<Group>();
+            for(List<Group> parents: searchParents(frontier, searcher))
+            {
+                if(parents == null)
+                {
+                    continue;
+                }
+                for(Group parent: parents)
+                {
+                    if(add(found, parent))
+                    {
+                        next.add(parent);
+                    }
+                }
+            }
+            frontier = next;
+        }
+        if(!frontier.isEmpty())
+        {
+            LOGGER.fine(String.format("Stopped expanding nested groups at depth %d", maxDepth));
+        }
+        return new ArrayList<Group>(found.values());
+    }
+    
+    private static boolean add(Map<String, Group> found, Group group)
+    {
+        String key = LdapSaslSecurityRealm.normalizeDn(group.getDn());
+        if(found.containsKey(key))
+        {
+            return false;
+        }
+        found.put(key, group);
+        return true;
+    }
+    
+    /**
+     * @return parents of each group, in the same order. null for groups failed.
+     */
+    private List<List<Group>> searchParents(final List<Group> groups, final ParentSearcher searcher)
+    {
+        final List<List<Group>> parents = new ArrayList<List<Group>>(Collections.<List<Group>>nCopies(groups.size(), null));
+        final AtomicInteger next = new AtomicInteger();
+        Runnable worker = new Runnable()
+        {
+            public void run()
+            {
+                int i;
+                while((i = next.getAndIncrement()) < groups.size())
+                {
+                    List<Group> found = getParents(groups.get(i).getDn(), searcher);
+                    synchronized(parents)
+                    {
+                        parents.set(i, found);
+                    }
+                }
+            }
+        };
+        
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        int workers = Math.min(parallelism, groups.size());
+        for(int i = 1; executor != null && i < workers; ++i)
+        {
+            try
+            {
+                futures.add(executor.submit(worker));
+            }
+            catch(RejectedExecutionException e)
+            {
+                // all threads are busy.
+                break;
+            }
+        }
+        worker.run();
+        for(Future<?> future: futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            catch(ExecutionException e)
+            {
+                LOGGER.log(Level.WARNING, "Failed to search nested groups", e.getCause());
+            }
+        }
+        synchronized(parents)
+        {
+            return new ArrayList<List<Group>>(parents);
+        }
+    }
+    
+    @CheckForNull
+    private List<Group> getParents(final String dn, final ParentSearcher searcher)
+    {
+        try
+        {
+            if(parentCache == null)
+            {
+                return searcher.searchParents(dn);
+            }
+            return parentCache.get(
+                    LdapSaslSecurityRealm.normalizeDn(dn),
+                    new LdapCache.Loader<String, List<Group>>()
+                    {
+                        public List<Group> load(String key)
+                        {
+                            List<Group> parents = searcher.searchParents(dn);
+                            return (parents != null)?Collections.unmodifiableList(parents):null;
+                        }
+                    },
+                    null
+            );
+        }
+        catch(RuntimeException e)
+        {
+            LOGGER.log(Level.WARNING, String.format("Failed to search groups of %s", dn), e);
+            return null;
+        }
+    }
+}
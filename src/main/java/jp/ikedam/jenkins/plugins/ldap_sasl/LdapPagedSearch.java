@@ -0,0 +1,233 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.TimeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+/**
+ * Searches page by page with the paged results control (RFC 2696),
+ * passing entries to a handler one by one not to hold all of them.
+ * 
+ * The control is not critical, and servers not supporting it return all entries at once.
+ * Searches fail when exceeding the size or time budget, as the client side limits.
+ * Searches stopped before the last page are abandoned with a page size 0 request,
+ * for servers to release the result set.
+ */
+final class LdapPagedSearch
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapPagedSearch.class.getName());
+    
+    /**
+     * Processes entries found.
+     */
+    public static interface Handler
+    {
+        /**
+         * @param entry an entry found.
+         * @return whether to continue. false to stop the search.
+         * @throws NamingException
+         */
+        public boolean handle(SearchResult entry) throws NamingException;
+    }
+    
+    private final int pageSize;
+    private final int sizeLimit;
+    private final long timeLimit;
+    
+    /**
+     * @param pageSize the number of entries to receive in a page. 0 or less not to page.
+     * @param sizeLimit maximum number of entries to handle. 0 or less for no limit.
+     * @param timeLimit milliseconds to complete the search. 0 or less for no limit.
+     */
+    public LdapPagedSearch(int pageSize, int sizeLimit, long timeLimit)
+    {
+        this.pageSize = pageSize;
+        this.sizeLimit = sizeLimit;
+        this.timeLimit = timeLimit;
+    }
+    
+    /**
+     * Searches entries.
+     * 
+     * Request controls of the context are restored after the search.
+     * 
+     * @param ctx
+     * @param base the base DN.
+     * @param filter the filter.
+     * @param filterArgs arguments for the filter. null if not used.
+     * @param controls controls of the search. Not modified.
+     * @param handler processes entries found.
+     * @return the number of entries handled.
+     * @throws SizeLimitExceededException found more entries than the size limit.
+     * @throws TimeLimitExceededException not completed in the time limit.
+     * @throws NamingException
+     */
+    public int search(
+            LdapContext ctx,
+            String base,
+            String filter,
+            @CheckForNull Object[] filterArgs,
+            SearchControls controls,
+            Handler handler
+    ) throws NamingException
+    {
+        Deadline deadline = Deadline.after(timeLimit);
+        boolean paged = (pageSize > 0);
+        Control[] requestControls = paged?ctx.getRequestControls():null;
+        int count = 0;
+        NamingEnumeration<SearchResult> entries = null;
+        byte[] cookie = null;
+        try
+        {
+            do
+            {
+                if(paged)
+                {
+                    ctx.setRequestControls(new Control[]{ newPagedResultsControl(cookie) });
+                }
+                entries = (filterArgs != null)
+                        ?ctx.search(base, filter, filterArgs, controls)
+                        :ctx.search(base, filter, controls);
+                while(entries.hasMore())
+                {
+                    if(sizeLimit > 0 && count >= sizeLimit)
+                    {
+                        throw new SizeLimitExceededException(String.format("Found more than %d entries: %s", sizeLimit, filter));
+                    }
+                    if(deadline.isExpired())
+                    {
+                        throw new TimeLimitExceededException(String.format("Not completed in %d ms: %s", timeLimit, filter));
+                    }
+                    ++count;
+                    if(!handler.handle(entries.next()))
+                    {
+                        return count;
+                    }
+                }
+                cookie = paged?getCookie(ctx.getResponseControls()):null;
+                LdapResourceTracker.closeQuietly(entries);
+                entries = null;
+            } while(cookie != null && cookie.length > 0);
+            return count;
+        }
+        finally
+        {
+            LdapResourceTracker.closeQuietly(entries);
+            if(paged)
+            {
+                if(cookie != null && cookie.length > 0)
+                {
+                    abandon(ctx, base, filter, filterArgs, controls, cookie);
+                }
+                ctx.setRequestControls(requestControls);
+            }
+        }
+    }
+    
+    /**
+     * Tells the server to release the paged result set, with a page size 0 request.
+     * 
+     * @param cookie the cookie of the last page received.
+     */
+    private void abandon(
+            LdapContext ctx,
+            String base,
+            String filter,
+            @CheckForNull Object[] filterArgs,
+            SearchControls controls,
+            byte[] cookie
+    )
+    {
+        NamingEnumeration<SearchResult> entries = null;
+        try
+        {
+            ctx.setRequestControls(new Control[]{ new PagedResultsControl(0, cookie, Control.NONCRITICAL) });
+            entries = (filterArgs != null)
+                    ?ctx.search(base, filter, filterArgs, controls)
+                    :ctx.search(base, filter, controls);
+            // no entries are returned. receive the end of the search.
+            while(entries.hasMore())
+            {
+                entries.next();
+            }
+        }
+        catch(IOException e)
+        {
+            LOGGER.log(Level.FINE, "Failed to encode the paged results control", e);
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.FINE, String.format("Failed to abandon the paged search: %s", filter), e);
+        }
+        finally
+        {
+            LdapResourceTracker.closeQuietly(entries);
+        }
+    }
+    
+    private Control newPagedResultsControl(@CheckForNull byte[] cookie) throws NamingException
+    {
+        try
+        {
+            return new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL);
+        }
+        catch(IOException e)
+        {
+            NamingException ne = new NamingException("Failed to encode the paged results control");
+            ne.setRootCause(e);
+            throw ne;
+        }
+    }
+    
+    @CheckForNull
+    private static byte[] getCookie(@CheckForNull Control[] responseControls)
+    {
+        if(responseControls == null)
+        {
+            return null;
+        }
+        for(Control control: responseControls)
+        {
+            if(control instanceof PagedResultsResponseControl)
+            {
+                return ((PagedResultsResponseControl)control).getCookie();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Names sorted in a array to find names starting with a prefix with a binary search.
+ * 
+ * Case insensitive. Immutable.
+ */
+final class LdapPrefixIndex
+{
+    public static final LdapPrefixIndex EMPTY = new LdapPrefixIndex(Collections.<String>emptyList());
+    
+    /**
+     * Names in lower case, sorted.
+     */
+    private final String[] keys;
+    /**
+     * Names in the same order as keys.
+     */
+    private final String[] names;
+    
+    /**
+     * @param names names to index. Only the first one is kept for names differing only in case.
+     */
+    public LdapPrefixIndex(Collection<String> names)
+    {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for(String name: names)
+        {
+            String key = toKey(name);
+            if(!sorted.containsKey(key))
+            {
+                sorted.put(key, name);
+            }
+        }
+        this.keys = sorted.keySet().toArray(new String[sorted.size()]);
+        this.names = sorted.values().toArray(new String[sorted.size()]);
+    }
+    
+    /**
+     * @param prefix
+     * @param max maximum number of names to return.
+     * @return names starting with the prefix, in the order of names.
+     */
+    public List<String> find(String prefix, int max)
+    {
+        String key = toKey(prefix);
+        int pos = Arrays.binarySearch(keys, key);
+        if(pos < 0)
+        {
+            // the insertion point, where names starting with the prefix begin.
+            pos = -pos - 1;
+        }
+        List<String> found = new ArrayList<String>();
+        for(int i = pos; i < keys.length && found.size() < max && keys[i].startsWith(key); ++i)
+        {
+            found.add(names[i]);
+        }
+        return found;
+    }
+    
+    /**
+     * @return the number of names.
+     */
+    public int size()
+    {
+        return keys.length;
+    }
+    
+    private static String toKey(String name)
+    {
+        return name.toLowerCase(Locale.ENGLISH);
+    }
+}
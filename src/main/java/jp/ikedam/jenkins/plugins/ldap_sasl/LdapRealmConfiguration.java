@@ -0,0 +1,483 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import hudson.Util;
+import hudson.util.FormValidation;
+
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.naming.Context;
+import javax.naming.directory.SearchControls;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Configuration of {@link LdapSaslSecurityRealm} compiled for authentication.
+ * 
+ * Immutable.
+ * Validation and parsing of the configuration are done only once when compiled,
+ * and not done for each authentication.
+ */
+final class LdapRealmConfiguration
+{
+    /**
+     * A template expanded by replacing a placeholder.
+     */
+    public static final class Template
+    {
+        private static final String PLACEHOLDER = "\u0000";
+        private final String[] literals;
+        
+        /**
+         * @param expanded the template expanded with {@link #PLACEHOLDER}
+         */
+        private Template(String expanded)
+        {
+            this.literals = expanded.split(PLACEHOLDER, -1);
+        }
+        
+        /**
+         * Compiles a template containing ${name} (and $name) in the format of {@link Util#replaceMacro(String, Map)}.
+         * 
+         * @param template the template.
+         * @param name the name of the variable.
+         * @return the compiled template. null if template is null.
+         */
+        @CheckForNull
+        public static Template compileMacro(String template, String name)
+        {
+            if(template == null)
+            {
+                return null;
+            }
+            Map<String, String> variables = new HashMap<String, String>();
+            variables.put(name, PLACEHOLDER);
+            return new Template(Util.replaceMacro(template, variables));
+        }
+        
+        /**
+         * Compiles a template containing {0} in the format of {@link MessageFormat}.
+         * 
+         * @param pattern the template.
+         * @return the compiled template.
+         */
+        public static Template compileMessageFormat(String pattern)
+        {
+            return new Template(MessageFormat.format(pattern, PLACEHOLDER));
+        }
+        
+        /**
+         * @param value the value to replace the placeholder.
+         * @return the expanded string.
+         */
+        public String expand(String value)
+        {
+            if(literals.length == 1)
+            {
+                return literals[0];
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(literals[0]);
+            for(int i = 1; i < literals.length; ++i)
+            {
+                sb.append(value);
+                sb.append(literals[i]);
+            }
+            return sb.toString();
+        }
+    }
+    
+    /**
+     * Mechanisms completing in a single round trip without a security layer,
+     * which can re-bind over an existing connection.
+     */
+    private static final List<String> REBINDABLE_MECHANISMS = Arrays.asList("PLAIN", "SIMPLE");
+    
+    /**
+     * Requests no attributes (RFC 4511), as only DNs of users are used
+     * unless groups are resolved from the membership attribute.
+     */
+    private static final String[] USER_ATTRIBUTES = {"1.1"};
+    
+    /**
+     * An assertion on the user name in the user query (e.g. uid=${uid}).
+     */
+    private static final Pattern USER_NAME_ASSERTION = Pattern.compile("([A-Za-z][A-Za-z0-9-]*)\\s*=\\s*\\$(\\{uid\\}|uid(?![A-Za-z0-9_]))");
+    
+    /**
+     * Characters to escape in attribute values of DNs (RFC 4514).
+     */
+    private static final String DN_SPECIAL_CHARACTERS = "\"+,;<>\\";
+    
+    /**
+     * Attributes of groups used to resolve groups.
+     */
+    private static final String[] GROUP_ATTRIBUTES = {"cn"};
+    
+    private final Map<String, Hashtable<String, Object>> environments;
+    private final List<String> ldapUris;
+    private final boolean startTls;
+    private final String mechanisms;
+    private final boolean rebindSupported;
+    private final String userSearchBase;
+    private final Template userQuery;
+    private final String userNameAttribute;
+    private final SearchControls userSearchControls;
+    private final Template userDn;
+    private final SearchControls userReadControls;
+    private final String groupMembershipAttribute;
+    private final String groupSearchBase;
+    private final Template groupQuery;
+    private final SearchControls groupSearchControls;
+    private final String groupPrefix;
+    
+    /**
+     * Compiles the configuration of a realm.
+     * 
+     * @param realm the realm.
+     * @param groupSearchQuery the template of queries to search groups, containing {0} for the user DN.
+     */
+    public LdapRealmConfiguration(LdapSaslSecurityRealm realm, String groupSearchQuery)
+    {
+        Map<String, Hashtable<String, Object>> environments = new LinkedHashMap<String, Hashtable<String, Object>>();
+        if(realm.getLdapUriList() != null)
+        {
+            for(String uri: realm.getLdapUriList())
+            {
+                if(uri == null || environments.containsKey(uri))
+                {
+                    continue;
+                }
+                if(LdapSaslSecurityRealm.DescriptorImpl.checkLdapUri(uri).kind == FormValidation.Kind.ERROR)
+                {
+                    continue;
+                }
+                Hashtable<String, Object> env = new Hashtable<String, Object>();
+                env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+                env.put(Context.PROVIDER_URL, uri);
+                env.put("com.sun.jndi.ldap.connect.timeout", Integer.toString(realm.getConnectionTimeout()));
+                env.put("com.sun.jndi.ldap.read.timeout", Integer.toString(realm.getReadTimeout()));
+                if(isLdaps(uri))
+                {
+                    env.put("java.naming.ldap.factory.socket", LdapSslSocketFactory.class.getName());
+                }
+                environments.put(uri, env);
+            }
+        }
+        this.environments = Collections.unmodifiableMap(environments);
+        this.ldapUris = Collections.unmodifiableList(new ArrayList<String>(environments.keySet()));
+        this.startTls = realm.isUseStartTls();
+        
+        this.mechanisms = (realm.getMechanismList() != null)?StringUtils.join(realm.getMechanismList(), " "):"";
+        boolean rebindSupported = (realm.getMechanismList() != null && !realm.getMechanismList().isEmpty());
+        if(realm.getMechanismList() != null)
+        {
+            for(String mechanism: realm.getMechanismList())
+            {
+                if(!REBINDABLE_MECHANISMS.contains(mechanism.toUpperCase()))
+                {
+                    rebindSupported = false;
+                }
+            }
+        }
+        this.rebindSupported = rebindSupported;
+        
+        this.userSearchBase = Util.fixNull(realm.getUserSearchBase());
+        this.userQuery = StringUtils.isBlank(realm.getUserQueryTemplate())
+                ?null
+                :Template.compileMacro(realm.getUserQueryTemplate(), "uid");
+        Matcher userNameAssertion = (userQuery != null)?USER_NAME_ASSERTION.matcher(realm.getUserQueryTemplate()):null;
+        this.userNameAttribute = (userNameAssertion != null && userNameAssertion.find())?userNameAssertion.group(1):null;
+        this.userSearchControls = new SearchControls();
+        this.userSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        this.groupMembershipAttribute = StringUtils.isBlank(LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE)
+                ?null
+                :StringUtils.trim(LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE);
+        this.userSearchControls.setReturningAttributes(
+                (groupMembershipAttribute != null)?new String[]{groupMembershipAttribute}:USER_ATTRIBUTES
+        );
+        // enough to know there are more than one.
+        this.userSearchControls.setCountLimit(2);
+        this.userDn = StringUtils.isBlank(realm.getUserDnTemplate())
+                ?null
+                :Template.compileMacro(realm.getUserDnTemplate(), "uid");
+        this.userReadControls = new SearchControls();
+        this.userReadControls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        this.userReadControls.setReturningAttributes(userSearchControls.getReturningAttributes());
+        
+        this.groupSearchBase = Util.fixNull(realm.getGroupSearchBase());
+        this.groupQuery = Template.compileMessageFormat(groupSearchQuery);
+        this.groupSearchControls = new SearchControls();
+        this.groupSearchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        this.groupSearchControls.setReturningAttributes(GROUP_ATTRIBUTES);
+        this.groupPrefix = realm.getGroupPrefix();
+    }
+    
+    /**
+     * @return valid LDAP URIs in the configured order.
+     */
+    public List<String> getLdapUris()
+    {
+        return ldapUris;
+    }
+    
+    /**
+     * Returns parameters for JNDI to connect to a LDAP server.
+     * 
+     * Credentials are not included.
+     * 
+     * @param ldapUri one of {@link #getLdapUris()}
+     * @return a new copy of parameters for JNDI, which the caller can modify.
+     */
+    @SuppressWarnings("unchecked")
+    public Hashtable<String, Object> newEnvironment(String ldapUri)
+    {
+        Hashtable<String, Object> env = environments.get(ldapUri);
+        if(env == null)
+        {
+            throw new IllegalArgumentException(String.format("Not a valid LDAP URI: %s", ldapUri));
+        }
+        return (Hashtable<String, Object>)env.clone();
+    }
+    
+    /**
+     * @param ldapUri
+     * @return whether the URI is for LDAPS.
+     */
+    private static boolean isLdaps(String ldapUri)
+    {
+        return StringUtils.trim(ldapUri).toLowerCase().startsWith("ldaps:");
+    }
+    
+    /**
+     * @param ldapUri one of {@link #getLdapUris()}
+     * @return whether to start TLS before binding.
+     */
+    public boolean isStartTlsRequired(String ldapUri)
+    {
+        return startTls && !isLdaps(ldapUri);
+    }
+    
+    /**
+     * @param ldapUri one of {@link #getLdapUris()}
+     * @return whether connections to the server are secured with TLS.
+     */
+    public boolean isTlsRequired(String ldapUri)
+    {
+        return startTls || isLdaps(ldapUri);
+    }
+    
+    /**
+     * @return whitespace separated SASL mechanisms.
+     */
+    public String getMechanisms()
+    {
+        return mechanisms;
+    }
+    
+    /**
+     * @return whether all mechanisms can re-bind over an existing connection.
+     */
+    public boolean isRebindSupported()
+    {
+        return rebindSupported;
+    }
+    
+    /**
+     * @return the base DN to search users. never null.
+     */
+    public String getUserSearchBase()
+    {
+        return userSearchBase;
+    }
+    
+    /**
+     * @return whether resolving user DNs is configured.
+     */
+    public boolean isUserQueryEnabled()
+    {
+        return userQuery != null;
+    }
+    
+    /**
+     * @param username
+     * @return the query to search the user. null if not configured.
+     */
+    @CheckForNull
+    public String getUserQuery(String username)
+    {
+        return (userQuery != null)?userQuery.expand(username):null;
+    }
+    
+    /**
+     * @return the attribute of user names asserted in the user query. null if not found.
+     */
+    @CheckForNull
+    public String getUserNameAttribute()
+    {
+        return userNameAttribute;
+    }
+    
+    /**
+     * @return the query to search all users, replacing the user name with a wildcard. null if not configured.
+     */
+    @CheckForNull
+    public String getAllUsersQuery()
+    {
+        return (userNameAttribute != null)?userQuery.expand("*"):null;
+    }
+    
+    /**
+     * Shared among threads. Never modify.
+     * 
+     * @return controls to search users.
+     */
+    public SearchControls getUserSearchControls()
+    {
+        return userSearchControls;
+    }
+    
+    /**
+     * @return whether user DNs are built from the template.
+     */
+    public boolean isUserDnTemplateEnabled()
+    {
+        return userDn != null;
+    }
+    
+    /**
+     * @param username
+     * @return the DN of the user built from the template. null if not configured.
+     */
+    @CheckForNull
+    public String getUserDn(String username)
+    {
+        return (userDn != null)?userDn.expand(escapeDnValue(username)):null;
+    }
+    
+    /**
+     * Shared among threads. Never modify.
+     * 
+     * @return controls to read the entry of a user built from the template.
+     */
+    public SearchControls getUserReadControls()
+    {
+        return userReadControls;
+    }
+    
+    /**
+     * Escapes a string to be an attribute value in a DN (RFC 4514).
+     * 
+     * @param value
+     * @return the escaped value.
+     */
+    public static String escapeDnValue(String value)
+    {
+        StringBuilder sb = new StringBuilder(value.length() + 8);
+        for(int i = 0; i < value.length(); ++i)
+        {
+            char c = value.charAt(i);
+            if(c == '\u0000')
+            {
+                sb.append("\\00");
+                continue;
+            }
+            if(
+                    DN_SPECIAL_CHARACTERS.indexOf(c) >= 0
+                    || (i == 0 && (c == ' ' || c == '#'))
+                    || (i == value.length() - 1 && c == ' ')
+            )
+            {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * @return the attribute of user entries listing DNs of groups. null to search groups.
+     */
+    @CheckForNull
+    public String getGroupMembershipAttribute()
+    {
+        return groupMembershipAttribute;
+    }
+    
+    /**
+     * @return the base DN to search groups. never null.
+     */
+    public String getGroupSearchBase()
+    {
+        return groupSearchBase;
+    }
+    
+    /**
+     * @param dn the DN of the user.
+     * @return the query to search groups of the user.
+     */
+    public String getGroupQuery(String dn)
+    {
+        return groupQuery.expand(dn);
+    }
+    
+    /**
+     * @return the query to search all groups, replacing the DN of the user with a wildcard.
+     */
+    public String getAllGroupsQuery()
+    {
+        return groupQuery.expand("*");
+    }
+    
+    /**
+     * Shared among threads. Never modify.
+     * 
+     * @return controls to search groups.
+     */
+    public SearchControls getGroupSearchControls()
+    {
+        return groupSearchControls;
+    }
+    
+    /**
+     * @return the prefix added to group names. can be null.
+     */
+    @CheckForNull
+    public String getGroupPrefix()
+    {
+        return groupPrefix;
+    }
+}
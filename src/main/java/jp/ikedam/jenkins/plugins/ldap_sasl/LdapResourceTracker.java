@@ -0,0 +1,378 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.ldap.LdapContext;
+
+/**
+ * Tracks {@link LdapContext}s and {@link NamingEnumeration}s opened by this plugin.
+ * 
+ * Resources are wrapped with {@link #manage(LdapContext, String)}
+ * and untracked when closed (or when enumerations are exhausted).
+ * Enumerations returned from managed contexts are also managed.
+ * 
+ * Resources left open longer than {@link #LEAK_DETECTION_THRESHOLD}
+ * are reported with the stack trace where they are opened.
+ * Resources idle in pools should be marked with {@link #markIdle(Object)}
+ * not to be reported.
+ */
+class LdapResourceTracker
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapResourceTracker.class.getName());
+    
+    /**
+     * Milliseconds after that resources left open are reported as leaked.
+     * 0 or less disables leak detection (and recording stack traces).
+     */
+    public static long LEAK_DETECTION_THRESHOLD = Long.getLong(LdapResourceTracker.class.getName() + ".leakDetectionThreshold", 300000L);
+    
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final ConcurrentHashMap<Long, Handle> handles = new ConcurrentHashMap<Long, Handle>();
+    private static boolean detectorScheduled = false;
+    
+    /**
+     * Record of a resource opened.
+     */
+    private static class Handle
+    {
+        public final long id = sequence.incrementAndGet();
+        public final String description;
+        public final Throwable allocatedAt;
+        public volatile long since = System.currentTimeMillis();
+        public volatile boolean idle = false;
+        public volatile boolean reported = false;
+        
+        public Handle(String description)
+        {
+            this.description = description;
+            this.allocatedAt = (LEAK_DETECTION_THRESHOLD > 0)
+                    ?new Throwable(String.format("%s is opened here", description))
+                    :null;
+        }
+    }
+    
+    /**
+     * Proxies resources and untracks them when closed.
+     */
+    private static class TrackingHandler implements InvocationHandler
+    {
+        private final Object target;
+        private final Handle handle;
+        
+        public TrackingHandler(Object target, Handle handle)
+        {
+            this.target = target;
+            this.handle = handle;
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            String name = method.getName();
+            if("close".equals(name) && (args == null || args.length == 0))
+            {
+                untrack(handle);
+            }
+            
+            Object ret;
+            try
+            {
+                ret = method.invoke(target, args);
+            }
+            catch(InvocationTargetException e)
+            {
+                throw e.getCause();
+            }
+            
+            if(("hasMore".equals(name) || "hasMoreElements".equals(name)) && Boolean.FALSE.equals(ret))
+            {
+                // exhausted enumerations are closed by JNDI.
+                untrack(handle);
+            }
+            else if(ret instanceof NamingEnumeration<?> && NamingEnumeration.class.equals(method.getReturnType()))
+            {
+                ret = manage((NamingEnumeration<?>)ret, String.format("Result of %s", name));
+            }
+            else if(ret instanceof LdapContext && LdapContext.class.equals(method.getReturnType()))
+            {
+                ret = manage((LdapContext)ret, handle.description);
+            }
+            return ret;
+        }
+    }
+    
+    private static Handle track(String description)
+    {
+        Handle handle = new Handle(description);
+        handles.put(handle.id, handle);
+        scheduleDetector();
+        return handle;
+    }
+    
+    private static void untrack(Handle handle)
+    {
+        handles.remove(handle.id);
+    }
+    
+    private static synchronized void scheduleDetector()
+    {
+        if(detectorScheduled || LEAK_DETECTION_THRESHOLD <= 0)
+        {
+            return;
+        }
+        detectorScheduled = true;
+        long period = Math.max(1000L, LEAK_DETECTION_THRESHOLD / 2);
+        LdapSaslExecutors.getScheduler().scheduleWithFixedDelay(
+                new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            detectLeaks();
+                        }
+                        catch(RuntimeException e)
+                        {
+                            LOGGER.log(Level.WARNING, "Failed to detect leaked LDAP resources", e);
+                        }
+                    }
+                },
+                period,
+                period,
+                TimeUnit.MILLISECONDS
+        );
+    }
+    
+    /**
+     * Starts tracking a context.
+     * 
+     * @param ctx the context to track.
+     * @param description what the context is, used in logs.
+     * @return the context tracked. Use this instead of the original one.
+     */
+    public static LdapContext manage(LdapContext ctx, String description)
+    {
+        if(ctx == null || Proxy.isProxyClass(ctx.getClass()))
+        {
+            return ctx;
+        }
+        return (LdapContext)Proxy.newProxyInstance(
+                LdapResourceTracker.class.getClassLoader(),
+                new Class<?>[]{LdapContext.class},
+                new TrackingHandler(ctx, track(description))
+        );
+    }
+    
+    /**
+     * Starts tracking an enumeration.
+     * 
+     * @param entries the enumeration to track.
+     * @param description what the enumeration is, used in logs.
+     * @return the enumeration tracked. Use this instead of the original one.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> NamingEnumeration<T> manage(NamingEnumeration<T> entries, String description)
+    {
+        if(entries == null || Proxy.isProxyClass(entries.getClass()))
+        {
+            return entries;
+        }
+        return (NamingEnumeration<T>)Proxy.newProxyInstance(
+                LdapResourceTracker.class.getClassLoader(),
+                new Class<?>[]{NamingEnumeration.class},
+                new TrackingHandler(entries, track(description))
+        );
+    }
+    
+    private static Handle getHandle(Object resource)
+    {
+        if(resource == null || !Proxy.isProxyClass(resource.getClass()))
+        {
+            return null;
+        }
+        InvocationHandler h = Proxy.getInvocationHandler(resource);
+        return (h instanceof TrackingHandler)?((TrackingHandler)h).handle:null;
+    }
+    
+    /**
+     * Marks a resource kept open on purpose (e.g. idle in a pool).
+     * 
+     * @param resource a resource returned from manage
+     */
+    public static void markIdle(Object resource)
+    {
+        Handle handle = getHandle(resource);
+        if(handle != null)
+        {
+            handle.idle = true;
+        }
+    }
+    
+    /**
+     * Marks a resource in use, and restarts its leak detection.
+     * 
+     * @param resource a resource returned from manage
+     */
+    public static void markInUse(Object resource)
+    {
+        Handle handle = getHandle(resource);
+        if(handle != null)
+        {
+            handle.since = System.currentTimeMillis();
+            handle.reported = false;
+            handle.idle = false;
+        }
+    }
+    
+    /**
+     * @return number of contexts and enumerations open now.
+     */
+    public static int getOpenCount()
+    {
+        return handles.size();
+    }
+    
+    /**
+     * @return the mark to count resources opened after now.
+     * @see #getOpenCountSince(long)
+     */
+    public static long mark()
+    {
+        return sequence.get();
+    }
+    
+    /**
+     * Counts resources opened after the mark,
+     * not to count ones opened by other components in the same process.
+     * 
+     * @param mark returned from {@link #mark()}
+     * @return number of contexts and enumerations opened after the mark and open now.
+     */
+    public static int getOpenCountSince(long mark)
+    {
+        int count = 0;
+        for(Handle handle: handles.values())
+        {
+            if(handle.id > mark)
+            {
+                ++count;
+            }
+        }
+        return count;
+    }
+    
+    /**
+     * Reports resources left open longer than {@link #LEAK_DETECTION_THRESHOLD}.
+     * 
+     * Each resource is reported only once.
+     * 
+     * @return number of resources newly reported.
+     */
+    public static int detectLeaks()
+    {
+        if(LEAK_DETECTION_THRESHOLD <= 0)
+        {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        List<Handle> leaked = new ArrayList<Handle>();
+        for(Handle handle: handles.values())
+        {
+            if(!handle.idle && !handle.reported && now - handle.since >= LEAK_DETECTION_THRESHOLD)
+            {
+                handle.reported = true;
+                leaked.add(handle);
+            }
+        }
+        for(Handle handle: leaked)
+        {
+            LOGGER.log(
+                    Level.WARNING,
+                    String.format(
+                            "%s is left open for %d ms (%d LDAP resources open now)",
+                            handle.description,
+                            now - handle.since,
+                            getOpenCount()
+                    ),
+                    handle.allocatedAt
+            );
+        }
+        return leaked.size();
+    }
+    
+    /**
+     * Closes a context ignoring failures.
+     * 
+     * @param ctx the context to close. can be {@code null}.
+     */
+    public static void closeQuietly(LdapContext ctx)
+    {
+        if(ctx == null)
+        {
+            return;
+        }
+        try
+        {
+            ctx.close();
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.FINE, "Failed to close a LDAP context", e);
+        }
+    }
+    
+    /**
+     * Closes an enumeration ignoring failures.
+     * 
+     * @param entries the enumeration to close. can be {@code null}.
+     */
+    public static void closeQuietly(NamingEnumeration<?> entries)
+    {
+        if(entries == null)
+        {
+            return;
+        }
+        try
+        {
+            entries.close();
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.FINE, "Failed to close a LDAP search result", e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Threads shared by all {@link LdapSaslSecurityRealm} instances.
+ * 
+ * A security realm is replaced each time the system configuration is saved,
+ * and Jenkins doesn't notify the old one.
+ * So background tasks must not hold the realm (or its resources) strongly,
+ * and threads are shared among realms rather than created for each realm.
+ */
+class LdapSaslExecutors
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapSaslExecutors.class.getName());
+    
+    /**
+     * Maximum number of threads for background LDAP operations.
+     */
+    public static int BACKGROUND_THREADS = Integer.getInteger(LdapSaslExecutors.class.getName() + ".backgroundThreads", 4);
+    
+    /**
+     * Maximum number of threads performing authentications.
+     */
+    public static int AUTHENTICATION_THREADS = Integer.getInteger(LdapSaslExecutors.class.getName() + ".authenticationThreads", 16);
+    
+    /**
+     * Maximum number of authentications waiting for threads.
+     * Authentications are rejected when exceeding this.
+     */
+    public static int AUTHENTICATION_QUEUE_SIZE = Integer.getInteger(LdapSaslExecutors.class.getName() + ".authenticationQueueSize", 256);
+    
+    /**
+     * Maximum number of threads connecting to LDAP servers in parallel.
+     */
+    public static int CONNECT_THREADS = Integer.getInteger(LdapSaslExecutors.class.getName() + ".connectThreads", 64);
+    
+    /**
+     * Maximum number of threads searching LDAP servers in parallel.
+     */
+    public static int SEARCH_THREADS = Integer.getInteger(LdapSaslExecutors.class.getName() + ".searchThreads", 32);
+    
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService background;
+    private static ExecutorService authentication;
+    private static ExecutorService connect;
+    private static ExecutorService search;
+    
+    /**
+     * Creates a factory for daemon threads named with the specified prefix.
+     * 
+     * @param name prefix of thread names.
+     * @return the thread factory.
+     */
+    public static ThreadFactory newThreadFactory(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, String.format("%s [#%d]", name, count.incrementAndGet()));
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+    
+    /**
+     * @return the scheduler for housekeeping tasks.
+     */
+    public static synchronized ScheduledExecutorService getScheduler()
+    {
+        if(scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(newThreadFactory("LDAP-SASL housekeeper"));
+        }
+        return scheduler;
+    }
+    
+    /**
+     * Returns the executor for background LDAP operations.
+     * 
+     * Use this for tasks that may block for a while (e.g. connecting to LDAP servers),
+     * not to delay housekeeping tasks in {@link #getScheduler()}.
+     * 
+     * @return the executor for background LDAP operations.
+     */
+    public static synchronized ExecutorService getBackgroundExecutor()
+    {
+        if(background == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    BACKGROUND_THREADS,
+                    BACKGROUND_THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    newThreadFactory("LDAP-SASL background")
+            );
+            executor.allowCoreThreadTimeOut(true);
+            background = executor;
+        }
+        return background;
+    }
+    
+    /**
+     * Returns the executor for authentications.
+     * 
+     * Bounded both in threads and in the queue,
+     * and throws {@link java.util.concurrent.RejectedExecutionException} when full.
+     * 
+     * @return the executor for authentications.
+     */
+    public static synchronized ExecutorService getAuthenticationExecutor()
+    {
+        if(authentication == null)
+        {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    AUTHENTICATION_THREADS,
+                    AUTHENTICATION_THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(1, AUTHENTICATION_QUEUE_SIZE)),
+                    newThreadFactory("LDAP-SASL authentication")
+            );
+            executor.allowCoreThreadTimeOut(true);
+            authentication = executor;
+        }
+        return authentication;
+    }
+    
+    /**
+     * Returns the executor to connect to LDAP servers in parallel.
+     * 
+     * Doesn't queue tasks,
+     * and throws {@link java.util.concurrent.RejectedExecutionException} when all threads are busy.
+     * 
+     * @return the executor to connect to LDAP servers.
+     */
+    public static synchronized ExecutorService getConnectExecutor()
+    {
+        if(connect == null)
+        {
+            connect = new ThreadPoolExecutor(
+                    0,
+                    Math.max(1, CONNECT_THREADS),
+                    60L,
+                    TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    newThreadFactory("LDAP-SASL connect")
+            );
+        }
+        return connect;
+    }
+    
+    /**
+     * Returns the executor to search LDAP servers in parallel.
+     * 
+     * Doesn't queue tasks,
+     * and throws {@link java.util.concurrent.RejectedExecutionException} when all threads are busy.
+     * Callers should search by themselves in that case.
+     * 
+     * @return the executor to search LDAP servers.
+     */
+    public static synchronized ExecutorService getSearchExecutor()
+    {
+        if(search == null)
+        {
+            search = new ThreadPoolExecutor(
+                    0,
+                    Math.max(1, SEARCH_THREADS),
+                    60L,
+                    TimeUnit.SECONDS,
+                    new SynchronousQueue<Runnable>(),
+                    newThreadFactory("LDAP-SASL search")
+            );
+        }
+        return search;
+    }
+    
+    /**
+     * A periodic task holding its target weakly.
+     * 
+     * The task cancels itself once the target is garbage collected.
+     * Subclasses must be static classes, not anonymous or inner classes,
+     * as those hold the enclosing instance strongly.
+     * 
+     * @param <T> type of the target.
+     */
+    public static abstract class WeakPeriodicTask<T> implements Runnable
+    {
+        private final WeakReference<T> target;
+        private volatile ScheduledFuture<?> future;
+        
+        /**
+         * @param target the object this task works for.
+         */
+        protected WeakPeriodicTask(T target)
+        {
+            this.target = new WeakReference<T>(target);
+        }
+        
+        /**
+         * Schedules this task with the shared scheduler.
+         * 
+         * @param periodMillis interval of executions in milliseconds.
+         * @return this task
+         */
+        public WeakPeriodicTask<T> schedule(long periodMillis)
+        {
+            future = getScheduler().scheduleWithFixedDelay(this, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+            return this;
+        }
+        
+        /**
+         * Stops further executions.
+         */
+        public void cancel()
+        {
+            ScheduledFuture<?> f = future;
+            if(f != null)
+            {
+                f.cancel(false);
+            }
+        }
+        
+        /**
+         * @return whether this task is cancelled.
+         */
+        public boolean isCancelled()
+        {
+            ScheduledFuture<?> f = future;
+            return f != null && f.isCancelled();
+        }
+        
+        public final void run()
+        {
+            T t = target.get();
+            if(t == null)
+            {
+                cancel();
+                return;
+            }
+            try
+            {
+                run(t);
+            }
+            catch(RuntimeException e)
+            {
+                // never let an exception stop the periodic execution.
+                LOGGER.log(Level.WARNING, "Unexpected exception in a background task", e);
+            }
+        }
+        
+        /**
+         * Do the work.
+         * 
+         * @param target the object this task works for.
+         */
+        protected abstract void run(T target);
+    }
+}
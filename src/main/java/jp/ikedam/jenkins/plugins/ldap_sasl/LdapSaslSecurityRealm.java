@@ -24,35 +24,53 @@
 package jp.ikedam.jenkins.plugins.ldap_sasl;
 
 import hudson.Extension;
-import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.Descriptor;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
 import hudson.security.AbstractPasswordBasedSecurityRealm;
 import hudson.security.GroupDetails;
 import hudson.security.SecurityRealm;
 import hudson.util.FormValidation;
+import jenkins.model.Jenkins;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.MessageFormat;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletResponse;
+import javax.naming.CommunicationException;
 import javax.naming.Context;
 import javax.naming.InvalidNameException;
-import javax.naming.NamingEnumeration;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
+import javax.naming.NamingSecurityException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapContext;
 import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.naming.ldap.StartTlsRequest;
+import javax.naming.ldap.StartTlsResponse;
 
 import org.acegisecurity.AuthenticationException;
 import org.acegisecurity.AuthenticationServiceException;
@@ -68,7 +86,10 @@ import java.util.logging.Logger;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
 
 /**
  * Security Realm that supports LDAP SASL authentication.
@@ -139,6 +160,30 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
             return candidate;
         }
         
+        /**
+         * Returns auto complete information for names of users and groups,
+         * e.g. to input names in the authorization matrix.
+         * 
+         * Only for administrators, not to expose names in the LDAP directory.
+         * 
+         * @param value the value that the user is inputting.
+         * @return the list of candidates.
+         */
+        public AutoCompletionCandidates doAutoCompleteName(@QueryParameter String value)
+        {
+            AutoCompletionCandidates candidates = new AutoCompletionCandidates();
+            Jenkins jenkins = Jenkins.getInstance();
+            if(!jenkins.hasPermission(Jenkins.ADMINISTER) || !(jenkins.getSecurityRealm() instanceof LdapSaslSecurityRealm))
+            {
+                return candidates;
+            }
+            for(String name: ((LdapSaslSecurityRealm)jenkins.getSecurityRealm()).getNameCandidates(value))
+            {
+                candidates.add(name);
+            }
+            return candidates;
+        }
+        
         /**
          * Validate LDAP URI.
          * 
@@ -154,6 +199,20 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
          * @return
          */
         public FormValidation doCheckLdapUriList(@QueryParameter String ldapUriList)
+        {
+            return checkLdapUri(ldapUriList);
+        }
+        
+        /**
+         * Validate LDAP URI.
+         * 
+         * Static version of {@link #doCheckLdapUriList(String)},
+         * used not to require the descriptor (and Jenkins).
+         * 
+         * @param ldapUriList
+         * @return
+         */
+        public static FormValidation checkLdapUri(String ldapUriList)
         {
             if(StringUtils.isBlank(ldapUriList))
             {
@@ -223,11 +282,6 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
                 }
             }
             
-            if("ldaps".equals(uri.getScheme().toLowerCase()))
-            {
-                return FormValidation.warning(Messages.LdapSaslSecurityRealm_LdapUriList_ldaps());
-            }
-            
             return FormValidation.ok();
         }
         
@@ -257,11 +311,322 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
             
             return FormValidation.error(Messages.LdapSaslSecurityRealm_Mechanisms_empty());
         }
+        
+        private transient LdapSaslSecurityRealm activeRealm;
+        
+        /**
+         * Records the security realm in use, and closes pooled connections of the realm replaced.
+         * 
+         * @param realm the security realm in use. may be other than this type.
+         */
+        public synchronized void setActiveRealm(@CheckForNull SecurityRealm realm)
+        {
+            if(activeRealm != null && activeRealm != realm)
+            {
+                activeRealm.closeContextPools();
+            }
+            activeRealm = (realm instanceof LdapSaslSecurityRealm)?(LdapSaslSecurityRealm)realm:null;
+        }
+    }
+    
+    /**
+     * Closes pooled connections of the realm replaced when the system configuration is saved.
+     */
+    @Extension
+    public static class ReplacementListener extends SaveableListener
+    {
+        @Override
+        public void onChange(Saveable o, XmlFile file)
+        {
+            if(!(o instanceof Jenkins))
+            {
+                return;
+            }
+            Jenkins jenkins = (Jenkins)o;
+            DescriptorImpl descriptor = jenkins.getDescriptorByType(DescriptorImpl.class);
+            if(descriptor != null)
+            {
+                descriptor.setActiveRealm(jenkins.getSecurityRealm());
+            }
+        }
     }
     
     private static final Logger LOGGER = Logger.getLogger(LdapSaslSecurityRealm.class.getName());
     protected static final String SEPERATOR_PATTERN = "[\\s,]+";
     
+    /**
+     * Template of the query to search groups, {0} is replaced with the user DN.
+     */
+    protected static final String GROUP_SEARCH_QUERY = "(| "
+            + "(& (objectClass=groupOfUniqueNames) (uniqueMember={0}))"
+            + "(& (objectClass=groupOfNames) (member={0}))"
+            + ")";
+    
+    /**
+     * Query to search groups including nested ones in Active Directory (LDAP_MATCHING_RULE_IN_CHAIN).
+     * {0} is the user DN, passed as an argument of the filter.
+     */
+    private static final String CHAINED_GROUP_SEARCH_QUERY = "(& (objectClass=group) (member:1.2.840.113556.1.4.1941:={0}))";
+    
+    /**
+     * supportedCapabilities of Active Directory (LDAP_CAP_ACTIVE_DIRECTORY_OID).
+     */
+    private static final String ACTIVE_DIRECTORY_CAPABILITY = "1.2.840.113556.1.4.800";
+    
+    /**
+     * Maximum number of connections pooled for the query user.
+     */
+    public static int QUERY_POOL_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".queryPoolSize", 8);
+    
+    /**
+     * Milliseconds to wait for a pooled connection when all connections are in use.
+     */
+    public static long QUERY_POOL_BORROW_TIMEOUT = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".queryPoolBorrowTimeout", 10000L);
+    
+    /**
+     * Milliseconds to keep an idle pooled connection.
+     */
+    public static long QUERY_POOL_IDLE_TIMEOUT = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".queryPoolIdleTimeout", 60000L);
+    
+    /**
+     * Milliseconds to use a pooled connection before replacing it with a new one.
+     */
+    public static long QUERY_POOL_MAX_LIFETIME = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".queryPoolMaxLifetime", 600000L);
+    
+    /**
+     * Pooled connections idle for longer than this milliseconds are validated before used.
+     */
+    public static long QUERY_POOL_VALIDATION_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".queryPoolValidationInterval", 5000L);
+    
+    /**
+     * Number of failures in a row to stop sending requests to a LDAP server.
+     */
+    public static int SERVER_FAILURE_THRESHOLD = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".serverFailureThreshold", 2);
+    
+    /**
+     * Milliseconds to probe LDAP servers stopped receiving requests.
+     */
+    public static long SERVER_PROBE_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".serverProbeInterval", 10000L);
+    
+    /**
+     * Maximum number of binds and searches sent to each LDAP server at the same time.
+     * 0 or less for no limit.
+     */
+    public static int SERVER_MAX_CONCURRENT = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".serverMaxConcurrent", 32);
+    
+    /**
+     * Maximum number of binds and searches waiting for each LDAP server.
+     * Requests exceeding this are rejected immediately.
+     */
+    public static int SERVER_MAX_QUEUE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".serverMaxQueue", 64);
+    
+    /**
+     * Milliseconds for binds and searches to wait for each LDAP server.
+     */
+    public static long SERVER_QUEUE_TIMEOUT = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".serverQueueTimeout", 5000L);
+    
+    /**
+     * Milliseconds to finish a login, including connecting, binding and searching.
+     * 0 or less to perform logins in the request thread without the deadline.
+     */
+    public static long LOGIN_TIMEOUT = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".loginTimeout", 30000L);
+    
+    /**
+     * Number of LDAP servers to connect to in parallel.
+     * 1 or less to connect to servers one by one.
+     */
+    public static int CONNECT_RACE_WIDTH = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".connectRaceWidth", 0);
+    
+    /**
+     * Milliseconds to wait before connecting to the next LDAP server in parallel.
+     */
+    public static long CONNECT_RACE_STAGGER = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".connectRaceStagger", 250L);
+    
+    /**
+     * Path to the trust store to verify LDAP servers with TLS.
+     * null to use the default of JVM.
+     */
+    public static String TLS_TRUST_STORE = System.getProperty(LdapSaslSecurityRealm.class.getName() + ".tlsTrustStore");
+    
+    /**
+     * Password of {@link #TLS_TRUST_STORE}.
+     */
+    public static String TLS_TRUST_STORE_PASSWORD = System.getProperty(LdapSaslSecurityRealm.class.getName() + ".tlsTrustStorePassword");
+    
+    /**
+     * Type of {@link #TLS_TRUST_STORE}. null for the default type.
+     */
+    public static String TLS_TRUST_STORE_TYPE = System.getProperty(LdapSaslSecurityRealm.class.getName() + ".tlsTrustStoreType");
+    
+    /**
+     * Number of TLS sessions cached to resume. 0 for no limit.
+     */
+    public static int TLS_SESSION_CACHE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".tlsSessionCacheSize", 256);
+    
+    /**
+     * Seconds to keep TLS sessions to resume. 0 for no limit.
+     */
+    public static int TLS_SESSION_TIMEOUT = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".tlsSessionTimeout", 3600);
+    
+    /**
+     * Maximum number of pooled connections to verify passwords by re-binding.
+     * Used only with mechanisms able to re-bind (PLAIN).
+     * 0 to connect for each login.
+     */
+    public static int REBIND_POOL_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".rebindPoolSize", 8);
+    
+    /**
+     * Milliseconds to reject credentials rejected by LDAP servers without binding.
+     * 0 to disable.
+     */
+    public static long BAD_CREDENTIAL_CACHE_TTL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".badCredentialCacheTtl", 5000L);
+    
+    /**
+     * Maximum number of rejected credentials to remember.
+     */
+    public static int BAD_CREDENTIAL_CACHE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".badCredentialCacheSize", 1000);
+    
+    /**
+     * Milliseconds to accept credentials verified by LDAP servers without binding.
+     * 0 to disable (default).
+     */
+    public static long VERIFIED_CREDENTIAL_CACHE_TTL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".verifiedCredentialCacheTtl", 0L);
+    
+    /**
+     * Milliseconds to keep verified credentials not used. 0 for no limit.
+     */
+    public static long VERIFIED_CREDENTIAL_CACHE_IDLE_TTL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".verifiedCredentialCacheIdleTtl", 60000L);
+    
+    /**
+     * Maximum number of users to remember verified credentials.
+     */
+    public static int VERIFIED_CREDENTIAL_CACHE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".verifiedCredentialCacheSize", 1000);
+    
+    /**
+     * Iterations of PBKDF2 to hash verified passwords.
+     */
+    public static int VERIFIED_CREDENTIAL_HASH_ITERATIONS = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".verifiedCredentialHashIterations", 1000);
+    
+    /**
+     * Maximum number of users cached for {@link #loadUserByUsername(String)}.
+     * 0 to disable.
+     */
+    public static int USER_CACHE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".userCacheSize", 1000);
+    
+    /**
+     * Milliseconds to cache users for {@link #loadUserByUsername(String)}.
+     * 0 to disable.
+     */
+    public static long USER_CACHE_TTL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".userCacheTtl", 300000L);
+    
+    /**
+     * Maximum number of users whose groups are cached.
+     * 0 to disable.
+     */
+    public static int GROUP_CACHE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".groupCacheSize", 1000);
+    
+    /**
+     * Milliseconds to cache groups of users.
+     * 0 to disable.
+     */
+    public static long GROUP_CACHE_TTL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".groupCacheTtl", 300000L);
+    
+    /**
+     * Cached users and groups read after this percentage of TTL are reloaded in background.
+     * 0 to disable.
+     */
+    public static int CACHE_REFRESH_AHEAD_PERCENT = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".cacheRefreshAheadPercent", 80);
+    
+    /**
+     * Whether to ask LDAP servers the DN of the authenticated user with "Who am I?" (RFC 4532),
+     * instead of searching the user.
+     * 
+     * The DN is accepted only when it is under the user search base
+     * and the entry matches the user query.
+     */
+    public static boolean USE_WHO_AM_I = Boolean.parseBoolean(System.getProperty(LdapSaslSecurityRealm.class.getName() + ".useWhoAmI", "false"));
+    
+    /**
+     * Whether to search groups in parallel with the user search,
+     * when the DN of the user is known.
+     */
+    public static boolean PIPELINE_SEARCHES = Boolean.parseBoolean(System.getProperty(LdapSaslSecurityRealm.class.getName() + ".pipelineSearches", "true"));
+    
+    /**
+     * Attribute of user entries listing DNs of groups (e.g. memberOf),
+     * read in the user search instead of searching groups.
+     * null to search groups.
+     */
+    public static String GROUP_MEMBERSHIP_ATTRIBUTE = System.getProperty(LdapSaslSecurityRealm.class.getName() + ".groupMembershipAttribute");
+    
+    /**
+     * Maximum levels of nested groups to resolve.
+     * 0 to resolve only groups users directly belong to.
+     */
+    public static int NESTED_GROUP_DEPTH = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".nestedGroupDepth", 0);
+    
+    /**
+     * Maximum number of searches for nested groups in parallel.
+     * Requires the query user.
+     */
+    public static int NESTED_GROUP_PARALLELISM = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".nestedGroupParallelism", 4);
+    
+    /**
+     * Whether to let Active Directory resolve nested groups.
+     */
+    public static boolean NESTED_GROUP_CHAINING = Boolean.parseBoolean(System.getProperty(LdapSaslSecurityRealm.class.getName() + ".nestedGroupChaining", "true"));
+    
+    /**
+     * Number of entries to receive in a page of searches.
+     * 0 not to use the paged results control.
+     */
+    public static int SEARCH_PAGE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".searchPageSize", 500);
+    
+    /**
+     * Maximum number of entries processed in a search.
+     * Searches of users finding more fail, and searches of groups stop with groups found.
+     * 0 for no limit.
+     */
+    public static int SEARCH_SIZE_LIMIT = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".searchSizeLimit", 0);
+    
+    /**
+     * Milliseconds to complete a search including all pages. Searches taking longer fail.
+     * 0 for no limit.
+     */
+    public static long SEARCH_TIME_LIMIT = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".searchTimeLimit", 30000L);
+    
+    /**
+     * Milliseconds to poll groups modified, when groups are loaded in memory.
+     * 0 to search groups of each user instead.
+     */
+    public static long GROUP_INDEX_POLL_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".groupIndexPollInterval", 0L);
+    
+    /**
+     * Milliseconds to reload all groups, when groups are loaded in memory.
+     */
+    public static long GROUP_INDEX_RELOAD_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".groupIndexReloadInterval", 3600000L);
+    
+    /**
+     * Number of groups to receive in a page, when groups or names of groups are loaded in memory.
+     */
+    public static int GROUP_INDEX_PAGE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".groupIndexPageSize", 500);
+    
+    /**
+     * Milliseconds to reload names of groups loaded to look up groups.
+     */
+    public static long GROUP_NAME_INDEX_RELOAD_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".groupNameIndexReloadInterval", 300000L);
+    
+    /**
+     * Milliseconds to reload names of users loaded to complete names.
+     */
+    public static long USER_NAME_INDEX_RELOAD_INTERVAL = Long.getLong(LdapSaslSecurityRealm.class.getName() + ".userNameIndexReloadInterval", 300000L);
+    
+    /**
+     * Maximum number of users and of groups each to complete names.
+     * 0 to disable.
+     */
+    public static int AUTO_COMPLETE_SIZE = Integer.getInteger(LdapSaslSecurityRealm.class.getName() + ".autoCompleteSize", 20);
+    
     private final List<String> ldapUriList;
     
     /**
@@ -283,22 +648,21 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
      */
     public String getValidLdapUris()
     {
-        List<String> validLdapUriList = new ArrayList<String>();
-        DescriptorImpl descriptor = (DescriptorImpl)getDescriptor();
-        if(getLdapUriList() != null)
-        {
-            for(String uri: getLdapUriList())
-            {
-                if(descriptor.doCheckLdapUriList(uri).kind != FormValidation.Kind.ERROR)
-                {
-                    validLdapUriList.add(uri);
-                }
-            }
-        }
+        List<String> validLdapUriList = getValidLdapUriList();
         
         return !validLdapUriList.isEmpty()?StringUtils.join(validLdapUriList, " "):null;
     }
     
+    /**
+     * Returns the list of valid LDAP URIs.
+     * 
+     * @return the list of valid LDAP URIs. empty if no URIs are available.
+     */
+    private List<String> getValidLdapUriList()
+    {
+        return getConfiguration().getLdapUris();
+    }
+    
     private final List<String> mechanismList;
     
     /**
@@ -352,6 +716,8 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
     private final String groupPrefix;
     private final String queryUser;
     private final String queryPassword;
+    private final boolean useStartTls;
+    private final String userDnTemplate;
     
     /**
      * @return LDAP base to search users.
@@ -398,6 +764,22 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
         return queryPassword;
     }
     
+    /**
+     * @return whether to secure connections to ldap:// URIs with StartTLS before binding.
+     */
+    public boolean isUseStartTls()
+    {
+        return useStartTls;
+    }
+    
+    /**
+     * @return template of user DNs. ${uid} will be replaced with the escaped user name.
+     */
+    public String getUserDnTemplate()
+    {
+        return userDnTemplate;
+    }
+    
     /**
      * Constructor instantiating with parameters in the configuration page.
      * 
@@ -411,7 +793,8 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
      * @param readTimeout the timeout of the LDAP server reading.
      * @param queryUser a user to query database. can be {@code null}.
      * @param queryPassword a password used with queryUser. can be {@code null}
-     * @since 1.1.0
+     * @param useStartTls whether to secure connections to ldap:// URIs with StartTLS.
+     * @param userDnTemplate the template of user DNs. used instead of searching users. can be {@code null}.
      */
     @DataBoundConstructor
     public LdapSaslSecurityRealm(
@@ -424,7 +807,9 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
             String groupSearchBase,
             String groupPrefix,
             String queryUser,
-            String queryPassword
+            String queryPassword,
+            boolean useStartTls,
+            String userDnTemplate
     )
     {
         this.ldapUriList = new ArrayList<String>();
@@ -456,238 +841,2564 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
         this.groupPrefix = StringUtils.trim(groupPrefix);
         this.queryUser = StringUtils.trim(queryUser);
         this.queryPassword = queryPassword;
+        this.useStartTls = useStartTls;
+        this.userDnTemplate = StringUtils.trim(userDnTemplate);
+        this.configuration = compileConfiguration();
     }
     
     /**
-     * Connects to the ldap with specified userinfo.
+     * Constructor without user DN templates.
      * 
-     * @param username
-     * @param password
-     * @return
+     * @param ldapUriList the URIs of LDAP servers.
+     * @param mechanisms the whitespace separated list of mechanisms.
+     * @param connectionTimeout the timeout of the LDAP server connection.
+     * @param readTimeout the timeout of the LDAP server reading.
+     * @param queryUser a user to query database. can be {@code null}.
+     * @param queryPassword a password used with queryUser. can be {@code null}
+     * @param useStartTls whether to secure connections to ldap:// URIs with StartTLS.
+     * @deprecated use {@link #LdapSaslSecurityRealm(List, String, int, int, String, String, String, String, String, String, boolean, String)}
      */
-    private LdapContext connectToLdap(String username, String password)
-            throws AuthenticationException
+    @Deprecated
+    public LdapSaslSecurityRealm(
+            List<String> ldapUriList,
+            String mechanisms,
+            int connectionTimeout,
+            int readTimeout,
+            String userSearchBase,
+            String userQueryTemplate,
+            String groupSearchBase,
+            String groupPrefix,
+            String queryUser,
+            String queryPassword,
+            boolean useStartTls
+    )
     {
-        // check configuration.
-        String ldapUris = getValidLdapUris();
-        if(StringUtils.isBlank(ldapUris))
-        {
-            LOGGER.severe("No valid LDAP URI is specified.");
-            throw new AuthenticationServiceException("No valid LDAP URI is specified.");
-        }
-        
-        String mechanisms = getMechanisms();
-        if(StringUtils.isBlank(mechanisms))
-        {
-            LOGGER.severe("No valid mechanism is specified.");
-            throw new AuthenticationServiceException("No valid mechanism is specified.");
-        }
-        
-        // TODO: Test with LDAPS.
-        
-        // Parameters for JNDI
-        Hashtable<String, Object> env = new Hashtable<String, Object>();
-        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
-        env.put(Context.PROVIDER_URL, ldapUris);
-        env.put(Context.SECURITY_PRINCIPAL, username);
-        env.put(Context.SECURITY_CREDENTIALS, password);
-        env.put(Context.SECURITY_AUTHENTICATION, mechanisms);
-        env.put("com.sun.jndi.ldap.connect.timeout", Integer.toString(getConnectionTimeout()));
-        env.put("com.sun.jndi.ldap.read.timeout", Integer.toString(getReadTimeout()));
-        
-        LOGGER.fine("Authenticating with LDAP-SASL:");
-        LOGGER.fine(String.format("username=%s", username));
-        LOGGER.fine(String.format("servers=%s", ldapUris));
-        LOGGER.fine(String.format("mech=%s", mechanisms));
+        this(
+                ldapUriList,
+                mechanisms,
+                connectionTimeout,
+                readTimeout,
+                userSearchBase,
+                userQueryTemplate,
+                groupSearchBase,
+                groupPrefix,
+                queryUser,
+                queryPassword,
+                useStartTls,
+                null
+        );
+    }
+    
+    /**
+     * Constructor without StartTLS.
+     * 
+     * @param ldapUriList the URIs of LDAP servers.
+     * @param mechanisms the whitespace separated list of mechanisms.
+     * @param connectionTimeout the timeout of the LDAP server connection.
+     * @param readTimeout the timeout of the LDAP server reading.
+     * @param queryUser a user to query database. can be {@code null}.
+     * @param queryPassword a password used with queryUser. can be {@code null}
+     * @since 1.1.0
+     * @deprecated use {@link #LdapSaslSecurityRealm(List, String, int, int, String, String, String, String, String, String, boolean, String)}
+     */
+    @Deprecated
+    public LdapSaslSecurityRealm(
+            List<String> ldapUriList,
+            String mechanisms,
+            int connectionTimeout,
+            int readTimeout,
+            String userSearchBase,
+            String userQueryTemplate,
+            String groupSearchBase,
+            String groupPrefix,
+            String queryUser,
+            String queryPassword
+    )
+    {
+        this(
+                ldapUriList,
+                mechanisms,
+                connectionTimeout,
+                readTimeout,
+                userSearchBase,
+                userQueryTemplate,
+                groupSearchBase,
+                groupPrefix,
+                queryUser,
+                queryPassword,
+                false,
+                null
+        );
+    }
+    
+    /**
+     * Compiles the configuration when deserialized by XStream.
+     * 
+     * @return this object
+     */
+    protected Object readResolve()
+    {
+        this.configuration = compileConfiguration();
+        // connections pooled for the previous configuration, if deserialized into this object.
+        closeContextPools();
+        return this;
+    }
+    
+    /**
+     * Records this realm in use when installed to Jenkins.
+     * 
+     * @return the components for Acegi Security.
+     * @see hudson.security.AbstractPasswordBasedSecurityRealm#createSecurityComponents()
+     */
+    @Override
+    public SecurityComponents createSecurityComponents()
+    {
+        ((DescriptorImpl)getDescriptor()).setActiveRealm(this);
+        return super.createSecurityComponents();
+    }
+    
+    private transient volatile LdapRealmConfiguration configuration;
+    
+    /**
+     * @return the configuration compiled for authentication.
+     */
+    protected LdapRealmConfiguration compileConfiguration()
+    {
+        return new LdapRealmConfiguration(this, GROUP_SEARCH_QUERY);
+    }
+    
+    /**
+     * Returns the configuration compiled for authentication.
+     * 
+     * @return the configuration compiled for authentication.
+     */
+    protected LdapRealmConfiguration getConfiguration()
+    {
+        LdapRealmConfiguration configuration = this.configuration;
+        if(configuration == null)
+        {
+            // should not happen, as compiled in the constructor or readResolve.
+            configuration = compileConfiguration();
+            this.configuration = configuration;
+        }
+        return configuration;
+    }
+    
+    private transient volatile LdapContextPool queryContextPool;
+    private transient volatile LdapServerSelector serverSelector;
+    private transient volatile LdapTlsContext tlsContext;
+    private transient volatile LdapContextPool rebindContextPool;
+    private transient volatile LdapBadCredentialCache badCredentialCache;
+    private transient volatile LdapVerifiedCredentialCache verifiedCredentialCache;
+    private transient volatile LdapCache<String, UserDetails> userCache;
+    private transient volatile LdapCache<String, List<GrantedAuthority>> groupCache;
+    private transient volatile LdapGroupIndex groupIndex;
+    private transient volatile LdapCache<String, List<LdapNestedGroupResolver.Group>> parentGroupCache;
+    private transient volatile Boolean chainingSupported;
+    private transient volatile LdapCache<String, String> groupNameCache;
+    private transient volatile LdapGroupNameIndex groupNameIndex;
+    private transient volatile LdapUserNameIndex userNameIndex;
+    
+    /**
+     * Returns the number of LDAP connections and search results open now.
+     * 
+     * Counts ones opened by all realms, including pooled connections.
+     * 
+     * @return the number of LDAP resources open now.
+     */
+    public int getOpenLdapResourceCount()
+    {
+        return LdapResourceTracker.getOpenCount();
+    }
+    
+    /**
+     * Returns the pool of connections bound as {@link #getQueryUser()}.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the pool of connections for the query user.
+     */
+    protected LdapContextPool getQueryContextPool()
+    {
+        LdapContextPool pool = queryContextPool;
+        if(pool != null)
+        {
+            return pool;
+        }
+        synchronized(this)
+        {
+            if(queryContextPool == null)
+            {
+                queryContextPool = new LdapContextPool(
+                        new LdapContextPool.Factory()
+                        {
+                            public LdapContext create() throws AuthenticationException
+                            {
+                                return connectToLdap(getQueryUser(), getQueryPassword());
+                            }
+                        },
+                        QUERY_POOL_SIZE,
+                        QUERY_POOL_BORROW_TIMEOUT,
+                        QUERY_POOL_IDLE_TIMEOUT,
+                        QUERY_POOL_MAX_LIFETIME,
+                        QUERY_POOL_VALIDATION_INTERVAL
+                );
+            }
+            return queryContextPool;
+        }
+    }
+    
+    /**
+     * Returns the pool of connections to verify passwords by re-binding.
+     * 
+     * Idle connections are bound as the service identity,
+     * that is {@link #getQueryUser()} if specified, or anonymous.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the pool of connections to re-bind.
+     */
+    protected LdapContextPool getRebindContextPool()
+    {
+        LdapContextPool pool = rebindContextPool;
+        if(pool != null)
+        {
+            return pool;
+        }
+        synchronized(this)
+        {
+            if(rebindContextPool == null)
+            {
+                rebindContextPool = new LdapContextPool(
+                        new LdapContextPool.Factory()
+                        {
+                            public LdapContext create() throws AuthenticationException
+                            {
+                                if(StringUtils.isBlank(getQueryUser()) || getQueryPassword() == null)
+                                {
+                                    return connectToLdap(null, null);
+                                }
+                                return connectToLdap(getQueryUser(), getQueryPassword());
+                            }
+                        },
+                        REBIND_POOL_SIZE,
+                        QUERY_POOL_BORROW_TIMEOUT,
+                        QUERY_POOL_IDLE_TIMEOUT,
+                        QUERY_POOL_MAX_LIFETIME,
+                        QUERY_POOL_VALIDATION_INTERVAL
+                );
+            }
+            return rebindContextPool;
+        }
+    }
+    
+    /**
+     * Closes idle pooled connections.
+     * 
+     * Called when this realm is replaced.
+     * Borrowed connections are closed when returned,
+     * and pools are created again if used after this.
+     */
+    protected void closeContextPools()
+    {
+        LdapContextPool queryPool;
+        LdapContextPool rebindPool;
+        synchronized(this)
+        {
+            queryPool = queryContextPool;
+            rebindPool = rebindContextPool;
+            queryContextPool = null;
+            rebindContextPool = null;
+        }
+        if(queryPool != null)
+        {
+            queryPool.close();
+        }
+        if(rebindPool != null)
+        {
+            rebindPool.close();
+        }
+    }
+    
+    /**
+     * Returns credentials rejected recently.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return credentials rejected recently.
+     */
+    protected LdapBadCredentialCache getBadCredentialCache()
+    {
+        LdapBadCredentialCache cache = badCredentialCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(badCredentialCache == null)
+            {
+                badCredentialCache = new LdapBadCredentialCache(BAD_CREDENTIAL_CACHE_TTL, BAD_CREDENTIAL_CACHE_SIZE);
+            }
+            return badCredentialCache;
+        }
+    }
+    
+    /**
+     * Returns credentials verified recently.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return credentials verified recently.
+     */
+    protected LdapVerifiedCredentialCache getVerifiedCredentialCache()
+    {
+        LdapVerifiedCredentialCache cache = verifiedCredentialCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(verifiedCredentialCache == null)
+            {
+                verifiedCredentialCache = new LdapVerifiedCredentialCache(
+                        VERIFIED_CREDENTIAL_CACHE_TTL,
+                        VERIFIED_CREDENTIAL_CACHE_IDLE_TTL,
+                        VERIFIED_CREDENTIAL_CACHE_SIZE,
+                        VERIFIED_CREDENTIAL_HASH_ITERATIONS
+                );
+            }
+            return verifiedCredentialCache;
+        }
+    }
+    
+    /**
+     * Returns the cache of users for {@link #loadUserByUsername(String)}.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the cache of users, keyed with normalized usernames.
+     */
+    public LdapCache<String, UserDetails> getUserCache()
+    {
+        LdapCache<String, UserDetails> cache = userCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(userCache == null)
+            {
+                userCache = new LdapCache<String, UserDetails>(
+                        "users",
+                        USER_CACHE_SIZE,
+                        USER_CACHE_TTL,
+                        CACHE_REFRESH_AHEAD_PERCENT,
+                        LdapSaslExecutors.getBackgroundExecutor()
+                );
+            }
+            return userCache;
+        }
+    }
+    
+    /**
+     * Returns the cache of groups of users.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the cache of groups, keyed with normalized DNs of users.
+     */
+    public LdapCache<String, List<GrantedAuthority>> getGroupCache()
+    {
+        LdapCache<String, List<GrantedAuthority>> cache = groupCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(groupCache == null)
+            {
+                groupCache = new LdapCache<String, List<GrantedAuthority>>(
+                        "groups",
+                        GROUP_CACHE_SIZE,
+                        GROUP_CACHE_TTL,
+                        CACHE_REFRESH_AHEAD_PERCENT,
+                        LdapSaslExecutors.getBackgroundExecutor()
+                );
+            }
+            return groupCache;
+        }
+    }
+    
+    /**
+     * Returns the cache of groups that groups directly belong to, to resolve nested groups.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the cache of parent groups, keyed with normalized DNs of groups.
+     */
+    protected LdapCache<String, List<LdapNestedGroupResolver.Group>> getParentGroupCache()
+    {
+        LdapCache<String, List<LdapNestedGroupResolver.Group>> cache = parentGroupCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(parentGroupCache == null)
+            {
+                parentGroupCache = new LdapCache<String, List<LdapNestedGroupResolver.Group>>(
+                        "parent groups",
+                        GROUP_CACHE_SIZE,
+                        GROUP_CACHE_TTL
+                );
+            }
+            return parentGroupCache;
+        }
+    }
+    
+    /**
+     * Returns the cache of names of groups, to resolve groups from the membership attribute.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the cache of cn, keyed with normalized DNs of groups.
+     */
+    protected LdapCache<String, String> getGroupNameCache()
+    {
+        LdapCache<String, String> cache = groupNameCache;
+        if(cache != null)
+        {
+            return cache;
+        }
+        synchronized(this)
+        {
+            if(groupNameCache == null)
+            {
+                groupNameCache = new LdapCache<String, String>(
+                        "group names",
+                        GROUP_CACHE_SIZE,
+                        GROUP_CACHE_TTL
+                );
+            }
+            return groupNameCache;
+        }
+    }
+    
+    /**
+     * Returns groups loaded in memory.
+     * 
+     * Created and starts loading when used first, as this may be instantiated by XStream.
+     * 
+     * @return groups loaded in memory. null if disabled or the query user is not configured.
+     */
+    @CheckForNull
+    public LdapGroupIndex getGroupIndex()
+    {
+        if(GROUP_INDEX_POLL_INTERVAL <= 0 || StringUtils.isBlank(getQueryUser()) || getQueryPassword() == null)
+        {
+            return null;
+        }
+        LdapGroupIndex index = groupIndex;
+        if(index != null)
+        {
+            return index;
+        }
+        synchronized(this)
+        {
+            if(groupIndex == null)
+            {
+                groupIndex = new LdapGroupIndex(
+                        getQueryContextPool(),
+                        createGroupLoader(true),
+                        GROUP_INDEX_POLL_INTERVAL,
+                        GROUP_INDEX_RELOAD_INTERVAL
+                );
+            }
+            return groupIndex;
+        }
+    }
+    
+    /**
+     * Returns names of groups loaded to look up groups.
+     * 
+     * @return the index. null if the group search base or the query user is not configured.
+     */
+    @CheckForNull
+    protected LdapGroupNameIndex getGroupNameIndex()
+    {
+        if(StringUtils.isBlank(getGroupSearchBase()) || StringUtils.isBlank(getQueryUser()) || getQueryPassword() == null)
+        {
+            return null;
+        }
+        LdapGroupNameIndex index = groupNameIndex;
+        if(index != null)
+        {
+            return index;
+        }
+        synchronized(this)
+        {
+            if(groupNameIndex == null)
+            {
+                groupNameIndex = new LdapGroupNameIndex(
+                        getQueryContextPool(),
+                        createGroupLoader(false),
+                        GROUP_NAME_INDEX_RELOAD_INTERVAL,
+                        SEARCH_TIME_LIMIT
+                );
+            }
+            return groupNameIndex;
+        }
+    }
+    
+    /**
+     * Creates the loader of all groups for indexes in memory.
+     * 
+     * @param withMembers whether to load members of groups.
+     * @return the loader searching with the group query.
+     */
+    private LdapGroupLoader createGroupLoader(boolean withMembers)
+    {
+        LdapRealmConfiguration configuration = getConfiguration();
+        return new LdapGroupLoader(
+                configuration.getGroupSearchBase(),
+                configuration.getAllGroupsQuery(),
+                GROUP_INDEX_PAGE_SIZE,
+                withMembers
+        );
+    }
+    
+    /**
+     * Returns names of users loaded to complete names.
+     * 
+     * @return the index. null if the user query or the query user is not configured,
+     *     or the attribute of user names cannot be told from the user query.
+     */
+    @CheckForNull
+    protected LdapUserNameIndex getUserNameIndex()
+    {
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(configuration.getAllUsersQuery() == null || StringUtils.isBlank(getQueryUser()) || getQueryPassword() == null)
+        {
+            return null;
+        }
+        LdapUserNameIndex index = userNameIndex;
+        if(index != null)
+        {
+            return index;
+        }
+        synchronized(this)
+        {
+            if(userNameIndex == null)
+            {
+                userNameIndex = new LdapUserNameIndex(
+                        getQueryContextPool(),
+                        configuration.getUserSearchBase(),
+                        configuration.getAllUsersQuery(),
+                        configuration.getUserNameAttribute(),
+                        GROUP_INDEX_PAGE_SIZE,
+                        USER_NAME_INDEX_RELOAD_INTERVAL
+                );
+            }
+            return userNameIndex;
+        }
+    }
+    
+    /**
+     * Completes names of users and groups (with the prefix) from names loaded in memory.
+     * 
+     * Names are loaded in background at the first call, and nothing is returned until loaded.
+     * 
+     * @param value the name being input.
+     * @return names of users and groups starting with the value.
+     */
+    public List<String> getNameCandidates(String value)
+    {
+        List<String> candidates = new ArrayList<String>();
+        if(AUTO_COMPLETE_SIZE <= 0)
+        {
+            return candidates;
+        }
+        value = StringUtils.defaultString(value);
+        
+        LdapUserNameIndex userIndex = getUserNameIndex();
+        if(userIndex != null)
+        {
+            candidates.addAll(userIndex.complete(value, AUTO_COMPLETE_SIZE));
+        }
+        
+        LdapGroupNameIndex groupIndex = getGroupNameIndex();
+        if(groupIndex != null)
+        {
+            String prefix = StringUtils.defaultString(getConfiguration().getGroupPrefix());
+            String name = null;
+            if(value.regionMatches(true, 0, prefix, 0, prefix.length()))
+            {
+                name = value.substring(prefix.length());
+            }
+            else if(prefix.regionMatches(true, 0, value, 0, value.length()))
+            {
+                // the prefix is being input.
+                name = "";
+            }
+            if(name != null)
+            {
+                for(String group: groupIndex.complete(name, AUTO_COMPLETE_SIZE))
+                {
+                    candidates.add(prefix + group);
+                }
+            }
+        }
+        return candidates;
+    }
+    
+    /**
+     * Returns caches shown in the status page.
+     * 
+     * @return caches of this realm.
+     */
+    public List<LdapCache<?, ?>> getCaches()
+    {
+        List<LdapCache<?, ?>> caches = new ArrayList<LdapCache<?, ?>>();
+        caches.add(getUserCache());
+        caches.add(getGroupCache());
+        if(NESTED_GROUP_DEPTH > 0)
+        {
+            caches.add(getParentGroupCache());
+        }
+        if(getConfiguration().getGroupMembershipAttribute() != null)
+        {
+            caches.add(getGroupNameCache());
+        }
+        return caches;
+    }
+    
+    /**
+     * @param username
+     * @return the key for caches.
+     */
+    protected static String normalizeUsername(String username)
+    {
+        return StringUtils.trim(username).toLowerCase(Locale.ENGLISH);
+    }
+    
+    /**
+     * Normalizes a DN to compare DNs differ only in cases and spaces.
+     * 
+     * @param dn
+     * @return the key for caches.
+     */
+    protected static String normalizeDn(String dn)
+    {
+        try
+        {
+            List<Rdn> rdns = new LdapName(dn).getRdns();
+            StringBuilder sb = new StringBuilder();
+            for(int i = rdns.size() - 1; i >= 0; --i)
+            {
+                if(sb.length() > 0)
+                {
+                    sb.append(',');
+                }
+                sb.append(rdns.get(i).toString());
+            }
+            return sb.toString().toLowerCase(Locale.ENGLISH);
+        }
+        catch(InvalidNameException e)
+        {
+            return StringUtils.trim(dn).toLowerCase(Locale.ENGLISH);
+        }
+    }
+    
+    /**
+     * Flushes cached users and their groups.
+     * 
+     * Called from the status page. Requires ADMINISTER.
+     * 
+     * @param req
+     * @param rsp
+     * @param username the user to flush. flushes all users if blank.
+     * @throws IOException
+     */
+    public void doFlushCache(StaplerRequest req, StaplerResponse rsp, @QueryParameter String username)
+            throws IOException
+    {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        if(!"POST".equals(req.getMethod()))
+        {
+            rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+            return;
+        }
+        if(StringUtils.isBlank(username))
+        {
+            LOGGER.info("Flushing all cached users");
+            getUserCache().invalidateAll();
+            getGroupCache().invalidateAll();
+            getParentGroupCache().invalidateAll();
+            getGroupNameCache().invalidateAll();
+            getVerifiedCredentialCache().clear();
+            LdapGroupIndex index = getGroupIndex();
+            if(index != null)
+            {
+                index.reload();
+            }
+            LdapGroupNameIndex nameIndex = getGroupNameIndex();
+            if(nameIndex != null)
+            {
+                nameIndex.reload();
+            }
+        }
+        else
+        {
+            LOGGER.info(String.format("Flushing the cached user %s", username));
+            UserDetails user = getUserCache().peek(normalizeUsername(username));
+            if(user instanceof LdapUser && ((LdapUser)user).getDn() != null)
+            {
+                getGroupCache().invalidate(getGroupCacheKey(((LdapUser)user).getDn(), null));
+                getGroupCache().invalidate(getGroupCacheKey(((LdapUser)user).getDn(), username));
+            }
+            getUserCache().invalidate(normalizeUsername(username));
+            getVerifiedCredentialCache().invalidate(normalizeUsername(username));
+        }
+        rsp.sendRedirect("status");
+    }
+    
+    /**
+     * Returns the selector of LDAP servers, which tracks the health of each server.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return the selector of LDAP servers.
+     */
+    protected LdapServerSelector getServerSelector()
+    {
+        LdapServerSelector selector = serverSelector;
+        if(selector != null)
+        {
+            return selector;
+        }
+        synchronized(this)
+        {
+            if(serverSelector == null)
+            {
+                serverSelector = new LdapServerSelector(
+                        getValidLdapUriList(),
+                        SERVER_FAILURE_THRESHOLD,
+                        SERVER_PROBE_INTERVAL,
+                        new LdapServerSelector.Prober()
+                        {
+                            public boolean probe(String uri)
+                            {
+                                return probeLdap(uri);
+                            }
+                        },
+                        SERVER_MAX_CONCURRENT,
+                        SERVER_MAX_QUEUE,
+                        SERVER_QUEUE_TIMEOUT
+                );
+            }
+            return serverSelector;
+        }
+    }
+    
+    /**
+     * Returns TLS settings shared by connections of this realm.
+     * 
+     * Created when used first, as this may be instantiated by XStream.
+     * 
+     * @return TLS settings shared by connections.
+     * @throws AuthenticationServiceException failed to load the trust store.
+     */
+    protected LdapTlsContext getTlsContext() throws AuthenticationServiceException
+    {
+        LdapTlsContext context = tlsContext;
+        if(context != null)
+        {
+            return context;
+        }
+        synchronized(this)
+        {
+            if(tlsContext == null)
+            {
+                try
+                {
+                    tlsContext = new LdapTlsContext(
+                            TLS_TRUST_STORE,
+                            TLS_TRUST_STORE_PASSWORD,
+                            TLS_TRUST_STORE_TYPE,
+                            TLS_SESSION_CACHE_SIZE,
+                            TLS_SESSION_TIMEOUT
+                    );
+                }
+                catch(GeneralSecurityException e)
+                {
+                    LOGGER.log(Level.SEVERE, "Failed to initialize TLS", e);
+                    throw new AuthenticationServiceException("Failed to initialize TLS", e);
+                }
+                catch(IOException e)
+                {
+                    LOGGER.log(Level.SEVERE, String.format("Failed to load the trust store %s", TLS_TRUST_STORE), e);
+                    throw new AuthenticationServiceException("Failed to initialize TLS", e);
+                }
+            }
+            return tlsContext;
+        }
+    }
+    
+    /**
+     * Returns TLS statistics for the status page.
+     * 
+     * @return TLS settings shared by connections. null if no TLS connection is made yet.
+     */
+    @CheckForNull
+    public LdapTlsContext getTlsStatistics()
+    {
+        return tlsContext;
+    }
+    
+    /**
+     * Opens a connection to the LDAP server.
+     * 
+     * Connections to LDAPS use {@link #getTlsContext()},
+     * and TLS is started before returning if StartTLS is configured.
+     * 
+     * @param env parameters for JNDI.
+     * @param description describes the connection in leak reports.
+     * @return the connection.
+     * @throws NamingException failed to connect.
+     */
+    private LdapContext openContext(Hashtable<String, Object> env, String description) throws NamingException
+    {
+        String ldapUri = (String)env.get(Context.PROVIDER_URL);
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(!configuration.isTlsRequired(ldapUri))
+        {
+            return LdapResourceTracker.manage(new InitialLdapContext(env, null), description);
+        }
+        
+        LdapTlsContext tls = getTlsContext();
+        LdapContext ctx;
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        try
+        {
+            // JNDI loads the socket factory with the context class loader.
+            thread.setContextClassLoader(getClass().getClassLoader());
+            LdapSslSocketFactory.use(tls);
+            ctx = LdapResourceTracker.manage(new InitialLdapContext(env, null), description);
+        }
+        finally
+        {
+            LdapSslSocketFactory.use(null);
+            thread.setContextClassLoader(contextClassLoader);
+        }
+        
+        if(!configuration.isStartTlsRequired(ldapUri))
+        {
+            return ctx;
+        }
+        
+        boolean succeeded = false;
+        try
+        {
+            StartTlsResponse response = (StartTlsResponse)ctx.extendedOperation(new StartTlsRequest());
+            response.negotiate(tls.getSocketFactory());
+            succeeded = true;
+            return ctx;
+        }
+        catch(IOException e)
+        {
+            CommunicationException ce = new CommunicationException(String.format("Failed to start TLS with %s", ldapUri));
+            ce.setRootCause(e);
+            throw ce;
+        }
+        finally
+        {
+            if(!succeeded)
+            {
+                LdapResourceTracker.closeQuietly(ctx);
+            }
+        }
+    }
+    
+    /**
+     * Binds the connection opened anonymously as the user.
+     * 
+     * The bind request is sent over the same connection.
+     * 
+     * @param ctx the connection.
+     * @param username
+     * @param password
+     * @param mechanisms
+     * @throws NamingException failed to bind.
+     */
+    private static void bindContext(LdapContext ctx, String username, String password, String mechanisms) throws NamingException
+    {
+        ctx.addToEnvironment(Context.SECURITY_PRINCIPAL, username);
+        ctx.addToEnvironment(Context.SECURITY_CREDENTIALS, password);
+        ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, mechanisms);
+        ctx.reconnect(null);
+    }
+    
+    /**
+     * Binds the connection back to the service identity,
+     * that is {@link #getQueryUser()} if specified, or anonymous.
+     * 
+     * @param ctx the connection.
+     * @throws NamingException failed to bind.
+     */
+    private void resetContext(LdapContext ctx) throws NamingException
+    {
+        if(!StringUtils.isBlank(getQueryUser()) && getQueryPassword() != null)
+        {
+            bindContext(ctx, getQueryUser(), getQueryPassword(), getConfiguration().getMechanisms());
+            return;
+        }
+        ctx.removeFromEnvironment(Context.SECURITY_PRINCIPAL);
+        ctx.removeFromEnvironment(Context.SECURITY_CREDENTIALS);
+        ctx.addToEnvironment(Context.SECURITY_AUTHENTICATION, "none");
+        ctx.reconnect(null);
+    }
+    
+    /**
+     * Returns states of LDAP servers, including the health and the concurrency.
+     * 
+     * Used in the status page.
+     * 
+     * @return states of LDAP servers in the configured order.
+     */
+    public List<LdapServerSelector.ServerState> getServerStates()
+    {
+        return getServerSelector().getServers();
+    }
+    
+    /**
+     * Tests whether the LDAP server is available, connecting anonymously.
+     * 
+     * @param ldapUri the URI of the LDAP server.
+     * @return whether the LDAP server is available.
+     */
+    private boolean probeLdap(String ldapUri)
+    {
+        Hashtable<String, Object> env = getConfiguration().newEnvironment(ldapUri);
+        env.put(Context.SECURITY_AUTHENTICATION, "none");
+        LdapContext ctx = null;
+        try
+        {
+            ctx = openContext(env, String.format("LDAP connection to probe %s", ldapUri));
+            return true;
+        }
+        catch(NamingException e)
+        {
+            LOGGER.log(Level.FINE, String.format("LDAP server %s is still unavailable", ldapUri), e);
+            return false;
+        }
+        finally
+        {
+            LdapResourceTracker.closeQuietly(ctx);
+        }
+    }
+    
+    /**
+     * Connects to the ldap with specified userinfo.
+     * 
+     * @param username
+     * @param password
+     * @return
+     */
+    private LdapContext connectToLdap(String username, String password)
+            throws AuthenticationException
+    {
+        return connectToLdap(username, password, Deadline.unlimited());
+    }
+    
+    /**
+     * Connects to the ldap with specified userinfo.
+     * 
+     * @param username null to connect anonymously.
+     * @param password
+     * @param deadline timeouts are shortened not to exceed this.
+     * @return
+     */
+    private LdapContext connectToLdap(String username, String password, Deadline deadline)
+            throws AuthenticationException
+    {
+        // check configuration.
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(configuration.getLdapUris().isEmpty())
+        {
+            LOGGER.severe("No valid LDAP URI is specified.");
+            throw new AuthenticationServiceException("No valid LDAP URI is specified.");
+        }
+        
+        String mechanisms = configuration.getMechanisms();
+        if(StringUtils.isBlank(mechanisms))
+        {
+            LOGGER.severe("No valid mechanism is specified.");
+            throw new AuthenticationServiceException("No valid mechanism is specified.");
+        }
+        
+        LdapServerSelector selector = getServerSelector();
+        List<LdapServerSelector.ServerState> servers = selector.select();
+        
+        LOGGER.fine("Authenticating with LDAP-SASL:");
+        LOGGER.fine(String.format("username=%s", username));
+        LOGGER.fine(String.format("servers=%s", servers));
+        LOGGER.fine(String.format("mech=%s", mechanisms));
+        
+        if(CONNECT_RACE_WIDTH > 1 && servers.size() > 1)
+        {
+            return raceToLdap(servers, username, password, deadline);
+        }
+        
+        NamingException lastFailure = null;
+        LdapBulkhead.RejectedException lastRejection = null;
+        for(LdapServerSelector.ServerState server: servers)
+        {
+            deadline.check(String.format("connecting to %s", server.getUri()));
+            
+            try
+            {
+                server.getBulkhead().acquire(deadline);
+            }
+            catch(LdapBulkhead.RejectedException e)
+            {
+                // Try the next server.
+                LOGGER.fine(String.format("Request is rejected: %s", e.getMessage()));
+                lastRejection = e;
+                continue;
+            }
+            
+            // Parameters for JNDI
+            Hashtable<String, Object> env = newEnvironment(server, deadline);
+            boolean startTls = configuration.isStartTlsRequired(server.getUri());
+            if(username == null || startTls)
+            {
+                // bind after TLS is started, or not bind.
+                env.put(Context.SECURITY_AUTHENTICATION, "none");
+            }
+            else
+            {
+                env.put(Context.SECURITY_PRINCIPAL, username);
+                env.put(Context.SECURITY_CREDENTIALS, password);
+                env.put(Context.SECURITY_AUTHENTICATION, mechanisms);
+            }
+            
+            long start = System.currentTimeMillis();
+            LdapContext ctx = null;
+            boolean succeeded = false;
+            try
+            {
+                ctx = openContext(env, String.format("LDAP connection for %s", username));
+                if(username != null && startTls)
+                {
+                    bindContext(ctx, username, password, mechanisms);
+                }
+                selector.recordSuccess(server, System.currentTimeMillis() - start);
+                succeeded = true;
+                return ctx;
+            }
+            catch(javax.naming.AuthenticationException e)
+            {
+                // Authentication Failure...
+                selector.recordSuccess(server, System.currentTimeMillis() - start);
+                throw new BadCredentialsException(String.format("Authentication failed: %s", username), e);
+            }
+            catch(NamingSecurityException e)
+            {
+                // The server responded, but the configuration is not acceptable.
+                selector.recordSuccess(server, System.currentTimeMillis() - start);
+                throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+            }
+            catch(NamingException e)
+            {
+                // Try the next server.
+                selector.recordFailure(server);
+                LOGGER.log(Level.WARNING, String.format("Failed to connect to %s", server.getUri()), e);
+                lastFailure = e;
+            }
+            finally
+            {
+                server.getBulkhead().release();
+                if(!succeeded)
+                {
+                    LdapResourceTracker.closeQuietly(ctx);
+                }
+            }
+        }
+        
+        if(lastFailure == null && lastRejection != null)
+        {
+            // All servers are busy.
+            LOGGER.warning(String.format("Authentication is rejected as LDAP servers are busy: %s", username));
+            throw lastRejection;
+        }
+        
+        // Unexpected failure...
+        throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), lastFailure);
+    }
+    
+    /**
+     * Builds parameters for JNDI to connect to the server.
+     * 
+     * @param server
+     * @param deadline timeouts are shortened not to exceed this.
+     * @return parameters without credentials.
+     */
+    private Hashtable<String, Object> newEnvironment(LdapServerSelector.ServerState server, Deadline deadline)
+    {
+        Hashtable<String, Object> env = getConfiguration().newEnvironment(server.getUri());
+        if(!deadline.isUnlimited())
+        {
+            env.put("com.sun.jndi.ldap.connect.timeout", Integer.toString(deadline.bound(getConnectionTimeout())));
+            env.put("com.sun.jndi.ldap.read.timeout", Integer.toString(deadline.bound(getReadTimeout())));
+        }
+        return env;
+    }
+    
+    /**
+     * Connects to servers in parallel, and binds with the connection established first.
+     * 
+     * Connections are opened without binding,
+     * so that a wrong password is not counted for each server.
+     * 
+     * @param servers servers in the preferred order.
+     * @param username
+     * @param password
+     * @param deadline
+     * @return
+     */
+    private LdapContext raceToLdap(
+            List<LdapServerSelector.ServerState> servers,
+            String username,
+            String password,
+            final Deadline deadline
+    ) throws AuthenticationException
+    {
+        final LdapServerSelector selector = getServerSelector();
+        LdapConnectionRacer racer = new LdapConnectionRacer(
+                LdapSaslExecutors.getConnectExecutor(),
+                CONNECT_RACE_WIDTH,
+                CONNECT_RACE_STAGGER
+        );
+        final String description = String.format("LDAP connection for %s", username);
+        LdapConnectionRacer.Winner winner;
+        try
+        {
+            winner = racer.race(servers, new LdapConnectionRacer.Connector()
+            {
+                public LdapContext connect(LdapServerSelector.ServerState server) throws NamingException
+                {
+                    Hashtable<String, Object> env = newEnvironment(server, deadline);
+                    env.put(Context.SECURITY_AUTHENTICATION, "none");
+                    
+                    server.getBulkhead().acquire(deadline);
+                    long start = System.currentTimeMillis();
+                    try
+                    {
+                        LdapContext ctx = openContext(env, description);
+                        selector.recordSuccess(server, System.currentTimeMillis() - start);
+                        return ctx;
+                    }
+                    catch(NamingException e)
+                    {
+                        selector.recordFailure(server);
+                        throw e;
+                    }
+                    finally
+                    {
+                        server.getBulkhead().release();
+                    }
+                }
+            }, deadline);
+        }
+        catch(NamingException e)
+        {
+            // Unexpected failure...
+            LOGGER.log(Level.WARNING, "Failed to connect to any of LDAP servers", e);
+            throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+        }
+        
+        // Bind with the connection won.
+        LdapContext ctx = winner.ctx;
+        LdapServerSelector.ServerState server = winner.server;
+        boolean succeeded = false;
+        try
+        {
+            deadline.check(String.format("binding to %s", server.getUri()));
+            server.getBulkhead().acquire(deadline);
+        }
+        catch(RuntimeException e)
+        {
+            LdapResourceTracker.closeQuietly(ctx);
+            throw e;
+        }
+        try
+        {
+            if(username != null)
+            {
+                bindContext(ctx, username, password, getConfiguration().getMechanisms());
+            }
+            succeeded = true;
+            return ctx;
+        }
+        catch(javax.naming.AuthenticationException e)
+        {
+            // Authentication Failure...
+            throw new BadCredentialsException(String.format("Authentication failed: %s", username), e);
+        }
+        catch(NamingSecurityException e)
+        {
+            // The server responded, but the configuration is not acceptable.
+            throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+        }
+        catch(NamingException e)
+        {
+            // Unexpected failure...
+            selector.recordFailure(server);
+            LOGGER.log(Level.WARNING, String.format("Failed to bind to %s", server.getUri()), e);
+            throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+        }
+        finally
+        {
+            server.getBulkhead().release();
+            if(!succeeded)
+            {
+                LdapResourceTracker.closeQuietly(ctx);
+            }
+        }
+    }
+    
+    /**
+     * Waits for the turn of a search with the bulkhead of the server the context connects to.
+     * 
+     * @param ctx
+     * @param deadline gives up waiting at this.
+     * @return the bulkhead to release after the search. null if not applicable.
+     * @throws LdapBulkhead.RejectedException too many requests to the server, or timed out.
+     */
+    @CheckForNull
+    private LdapBulkhead admitSearch(LdapContext ctx, Deadline deadline) throws LdapBulkhead.RejectedException
+    {
+        LdapServerSelector.ServerState server = getServerState(ctx);
+        if(server == null)
+        {
+            return null;
+        }
+        server.getBulkhead().acquire(deadline);
+        return server.getBulkhead();
+    }
+    
+    /**
+     * @param ctx
+     * @return the state of the server the context is connected to. null if unknown.
+     */
+    @CheckForNull
+    private LdapServerSelector.ServerState getServerState(LdapContext ctx)
+    {
+        Object uri;
+        try
+        {
+            uri = ctx.getEnvironment().get(Context.PROVIDER_URL);
+        }
+        catch(NamingException e)
+        {
+            return null;
+        }
+        return (uri != null)?getServerSelector().getServer(uri.toString()):null;
+    }
+    
+    /**
+     * @return a new search with the page size and the budget configured.
+     */
+    private LdapPagedSearch newPagedSearch()
+    {
+        return new LdapPagedSearch(SEARCH_PAGE_SIZE, SEARCH_SIZE_LIMIT, SEARCH_TIME_LIMIT);
+    }
+    
+    @CheckForNull
+    protected String resolveUserDn(LdapContext ctx, String username)
+    {
+        UserEntry user = findUser(ctx, username, false, Deadline.unlimited());
+        return (user != null)?user.dn:null;
+    }
+    
+    /**
+     * The entry of a user found.
+     */
+    private static class UserEntry
+    {
+        public final String dn;
+        /**
+         * DNs in the membership attribute. null if not configured.
+         */
+        public final List<String> groupDns;
+        
+        public UserEntry(String dn, List<String> groupDns)
+        {
+            this.dn = dn;
+            this.groupDns = groupDns;
+        }
+    }
+    
+    /**
+     * Finds the user from the DN template, with "Who am I?", or by searching.
+     * 
+     * The DN template replaces the search:
+     * the entry at the DN built from the template is read with a base-scope search
+     * with the user query (or any entry if the query is not configured),
+     * and the user is not searched even if no entry matches.
+     * 
+     * @param ctx
+     * @param username
+     * @param bound whether ctx is bound as the user.
+     * @param deadline gives up waiting for the turn of searches at this.
+     * @return the user found. null if not found, or not configured.
+     */
+    @CheckForNull
+    private UserEntry findUser(LdapContext ctx, String username, boolean bound, Deadline deadline)
+    {
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(bound && configuration.isUserQueryEnabled())
+        {
+            UserEntry user = findBoundUser(ctx, username, deadline);
+            if(user != null)
+            {
+                return user;
+            }
+        }
+        String dn = configuration.getUserDn(username);
+        if(dn == null)
+        {
+            return searchUser(ctx, username, deadline);
+        }
+        return readUser(
+                ctx,
+                dn,
+                configuration.isUserQueryEnabled()?configuration.getUserQuery(username):"(objectClass=*)",
+                username,
+                deadline
+        );
+    }
+    
+    /**
+     * Finds the user bound to the context with "Who am I?".
+     * 
+     * The DN is trusted only when it is under the user search base
+     * and the entry matches the user query,
+     * just like users found by searching.
+     * 
+     * @param ctx the context bound as the user.
+     * @param username
+     * @param deadline gives up waiting for the turn of searches at this.
+     * @return the user found. null if not supported, or not verified.
+     */
+    @CheckForNull
+    private UserEntry findBoundUser(LdapContext ctx, String username, Deadline deadline)
+    {
+        String dn = whoAmI(ctx);
+        if(dn == null)
+        {
+            return null;
+        }
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(!isUnder(dn, configuration.getUserSearchBase()))
+        {
+            LOGGER.fine(String.format("Who am I: %s is not under %s", dn, configuration.getUserSearchBase()));
+            return null;
+        }
+        return readUser(ctx, dn, configuration.getUserQuery(username), username, deadline);
+    }
+    
+    /**
+     * @param dn
+     * @param base
+     * @return whether dn is base or under base.
+     */
+    private static boolean isUnder(String dn, String base)
+    {
+        try
+        {
+            return new LdapName(dn).startsWith(new LdapName(base));
+        }
+        catch(InvalidNameException e)
+        {
+            return false;
+        }
+    }
+    
+    /**
+     * Asks the DN of the user bound to the context with "Who am I?" (RFC 4532).
+     * 
+     * @param ctx
+     * @return the DN of the bound user. null if not supported, or failed.
+     */
+    @CheckForNull
+    private String whoAmI(LdapContext ctx)
+    {
+        if(!isWhoAmISupported(ctx))
+        {
+            return null;
+        }
+        try
+        {
+            LdapWhoAmIRequest.Response response = (LdapWhoAmIRequest.Response)ctx.extendedOperation(new LdapWhoAmIRequest());
+            LOGGER.fine(String.format("Who am I: %s", response.getAuthzId()));
+            return response.getDn();
+        }
+        catch(NamingException e)
+        {
+            // e.g. denied by access controls.
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.FINE, "Failed in \"Who am I?\"", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Tests whether the server advertises "Who am I?".
+     * 
+     * Remembered for each server, as servers may differ in capabilities.
+     * 
+     * @param ctx
+     * @return whether the server advertises "Who am I?".
+     */
+    private boolean isWhoAmISupported(LdapContext ctx)
+    {
+        if(!USE_WHO_AM_I)
+        {
+            return false;
+        }
+        LdapServerSelector.ServerState server = getServerState(ctx);
+        Boolean supported = (server != null)?server.getWhoAmISupported():null;
+        if(supported != null)
+        {
+            return supported;
+        }
+        try
+        {
+            Attribute extensions = ctx.getAttributes("", new String[]{"supportedExtension"}).get("supportedExtension");
+            supported = (extensions != null && extensions.contains(LdapWhoAmIRequest.OID));
+            LOGGER.fine(String.format(
+                    "\"Who am I?\" is %s by %s",
+                    supported?"supported":"not supported",
+                    (server != null)?server.getUri():"the server"
+            ));
+            if(server != null)
+            {
+                server.setWhoAmISupported(supported);
+            }
+            return supported;
+        }
+        catch(NamingException e)
+        {
+            // try again later.
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.FINE, "Failed to read extensions of the server", e);
+            return false;
+        }
+    }
+    
+    /**
+     * Reads the entry of the user at the DN.
+     * 
+     * @param ctx
+     * @param dn
+     * @param filter the entry must match this.
+     * @param username
+     * @param deadline gives up waiting for the turn of searches at this.
+     * @return the user read. null if no entry, or not matching.
+     */
+    @CheckForNull
+    private UserEntry readUser(LdapContext ctx, String dn, String filter, String username, Deadline deadline)
+    {
+        try
+        {
+            LOGGER.fine(String.format("Reading the user %s with %s", dn, filter));
+            return searchUser(ctx, dn, filter, getConfiguration().getUserReadControls(), username, deadline);
+        }
+        catch(NameNotFoundException e)
+        {
+            LOGGER.fine(String.format("User %s not found at %s", username, dn));
+        }
+        catch(NamingException e)
+        {
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.WARNING, String.format("Failed to read user %s", dn), e);
+        }
+        return null;
+    }
+    
+    /**
+     * Searches the user.
+     * 
+     * @param ctx
+     * @param username
+     * @param deadline gives up waiting for the turn of searches at this.
+     * @return the user found. null if not found, more than one found, or not configured.
+     */
+    @CheckForNull
+    private UserEntry searchUser(LdapContext ctx, String username, Deadline deadline)
+    {
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(!configuration.isUserQueryEnabled())
+        {
+            // not configured.
+            LOGGER.fine("Disabled resolving user DN as not configured.");
+            
+            return null;
+        }
+        
+        try
+        {
+            String query = configuration.getUserQuery(username);
+            LOGGER.fine(String.format("Searching users base=%s, query=%s", configuration.getUserSearchBase(), query));
+            return searchUser(ctx, configuration.getUserSearchBase(), query, configuration.getUserSearchControls(), username, deadline);
+        }
+        catch(NamingException e)
+        {
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.SEVERE, String.format("Failed to search user %s", username), e);
+        }
+        return null;
+    }
+    
+    /**
+     * Searches the user with the query.
+     * 
+     * @param ctx
+     * @param base
+     * @param query
+     * @param controls
+     * @param username
+     * @param deadline gives up waiting for the turn of searches at this.
+     * @return the user found. null if not found, or more than one found.
+     * @throws NamingException
+     */
+    @CheckForNull
+    private UserEntry searchUser(
+            LdapContext ctx,
+            String base,
+            String query,
+            SearchControls controls,
+            String username,
+            Deadline deadline
+    ) throws NamingException
+    {
+        final String membershipAttribute = getConfiguration().getGroupMembershipAttribute();
+        final List<UserEntry> users = new ArrayList<UserEntry>(2);
+        LdapBulkhead bulkhead = admitSearch(ctx, deadline);
+        try
+        {
+            newPagedSearch().search(
+                    ctx,
+                    base,
+                    query,
+                    null,
+                    controls,
+                    new LdapPagedSearch.Handler()
+                    {
+                        public boolean handle(SearchResult entry) throws NamingException
+                        {
+                            List<String> groupDns = null;
+                            if(membershipAttribute != null)
+                            {
+                                groupDns = new ArrayList<String>();
+                                Attribute attr = entry.getAttributes().get(membershipAttribute);
+                                for(int i = 0; attr != null && i < attr.size(); ++i)
+                                {
+                                    groupDns.add(attr.get(i).toString());
+                                }
+                            }
+                            users.add(new UserEntry(entry.getNameInNamespace(), groupDns));
+                            // enough to know there are more than one.
+                            return users.size() < 2;
+                        }
+                    }
+            );
+        }
+        finally
+        {
+            if(bulkhead != null)
+            {
+                bulkhead.release();
+            }
+        }
+        if(users.isEmpty())
+        {
+            // no entry.
+            LOGGER.warning(String.format("User not found: %s", username));
+            return null;
+        }
+        
+        if(users.size() > 1)
+        {
+            // more than one entry.
+            LOGGER.warning(String.format("User found more than one: %s", username));
+            return null;
+        }
+        
+        return users.get(0);
+    }
+    
+    
+    /**
+     * Resolves groups by querying the LDAP directory. 
+     * 
+     * Never return null in any case. Returns empty list instead.
+     * 
+     * @param ctx
+     * @param dn
+     * @return List of authorities (not null)
+     * @throws DataRetrievalFailureException rejected by the bulkhead of the server.
+     */
+    @Nonnull
+    protected List<GrantedAuthority> resolveGroup(LdapContext ctx, String dn)
+    {
+        try
+        {
+            return resolveGroup(ctx, dn, false);
+        }
+        catch(LdapBulkhead.RejectedException e)
+        {
+            throw new DataRetrievalFailureException(String.format("Failed to resolve groups of %s", dn), e);
+        }
+    }
+    
+    /**
+     * Resolves groups of the user, using the cache.
+     * 
+     * @param ctx
+     * @param dn the DN of the user.
+     * @param reload whether to search groups ignoring the cache.
+     * @return groups of the user.
+     */
+    private List<GrantedAuthority> resolveGroup(final LdapContext ctx, final String dn, boolean reload)
+    {
+        return resolveGroup(ctx, dn, null, reload, null, Deadline.unlimited());
+    }
+    
+    /**
+     * Resolves groups of the user, using the cache.
+     * 
+     * The cache is shared among threads, and a load is shared by all threads waiting for it.
+     * Groups are loaded into the shared entry only with connections of the query user,
+     * and never with connections bound as a user logging in,
+     * as such a user may see groups other users don't.
+     * Without the query user, or if the query user fails to load them,
+     * groups are searched with ctx and cached for each user bound.
+     * 
+     * @param ctx
+     * @param dn the DN of the user.
+     * @param groupDns DNs in the membership attribute of the user. null if not available.
+     * @param reload whether to search groups ignoring the cache.
+     * @param boundUser the user ctx is bound as. null if ctx is bound as the query user.
+     * @param deadline gives up waiting for loads by other threads at this.
+     *     Waits for {@link #SEARCH_TIME_LIMIT} if unlimited.
+     * @return groups of the user.
+     * @throws DataRetrievalFailureException timed out to wait for loads by other threads.
+     */
+    private List<GrantedAuthority> resolveGroup(
+            final LdapContext ctx,
+            final String dn,
+            @CheckForNull List<String> groupDns,
+            boolean reload,
+            @CheckForNull String boundUser,
+            Deadline deadline
+    )
+    {
+        Deadline waitDeadline = deadline.isUnlimited()?Deadline.after(SEARCH_TIME_LIMIT):deadline;
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
         
-        LdapContext ctx = null;
+        if(dn == null)
+        {
+            LOGGER.fine("Group cannot be resolved: DN of the user is not resolved!");
+            return authorities;
+        }
+        
+        final LdapGroupIndex index = getGroupIndex();
+        List<LdapNestedGroupResolver.Group> indexed = (index != null)?index.getGroups(dn):null;
+        if(indexed != null)
+        {
+            if(NESTED_GROUP_DEPTH > 0)
+            {
+                indexed = new LdapNestedGroupResolver(NESTED_GROUP_DEPTH, 1, null, null).expand(
+                        indexed,
+                        new LdapNestedGroupResolver.ParentSearcher()
+                        {
+                            public List<LdapNestedGroupResolver.Group> searchParents(String groupDn)
+                            {
+                                return index.getGroups(groupDn);
+                            }
+                        }
+                );
+            }
+            authorities.addAll(toAuthorities(indexed));
+            return authorities;
+        }
+        
+        if(groupDns != null && !(NESTED_GROUP_DEPTH > 0 && isChainingSupported(ctx)))
+        {
+            authorities.addAll(toAuthorities(resolveGroupMembership(ctx, groupDns, waitDeadline)));
+            return authorities;
+        }
+        
+        // search groups until loaded.
+        LdapCache.Loader<String, List<GrantedAuthority>> refresher = getGroupRefresher(dn);
+        if(boundUser != null && refresher != null)
+        {
+            // never load shared groups as the user.
+            try
+            {
+                List<GrantedAuthority> groups = loadGroups(getGroupCacheKey(dn, null), refresher, null, reload, waitDeadline);
+                if(groups != null)
+                {
+                    authorities.addAll(groups);
+                    return authorities;
+                }
+                LOGGER.warning(String.format("Failed to search groups of %s as the query user. Searching as the user.", dn));
+            }
+            catch(AuthenticationException e)
+            {
+                // failures of the query user are not the user's.
+                LOGGER.log(Level.WARNING, String.format("Failed to load groups of %s as the query user. Searching as the user.", dn), e);
+            }
+            catch(DataAccessException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("Failed to load groups of %s as the query user. Searching as the user.", dn), e);
+            }
+        }
+        
+        List<GrantedAuthority> groups = loadGroups(
+                getGroupCacheKey(dn, boundUser),
+                new LdapCache.Loader<String, List<GrantedAuthority>>()
+                {
+                    public List<GrantedAuthority> load(String key)
+                    {
+                        return searchGroups(ctx, dn);
+                    }
+                },
+                (boundUser == null)?refresher:null,
+                reload,
+                waitDeadline
+        );
+        if(groups != null)
+        {
+            authorities.addAll(groups);
+        }
+        return authorities;
+    }
+    
+    /**
+     * Loads groups into the group cache.
+     * 
+     * @param key the key in the group cache.
+     * @param loader
+     * @param refresher reloads groups in background. null not to reload.
+     * @param reload whether to load groups ignoring the cache.
+     * @param deadline gives up waiting for loads by other threads at this.
+     * @return groups of the user. null if failed.
+     */
+    private List<GrantedAuthority> loadGroups(
+            String key,
+            LdapCache.Loader<String, List<GrantedAuthority>> loader,
+            @CheckForNull LdapCache.Loader<String, List<GrantedAuthority>> refresher,
+            boolean reload,
+            Deadline deadline
+    )
+    {
+        if(!reload)
+        {
+            return getGroupCache().get(key, loader, refresher, deadline);
+        }
+        List<GrantedAuthority> groups = loader.load(key);
+        if(groups != null)
+        {
+            getGroupCache().put(key, groups);
+        }
+        return groups;
+    }
+    
+    /**
+     * @param dn the DN of the user.
+     * @param boundUser the user groups are searched as. null for the query user.
+     * @return the key in the group cache.
+     */
+    private static String getGroupCacheKey(String dn, @CheckForNull String boundUser)
+    {
+        String key = normalizeDn(dn);
+        return (boundUser != null)?String.format("%s\n%s", key, normalizeUsername(boundUser)):key;
+    }
+    
+    /**
+     * Returns the loader to reload groups of the user in background.
+     * 
+     * Uses connections of the query user, as the connection used for the login is closed.
+     * 
+     * @param dn the DN of the user.
+     * @return the loader. null if the query user is not configured.
+     */
+    @CheckForNull
+    private LdapCache.Loader<String, List<GrantedAuthority>> getGroupRefresher(final String dn)
+    {
+        if(StringUtils.isBlank(getQueryUser()) || getQueryPassword() == null)
+        {
+            return null;
+        }
+        return new LdapCache.Loader<String, List<GrantedAuthority>>()
+        {
+            public List<GrantedAuthority> load(String key)
+            {
+                LdapContextPool.Lease lease = getQueryContextPool().borrow();
+                try
+                {
+                    return searchGroups(lease.getContext(), dn);
+                }
+                finally
+                {
+                    lease.close();
+                }
+            }
+        };
+    }
+    
+    /**
+     * Searches groups of the user.
+     * 
+     * @param ctx
+     * @param dn the DN of the user.
+     * @return groups of the user. null if failed.
+     */
+    @CheckForNull
+    private List<GrantedAuthority> searchGroups(final LdapContext ctx, String dn)
+    {
+        List<LdapNestedGroupResolver.Group> groups;
+        if(NESTED_GROUP_DEPTH > 0 && isChainingSupported(ctx))
+        {
+            // the server expands nested groups.
+            groups = searchGroupEntries(ctx, CHAINED_GROUP_SEARCH_QUERY, new Object[]{ dn }, dn);
+        }
+        else
+        {
+            groups = searchGroupEntries(ctx, getGroupSearchQuery(dn), null, dn);
+            if(groups != null)
+            {
+                groups = expandNestedGroups(ctx, groups);
+            }
+        }
+        return (groups != null)?Collections.unmodifiableList(toAuthorities(groups)):null;
+    }
+    
+    /**
+     * Adds groups the groups belong to, if configured.
+     * 
+     * @param ctx
+     * @param groups groups the user directly belongs to.
+     * @return groups including nested ones.
+     */
+    private List<LdapNestedGroupResolver.Group> expandNestedGroups(final LdapContext ctx, List<LdapNestedGroupResolver.Group> groups)
+    {
+        if(NESTED_GROUP_DEPTH <= 0)
+        {
+            return groups;
+        }
+        // connections of the query user are required to search in parallel.
+        final boolean pooled = !StringUtils.isBlank(getQueryUser()) && getQueryPassword() != null;
+        return new LdapNestedGroupResolver(
+                NESTED_GROUP_DEPTH,
+                pooled?NESTED_GROUP_PARALLELISM:1,
+                getParentGroupCache(),
+                pooled?LdapSaslExecutors.getSearchExecutor():null
+        ).expand(groups, new LdapNestedGroupResolver.ParentSearcher()
+        {
+            public List<LdapNestedGroupResolver.Group> searchParents(String groupDn)
+            {
+                if(!pooled)
+                {
+                    return searchGroupEntries(ctx, getGroupSearchQuery(groupDn), null, groupDn);
+                }
+                LdapContextPool.Lease lease = getQueryContextPool().borrow();
+                try
+                {
+                    return searchGroupEntries(lease.getContext(), getGroupSearchQuery(groupDn), null, groupDn);
+                }
+                finally
+                {
+                    lease.close();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Resolves groups from DNs in the membership attribute of the user entry.
+     * 
+     * Groups not under the group search base are ignored.
+     * 
+     * @param ctx
+     * @param groupDns DNs of groups the user belongs to.
+     * @param deadline gives up waiting for loads by other threads at this.
+     * @return groups of the user.
+     */
+    private List<LdapNestedGroupResolver.Group> resolveGroupMembership(final LdapContext ctx, List<String> groupDns, Deadline deadline)
+    {
+        String base = normalizeDn(getConfiguration().getGroupSearchBase());
+        LdapCache<String, String> cache = getGroupNameCache();
+        List<LdapNestedGroupResolver.Group> groups = new ArrayList<LdapNestedGroupResolver.Group>(groupDns.size());
+        for(final String groupDn: groupDns)
+        {
+            String key = normalizeDn(groupDn);
+            if(!base.isEmpty() && !key.equals(base) && !key.endsWith("," + base))
+            {
+                continue;
+            }
+            String name = cache.get(
+                    key,
+                    new LdapCache.Loader<String, String>()
+                    {
+                        public String load(String key)
+                        {
+                            return readGroupName(ctx, groupDn);
+                        }
+                    },
+                    null,
+                    deadline
+            );
+            if(name != null)
+            {
+                groups.add(new LdapNestedGroupResolver.Group(groupDn, name));
+            }
+        }
+        return expandNestedGroups(ctx, groups);
+    }
+    
+    /**
+     * Returns cn of the group.
+     * 
+     * Taken from the DN if the RDN is cn, and read from the entry otherwise.
+     * 
+     * @param ctx
+     * @param groupDn
+     * @return cn of the group. null if not available.
+     */
+    @CheckForNull
+    private String readGroupName(LdapContext ctx, String groupDn)
+    {
         try
         {
-            ctx = new InitialLdapContext(env,null);
+            List<Rdn> rdns = new LdapName(groupDn).getRdns();
+            if(!rdns.isEmpty() && "cn".equalsIgnoreCase(rdns.get(rdns.size() - 1).getType()))
+            {
+                return rdns.get(rdns.size() - 1).getValue().toString();
+            }
+            Attribute cn = ctx.getAttributes(groupDn, new String[]{"cn"}).get("cn");
+            return (cn != null && cn.get() != null)?cn.get().toString():null;
         }
-        catch(javax.naming.AuthenticationException e)
+        catch(NamingException e)
         {
-            // Authentication Failure...
-            throw new BadCredentialsException(String.format("Authentication failed: %s", username), e);
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.WARNING, String.format("Failed to read the name of the group %s", groupDn), e);
+            return null;
+        }
+    }
+    
+    /**
+     * @param groups
+     * @return authorities for groups, with the prefix.
+     */
+    private List<GrantedAuthority> toAuthorities(List<LdapNestedGroupResolver.Group> groups)
+    {
+        String prefix = getConfiguration().getGroupPrefix();
+        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>(groups.size());
+        for(LdapNestedGroupResolver.Group group: groups)
+        {
+            String groupName = group.getName();
+            if(prefix != null)
+            {
+                groupName = prefix + groupName;
+            }
+            authorities.add(new GrantedAuthorityImpl(groupName));
+            LOGGER.fine(String.format("group: %s", groupName));
+        }
+        return authorities;
+    }
+    
+    /**
+     * Searches groups.
+     * 
+     * @param ctx
+     * @param filter
+     * @param filterArgs
+     * @param dn the DN of the member, used in logs.
+     * @return groups found. null if failed.
+     */
+    @CheckForNull
+    private List<LdapNestedGroupResolver.Group> searchGroupEntries(LdapContext ctx, String filter, Object[] filterArgs, String dn)
+    {
+        final List<LdapNestedGroupResolver.Group> groups = new ArrayList<LdapNestedGroupResolver.Group>();
+        LdapRealmConfiguration configuration = getConfiguration();
+        // shared by loads in the cache, so not bounded by the deadline of a caller.
+        LdapBulkhead bulkhead = admitSearch(ctx, Deadline.unlimited());
+        try
+        {
+            LOGGER.fine(String.format("Searching groups base=%s, dn=%s", configuration.getGroupSearchBase(), dn));
+            newPagedSearch().search(
+                    ctx,
+                    configuration.getGroupSearchBase(),
+                    filter,
+                    filterArgs,
+                    configuration.getGroupSearchControls(),
+                    new LdapPagedSearch.Handler()
+                    {
+                        public boolean handle(SearchResult entry) throws NamingException
+                        {
+                            groups.add(new LdapNestedGroupResolver.Group(
+                                    entry.getNameInNamespace(),
+                                    entry.getAttributes().get("cn").get().toString()
+                            ));
+                            return true;
+                        }
+                    }
+            );
+        }
+        catch(SizeLimitExceededException e)
+        {
+            // use groups found.
+            LOGGER.warning(String.format("Found more than %d groups for %s. The rest are ignored.", SEARCH_SIZE_LIMIT, dn));
         }
         catch(NamingException e)
         {
-            // Unexpected failure...
-            throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.WARNING, String.format("Failed to search groups for %s", dn), e);
+            return null;
+        }
+        finally
+        {
+            if(bulkhead != null)
+            {
+                bulkhead.release();
+            }
+        }
+        return groups;
+    }
+    
+    /**
+     * Tests whether the server expands nested groups with {@link #CHAINED_GROUP_SEARCH_QUERY}.
+     * 
+     * Detected only once, assuming all servers of the realm are the same kind.
+     * 
+     * @param ctx
+     * @return whether supported.
+     */
+    private boolean isChainingSupported(LdapContext ctx)
+    {
+        if(!NESTED_GROUP_CHAINING)
+        {
+            return false;
+        }
+        Boolean supported = chainingSupported;
+        if(supported != null)
+        {
+            return supported;
+        }
+        try
+        {
+            Attribute capabilities = ctx.getAttributes("", new String[]{"supportedCapabilities"}).get("supportedCapabilities");
+            supported = (capabilities != null && capabilities.contains(ACTIVE_DIRECTORY_CAPABILITY));
+            LOGGER.fine(String.format("Matching rule to search nested groups is %s", supported?"supported":"not supported"));
+            chainingSupported = supported;
+            return supported;
+        }
+        catch(NamingException e)
+        {
+            // try again later.
+            LdapContextPool.recordFailure(ctx, e);
+            LOGGER.log(Level.FINE, "Failed to read capabilities of the server", e);
+            return false;
+        }
+    }
+    
+    /**
+     * Returns query string to search groups
+     * 
+     * @param dn
+     * @return query
+     */
+    protected String getGroupSearchQuery(String dn)
+    {
+        return getConfiguration().getGroupQuery(dn);
+    }
+    
+    /**
+     * @param ctx
+     * @param unsername
+     * @param allowNoDn
+     * @return
+     */
+    protected UserDetails createUserDetails(LdapContext ctx, String username, boolean allowNoDn)
+    {
+        return createUserDetails(ctx, username, allowNoDn, Deadline.unlimited());
+    }
+    
+    /**
+     * @param ctx
+     * @param unsername
+     * @param allowNoDn
+     * @param deadline fails if exceeds this between searches.
+     * @return
+     */
+    protected UserDetails createUserDetails(LdapContext ctx, String username, boolean allowNoDn, Deadline deadline)
+    {
+        return createUserDetails(ctx, username, allowNoDn, deadline, false, false);
+    }
+    
+    /**
+     * @param ctx
+     * @param unsername
+     * @param allowNoDn
+     * @param deadline fails if exceeds this between searches.
+     * @param reloadGroups whether to search groups ignoring the cache.
+     * @param bound whether ctx is bound as the user.
+     * @return
+     */
+    private UserDetails createUserDetails(LdapContext ctx, String username, boolean allowNoDn, Deadline deadline, boolean reloadGroups, boolean bound)
+    {
+        deadline.check("searching the user");
+        String boundUser = bound?username:null;
+        PipelinedGroups pipelined = pipelineGroups(ctx, username, reloadGroups, boundUser, deadline);
+        UserEntry user;
+        try
+        {
+            user = findUser(ctx, username, bound, deadline);
+        }
+        finally
+        {
+            if(pipelined != null)
+            {
+                pipelined.await(deadline);
+            }
+        }
+        String userDn = (user != null)?user.dn:null;
+        if (userDn == null && !allowNoDn) {
+            return null;
+        }
+        
+        LOGGER.fine(String.format("User DN is %s", userDn));
+        
+        List<GrantedAuthority> authorities = (pipelined != null)?pipelined.getGroups(userDn):null;
+        if(authorities == null)
+        {
+            deadline.check("searching groups");
+            authorities = resolveGroup(
+                    ctx,
+                    userDn,
+                    (user != null)?user.groupDns:null,
+                    reloadGroups,
+                    boundUser,
+                    deadline
+            );
         }
         
-        return ctx;
+        LOGGER.fine("Authenticating succeeded.");
+        return new LdapUser(
+                username,
+                "",         // password(not used)
+                userDn,     // dn of this user.
+                true,       // enabled
+                true,       // accountNonExpired
+                true,       // credentialsNonExpired
+                true,       // accountNonLocked
+                authorities.toArray(new GrantedAuthority[0])
+        );
     }
     
-    @CheckForNull
-    protected String resolveUserDn(LdapContext ctx, String username)
+    /**
+     * Groups resolved in parallel with the user search.
+     */
+    private static class PipelinedGroups
     {
-        if(StringUtils.isBlank(getUserQueryTemplate()))
+        private final String dn;
+        private final Future<List<GrantedAuthority>> future;
+        private List<GrantedAuthority> groups;
+        
+        public PipelinedGroups(String dn, Future<List<GrantedAuthority>> future)
         {
-            // not configured.
-            LOGGER.fine("Disabled resolving user DN as not configured.");
-            
-            return null;
+            this.dn = dn;
+            this.future = future;
         }
         
-        try
+        /**
+         * Waits for the search, as the connection may be reused after the user search.
+         * 
+         * @param deadline
+         */
+        public void await(Deadline deadline)
         {
-            SearchControls searchControls = new SearchControls();
-            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            String query = expandUsername(getUserQueryTemplate(), username);
-            LOGGER.fine(String.format("Searching users base=%s, query=%s", getUserSearchBase(), query));
-            NamingEnumeration<SearchResult> entries = ctx.search(
-                    Util.fixNull(getUserSearchBase()),
-                    query,
-                    searchControls
-            );
-            if(!entries.hasMoreElements())
+            try
             {
-                // no entry.
-                LOGGER.warning(String.format("User not found: %s", username));
-                return null;
+                groups = future.get(deadline.remaining(), TimeUnit.MILLISECONDS);
             }
-            
-            String userDn = entries.nextElement().getNameInNamespace();
-            
-            if(entries.hasMoreElements())
+            catch(InterruptedException e)
             {
-                // more than one entry.
-                LOGGER.warning(String.format("User found more than one: %s", username));
-                return null;
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+            }
+            catch(ExecutionException e)
+            {
+                LOGGER.log(Level.WARNING, String.format("Failed to search groups for %s", dn), e.getCause());
+            }
+            catch(TimeoutException e)
+            {
+                future.cancel(true);
             }
-            entries.close();
-            
-            return userDn;
         }
-        catch(NamingException e)
+        
+        /**
+         * @param userDn the DN of the user actually found.
+         * @return groups. null if the DN differs, or failed.
+         */
+        @CheckForNull
+        public List<GrantedAuthority> getGroups(String userDn)
         {
-            LOGGER.log(Level.SEVERE, String.format("Failed to search user %s", username), e);
+            if(userDn == null || !normalizeDn(dn).equals(normalizeDn(userDn)))
+            {
+                return null;
+            }
+            return groups;
         }
-        return null;
     }
     
-    
     /**
-     * Expand ${uid} in template
+     * Returns the DN of the user known without searching.
      * 
-     * @param username uid value
-     * @return ${uid} expanded string
+     * @param username
+     * @return the DN of the user. null if not known.
      */
-    private String expandUsername(String template, String username)
+    @CheckForNull
+    private String getKnownUserDn(String username)
     {
-        Map<String,String> variables = new HashMap<String,String>();
-        variables.put("uid", username);
-        return Util.replaceMacro(template, variables);
+        UserDetails cached = getUserCache().peek(normalizeUsername(username));
+        if(cached instanceof LdapUser && ((LdapUser)cached).getDn() != null)
+        {
+            return ((LdapUser)cached).getDn();
+        }
+        return getConfiguration().getUserDn(username);
     }
     
     /**
-     * Resolves groups by querying the LDAP directory. 
+     * Starts resolving groups of the user in parallel with the user search,
+     * if the DN of the user is known.
      * 
-     * Never return null in any case. Returns empty list instead.
+     * The search shares the connection, and is sent without waiting for the user search
+     * (LDAP allows multiple outstanding operations on a connection).
      * 
      * @param ctx
-     * @param dn
-     * @return List of authorities (not null)
+     * @param username
+     * @param reload whether to search groups ignoring the cache.
+     * @param boundUser the user ctx is bound as. null if ctx is bound as the query user.
+     * @param deadline gives up waiting for loads by other threads at this.
+     * @return groups being resolved. null if not applicable.
      */
-    @Nonnull
-    protected List<GrantedAuthority> resolveGroup(LdapContext ctx, String dn)
+    @CheckForNull
+    private PipelinedGroups pipelineGroups(
+            LdapContext ctx,
+            String username,
+            final boolean reload,
+            final String boundUser,
+            final Deadline deadline
+    )
     {
-        List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
-        
+        LdapRealmConfiguration configuration = getConfiguration();
+        if(
+                !PIPELINE_SEARCHES
+                || username == null
+                || !configuration.isUserQueryEnabled()
+                || configuration.getGroupMembershipAttribute() != null
+        )
+        {
+            return null;
+        }
+        final String dn = getKnownUserDn(username);
         if(dn == null)
         {
-            LOGGER.fine("Group cannot be resolved: DN of the user is not resolved!");
-            return authorities;
+            return null;
         }
         
+        final LdapContext groupCtx;
         try
         {
-            SearchControls searchControls = new SearchControls();
-            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            LOGGER.fine(String.format("Searching groups base=%s, dn=%s", getGroupSearchBase(), dn));
-            NamingEnumeration<SearchResult> entries = ctx.search(
-                    Util.fixNull(getGroupSearchBase()),
-                    getGroupSearchQuery(dn),
-                    searchControls
-            );
-            while(entries.hasMoreElements()){
-                SearchResult entry = entries.nextElement();
-                String groupName = entry.getAttributes().get("cn").get().toString();
-                if(getGroupPrefix() != null){
-                    groupName = getGroupPrefix() + groupName;
-                }
-                authorities.add(new GrantedAuthorityImpl(groupName));
-                LOGGER.fine(String.format("group: %s", groupName));
-            }
-            entries.close();
+            groupCtx = ctx.newInstance(null);
         }
         catch(NamingException e)
         {
-            LOGGER.log(Level.WARNING, String.format("Failed to search groups for %s", dn), e);
+            LOGGER.log(Level.FINE, "Failed to share the connection", e);
+            return null;
+        }
+        try
+        {
+            return new PipelinedGroups(dn, LdapSaslExecutors.getSearchExecutor().submit(
+                    new Callable<List<GrantedAuthority>>()
+                    {
+                        public List<GrantedAuthority> call()
+                        {
+                            try
+                            {
+                                return resolveGroup(groupCtx, dn, null, reload, boundUser, deadline);
+                            }
+                            finally
+                            {
+                                LdapResourceTracker.closeQuietly(groupCtx);
+                            }
+                        }
+                    }
+            ));
+        }
+        catch(RejectedExecutionException e)
+        {
+            // search one by one.
+            LdapResourceTracker.closeQuietly(groupCtx);
+            return null;
         }
-        
-        return authorities;
     }
     
     /**
-     * Returns query string to search groups
+     * Authorize a user.
      * 
-     * @param dn
-     * @return query
+     * @param username
+     * @param password
+     * @see hudson.security.AbstractPasswordBasedSecurityRealm#authenticate(java.lang.String, java.lang.String)
      */
-    protected String getGroupSearchQuery(String dn)
+    @Override
+    protected UserDetails authenticate(String username, String password)
+            throws AuthenticationException
     {
-        return MessageFormat.format("(| "
-                + "(& (objectClass=groupOfUniqueNames) (uniqueMember={0}))"
-                + "(& (objectClass=groupOfNames) (member={0}))"
-                + ")", dn);
+        LdapBadCredentialCache badCredentials = getBadCredentialCache();
+        if(badCredentials.isRejected(username, password))
+        {
+            LOGGER.fine(String.format("Rejected as the same credential is rejected recently: %s", username));
+            throw new BadCredentialsException(String.format("Authentication failed: %s", username));
+        }
+        LdapVerifiedCredentialCache verifiedCredentials = getVerifiedCredentialCache();
+        // keyed just like the user cache, to be flushed together.
+        String key = (username != null)?normalizeUsername(username):null;
+        UserDetails user = verifiedCredentials.get(key, password);
+        if(user != null)
+        {
+            LOGGER.fine(String.format("Accepted as the same credential is verified recently: %s", username));
+            return user;
+        }
+        try
+        {
+            user = authenticateInTime(username, password);
+            verifiedCredentials.put(key, password, user);
+            return user;
+        }
+        catch(BadCredentialsException e)
+        {
+            badCredentials.reject(username, password);
+            throw e;
+        }
+        catch(DataAccessException e)
+        {
+            // e.g. timed out to wait for groups loaded by another thread.
+            throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+        }
     }
     
     /**
-     * @param ctx
-     * @param unsername
-     * @param allowNoDn
-     * @return
+     * Authorize a user in the authentication thread within {@link #LOGIN_TIMEOUT}.
+     * 
+     * @param username
+     * @param password
+     * @return the authenticated user.
+     * @throws AuthenticationException
      */
-    protected UserDetails createUserDetails(LdapContext ctx, String username, boolean allowNoDn)
+    private UserDetails authenticateInTime(final String username, final String password)
+            throws AuthenticationException
     {
-        String userDn = resolveUserDn(ctx, username);
-        if (userDn == null && !allowNoDn) {
-            return null;
+        if(LOGIN_TIMEOUT <= 0)
+        {
+            return authenticate(username, password, Deadline.unlimited());
         }
         
-        LOGGER.fine(String.format("User DN is %s", userDn));
-        
-        List<GrantedAuthority> authorities = resolveGroup(ctx, userDn);
+        final Deadline deadline = Deadline.after(LOGIN_TIMEOUT);
+        Future<UserDetails> future;
+        try
+        {
+            future = LdapSaslExecutors.getAuthenticationExecutor().submit(new Callable<UserDetails>()
+            {
+                public UserDetails call() throws Exception
+                {
+                    return authenticate(username, password, deadline);
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            throw new AuthenticationServiceException(String.format("Too many logins in progress: %s", username), e);
+        }
         
-        LOGGER.fine("Authenticating succeeded.");
-        return new LdapUser(
-                username,
-                "",         // password(not used)
-                userDn,     // dn of this user.
-                true,       // enabled
-                true,       // accountNonExpired
-                true,       // credentialsNonExpired
-                true,       // accountNonLocked
-                authorities.toArray(new GrantedAuthority[0])
-        );
+        try
+        {
+            return future.get(deadline.remaining(), TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            future.cancel(true);
+            throw new AuthenticationServiceException(String.format("Timed out to authenticate %s in %d ms", username, LOGIN_TIMEOUT), e);
+        }
+        catch(InterruptedException e)
+        {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new AuthenticationServiceException(String.format("Interrupted while authenticating %s", username), e);
+        }
+        catch(ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException)
+            {
+                // includes AuthenticationException
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error)
+            {
+                throw (Error)cause;
+            }
+            throw new AuthenticationServiceException(String.format("Failed to authenticate %s", username), cause);
+        }
     }
     
     /**
-     * Authorize a user.
+     * Authorize a user in the current thread.
      * 
      * @param username
      * @param password
-     * @see hudson.security.AbstractPasswordBasedSecurityRealm#authenticate(java.lang.String, java.lang.String)
+     * @param deadline the authentication must be finished by this.
+     * @return the authenticated user.
+     * @throws AuthenticationException
      */
-    @Override
-    protected UserDetails authenticate(String username, String password)
+    protected UserDetails authenticate(String username, String password, Deadline deadline)
             throws AuthenticationException
     {
-        LdapContext ctx = connectToLdap(username, password);
+        if(username == null)
+        {
+            // connectToLdap connects anonymously with null.
+            throw new BadCredentialsException("Authentication failed: no username");
+        }
+        
+        if(REBIND_POOL_SIZE > 0 && getConfiguration().isRebindSupported())
+        {
+            UserDetails user = authenticateWithRebind(username, password, deadline);
+            if(user != null)
+            {
+                return user;
+            }
+            // fall back to a new connection.
+        }
         
-        return createUserDetails(ctx, username, true);
+        LdapContext ctx = connectToLdap(username, password, deadline);
+        try
+        {
+            return createUserDetails(ctx, username, true, deadline, false, true);
+        }
+        finally
+        {
+            LdapResourceTracker.closeQuietly(ctx);
+        }
+    }
+    
+    /**
+     * Authorize a user by re-binding a pooled connection.
+     * 
+     * The connection is bound back to the service identity after used,
+     * and discarded if that fails.
+     * 
+     * @param username
+     * @param password
+     * @param deadline the authentication must be finished by this.
+     * @return the authenticated user. null if no pooled connection is available.
+     * @throws AuthenticationException
+     */
+    @CheckForNull
+    private UserDetails authenticateWithRebind(String username, String password, Deadline deadline)
+            throws AuthenticationException
+    {
+        LdapContextPool.Lease lease;
+        try
+        {
+            lease = getRebindContextPool().tryBorrow();
+        }
+        catch(AuthenticationException e)
+        {
+            // failures of the service identity are not the user's.
+            LOGGER.log(Level.WARNING, "Failed to connect to re-bind. Binding a new connection.", e);
+            return null;
+        }
+        if(lease == null)
+        {
+            LOGGER.fine("No pooled connection is available to re-bind.");
+            return null;
+        }
+        boolean reusable = false;
+        try
+        {
+            LdapContext ctx = lease.getContext();
+            deadline.check("re-binding");
+            LdapBulkhead bulkhead = admitSearch(ctx, deadline);
+            try
+            {
+                bindContext(ctx, username, password, getConfiguration().getMechanisms());
+            }
+            catch(javax.naming.AuthenticationException e)
+            {
+                // Authentication Failure...
+                throw new BadCredentialsException(String.format("Authentication failed: %s", username), e);
+            }
+            catch(NamingSecurityException e)
+            {
+                // The server responded, but the configuration is not acceptable.
+                throw new AuthenticationServiceException(String.format("Authentication failed: %s", username), e);
+            }
+            catch(NamingException e)
+            {
+                // The connection may be stale.
+                LOGGER.log(Level.FINE, "Failed to re-bind a pooled connection", e);
+                return null;
+            }
+            finally
+            {
+                if(bulkhead != null)
+                {
+                    bulkhead.release();
+                }
+            }
+            
+            UserDetails user = createUserDetails(ctx, username, true, deadline, false, true);
+            
+            try
+            {
+                resetContext(ctx);
+                reusable = true;
+            }
+            catch(NamingException e)
+            {
+                LOGGER.log(Level.FINE, "Failed to bind a pooled connection back to the service identity", e);
+            }
+            return user;
+        }
+        finally
+        {
+            if(!reusable)
+            {
+                lease.invalidate();
+            }
+            lease.close();
+        }
     }
     
     /**
@@ -708,26 +3419,100 @@ public class LdapSaslSecurityRealm extends AbstractPasswordBasedSecurityRealm
             return null;
         }
         
-        LdapContext ctx = connectToLdap(getQueryUser(), getQueryPassword());
-        
-        return createUserDetails(ctx, username, false);
+        final String name = username;
+        try
+        {
+            return getUserCache().get(
+                    normalizeUsername(username),
+                    new LdapCache.Loader<String, UserDetails>()
+                    {
+                        public UserDetails load(String key)
+                        {
+                            return loadUserFromLdap(name, false);
+                        }
+                    },
+                    new LdapCache.Loader<String, UserDetails>()
+                    {
+                        public UserDetails load(String key)
+                        {
+                            return loadUserFromLdap(name, true);
+                        }
+                    },
+                    Deadline.after(SEARCH_TIME_LIMIT)
+            );
+        }
+        catch(LdapBulkhead.RejectedException e)
+        {
+            // not a failure of authentication.
+            throw new DataRetrievalFailureException(String.format("Failed to load the user %s", username), e);
+        }
+    }
+    
+    /**
+     * Queries the user with the connection of the query user.
+     * 
+     * @param username
+     * @param reloadGroups whether to search groups ignoring the cache.
+     * @return the user queried. null if not found.
+     */
+    @CheckForNull
+    private UserDetails loadUserFromLdap(String username, boolean reloadGroups)
+    {
+        LdapContextPool.Lease lease = getQueryContextPool().borrow();
+        try
+        {
+            return createUserDetails(lease.getContext(), username, false, Deadline.unlimited(), reloadGroups, false);
+        }
+        finally
+        {
+            lease.close();
+        }
     }
     
     /**
      * Used for support user input.
-     * Not supported, return null.
+     * Looks up names of groups loaded in memory.
+     * Not supported without the group search base or the query user, return null.
      * 
-     * @param groupname
-     * @return null
-     * @throws UsernameNotFoundException
-     * @throws DataAccessException
+     * @param groupname the name of the group with the prefix.
+     * @return the group. null if not supported.
+     * @throws UsernameNotFoundException the group does not exist.
+     * @throws DataAccessException failed to load groups.
      * @see hudson.security.AbstractPasswordBasedSecurityRealm#loadGroupByGroupname(java.lang.String)
      */
     @Override
     public GroupDetails loadGroupByGroupname(String groupname)
             throws UsernameNotFoundException, DataAccessException
     {
-        return null;
+        LdapGroupNameIndex index = getGroupNameIndex();
+        if(index == null)
+        {
+            return null;
+        }
+        String prefix = StringUtils.defaultString(getConfiguration().getGroupPrefix());
+        if(groupname == null || !groupname.startsWith(prefix))
+        {
+            throw new UsernameNotFoundException(String.format("Group not found: %s", groupname));
+        }
+        
+        LdapGroupNameIndex.Entry group;
+        try
+        {
+            group = index.get(groupname.substring(prefix.length()));
+        }
+        catch(NamingException e)
+        {
+            throw new DataRetrievalFailureException(String.format("Failed to load groups under %s", getGroupSearchBase()), e);
+        }
+        catch(AuthenticationException e)
+        {
+            throw new DataRetrievalFailureException(String.format("Failed to connect to load groups under %s", getGroupSearchBase()), e);
+        }
+        if(group == null)
+        {
+            throw new UsernameNotFoundException(String.format("Group not found: %s", groupname));
+        }
+        return new LdapGroup(prefix + group.getName(), group.getDn(), index);
     }
     
 }
@@ -0,0 +1,418 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+/**
+ * Selects LDAP servers to connect to, tracking the health of each server.
+ * 
+ * Each server has a circuit:
+ * * CLOSED: the server is healthy, and requests are sent to it.
+ * * OPEN: the server failed consecutively. Requests are not sent to it,
+ *   and it is probed in background.
+ * * HALF_OPEN: the probe succeeded. Requests are sent to it only when
+ *   no healthy servers are available, and the circuit is closed with the next success.
+ * 
+ * Healthy servers are ordered by the average latency, servers never used first in the configured order.
+ * 
+ * Each server also has a {@link LdapBulkhead} to limit concurrent requests.
+ */
+public class LdapServerSelector
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapServerSelector.class.getName());
+    
+    /**
+     * Weight of the latest sample in the latency average.
+     */
+    private static final double LATENCY_ALPHA = 0.2;
+    
+    /**
+     * Tests whether a server is available.
+     */
+    public static interface Prober
+    {
+        /**
+         * Tests the server. Called in background threads.
+         * 
+         * @param uri the URI of the server.
+         * @return whether the server is available.
+         */
+        public boolean probe(String uri);
+    }
+    
+    /**
+     * State of the circuit of a server.
+     */
+    public static enum Circuit
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+    
+    /**
+     * Health of a server.
+     */
+    public static class ServerState
+    {
+        private final String uri;
+        private final int index;
+        private int consecutiveFailures = 0;
+        private double latencyEwma = -1;
+        private Circuit circuit = Circuit.CLOSED;
+        private long openedAt = 0;
+        private final AtomicBoolean probing = new AtomicBoolean(false);
+        private final LdapBulkhead bulkhead;
+        private volatile Boolean whoAmISupported;
+        
+        private ServerState(String uri, int index, LdapBulkhead bulkhead)
+        {
+            this.uri = uri;
+            this.index = index;
+            this.bulkhead = bulkhead;
+        }
+        
+        /**
+         * @return limits concurrent requests to this server.
+         */
+        public LdapBulkhead getBulkhead()
+        {
+            return bulkhead;
+        }
+        
+        /**
+         * @return the URI of the server.
+         */
+        public String getUri()
+        {
+            return uri;
+        }
+        
+        /**
+         * @return whether the server supports "Who am I?". null if not known yet.
+         */
+        @CheckForNull
+        public Boolean getWhoAmISupported()
+        {
+            return whoAmISupported;
+        }
+        
+        /**
+         * @param supported whether the server supports "Who am I?".
+         */
+        public void setWhoAmISupported(boolean supported)
+        {
+            this.whoAmISupported = supported;
+        }
+        
+        /**
+         * @return the number of failures in a row.
+         */
+        public synchronized int getConsecutiveFailures()
+        {
+            return consecutiveFailures;
+        }
+        
+        /**
+         * @return the exponentially weighted moving average of latencies in milliseconds. -1 if never succeeded.
+         */
+        public synchronized double getLatencyEwma()
+        {
+            return latencyEwma;
+        }
+        
+        /**
+         * @return the state of the circuit.
+         */
+        public synchronized Circuit getCircuit()
+        {
+            return circuit;
+        }
+        
+        private synchronized void succeeded(long latencyMillis)
+        {
+            consecutiveFailures = 0;
+            latencyEwma = (latencyEwma < 0)
+                    ?latencyMillis
+                    :(LATENCY_ALPHA * latencyMillis + (1 - LATENCY_ALPHA) * latencyEwma);
+            if(circuit != Circuit.CLOSED)
+            {
+                LOGGER.info(String.format("LDAP server %s is back", uri));
+            }
+            circuit = Circuit.CLOSED;
+        }
+        
+        private synchronized void failed(int threshold)
+        {
+            ++consecutiveFailures;
+            if(circuit == Circuit.HALF_OPEN
+                    || (circuit == Circuit.CLOSED && consecutiveFailures >= threshold))
+            {
+                LOGGER.warning(String.format("LDAP server %s is unavailable (failed %d times in a row)", uri, consecutiveFailures));
+                circuit = Circuit.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+        
+        private synchronized void probed(boolean available)
+        {
+            if(circuit != Circuit.OPEN)
+            {
+                return;
+            }
+            if(available)
+            {
+                circuit = Circuit.HALF_OPEN;
+            }
+            else
+            {
+                openedAt = System.currentTimeMillis();
+            }
+        }
+        
+        private synchronized boolean isProbeRequired(long now, long interval)
+        {
+            return circuit == Circuit.OPEN && now - openedAt >= interval;
+        }
+        
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("%s(%s, failures=%d, latency=%.1fms, %s)", uri, circuit, consecutiveFailures, latencyEwma, bulkhead);
+        }
+    }
+    
+    private final List<ServerState> servers;
+    private final Map<String, ServerState> serverMap;
+    private final int failureThreshold;
+    private final long probeInterval;
+    private final Prober prober;
+    
+    /**
+     * @param uris URIs of LDAP servers in the configured order.
+     * @param failureThreshold number of failures in a row to open the circuit.
+     * @param probeInterval milliseconds to probe servers with open circuits.
+     * @param prober tests servers.
+     */
+    public LdapServerSelector(List<String> uris, int failureThreshold, long probeInterval, Prober prober)
+    {
+        this(uris, failureThreshold, probeInterval, prober, 0, 0, 0);
+    }
+    
+    /**
+     * @param uris URIs of LDAP servers in the configured order.
+     * @param failureThreshold number of failures in a row to open the circuit.
+     * @param probeInterval milliseconds to probe servers with open circuits.
+     * @param prober tests servers.
+     * @param maxConcurrent maximum number of concurrent requests to each server. 0 or less for no limit.
+     * @param maxQueue maximum number of requests waiting for each server.
+     * @param queueTimeout milliseconds for requests to wait.
+     */
+    public LdapServerSelector(
+            List<String> uris,
+            int failureThreshold,
+            long probeInterval,
+            Prober prober,
+            int maxConcurrent,
+            int maxQueue,
+            long queueTimeout
+    )
+    {
+        List<ServerState> servers = new ArrayList<ServerState>(uris.size());
+        Map<String, ServerState> serverMap = new HashMap<String, ServerState>();
+        for(String uri: uris)
+        {
+            ServerState server = new ServerState(
+                    uri,
+                    servers.size(),
+                    new LdapBulkhead(uri, maxConcurrent, maxQueue, queueTimeout)
+            );
+            servers.add(server);
+            serverMap.put(uri, server);
+        }
+        this.servers = Collections.unmodifiableList(servers);
+        this.serverMap = serverMap;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.probeInterval = probeInterval;
+        this.prober = prober;
+        
+        if(servers.size() > 1 && probeInterval > 0)
+        {
+            new ProbeTask(this).schedule(probeInterval);
+        }
+    }
+    
+    /**
+     * Probes failed servers periodically.
+     * 
+     * A static class not to hold the selector strongly.
+     */
+    private static final class ProbeTask extends LdapSaslExecutors.WeakPeriodicTask<LdapServerSelector>
+    {
+        public ProbeTask(LdapServerSelector selector)
+        {
+            super(selector);
+        }
+        
+        @Override
+        protected void run(LdapServerSelector selector)
+        {
+            selector.probe();
+        }
+    }
+    
+    /**
+     * @return states of all servers in the configured order.
+     */
+    public List<ServerState> getServers()
+    {
+        return servers;
+    }
+    
+    /**
+     * @param uri the URI of a server.
+     * @return the state of the server. null if not configured.
+     */
+    @CheckForNull
+    public ServerState getServer(String uri)
+    {
+        return serverMap.get(uri);
+    }
+    
+    /**
+     * Returns servers to try in order.
+     * 
+     * Healthy servers, then half-open servers.
+     * If all servers are unavailable, returns all servers in the configured order
+     * as there's nothing better to do.
+     * 
+     * @return servers to try
+     */
+    public List<ServerState> select()
+    {
+        List<ServerState> closed = new ArrayList<ServerState>(servers.size());
+        List<ServerState> halfOpen = new ArrayList<ServerState>();
+        for(ServerState server: servers)
+        {
+            switch(server.getCircuit())
+            {
+            case CLOSED:
+                closed.add(server);
+                break;
+            case HALF_OPEN:
+                halfOpen.add(server);
+                break;
+            default:
+                break;
+            }
+        }
+        if(closed.isEmpty() && halfOpen.isEmpty())
+        {
+            return servers;
+        }
+        Collections.sort(closed, new Comparator<ServerState>()
+        {
+            public int compare(ServerState o1, ServerState o2)
+            {
+                double l1 = o1.getLatencyEwma();
+                double l2 = o2.getLatencyEwma();
+                if(l1 != l2)
+                {
+                    return (l1 < l2)?-1:1;
+                }
+                return o1.index - o2.index;
+            }
+        });
+        closed.addAll(halfOpen);
+        return closed;
+    }
+    
+    /**
+     * Records a request to a server succeeded.
+     * 
+     * @param server the server.
+     * @param latencyMillis milliseconds taken for the request.
+     */
+    public void recordSuccess(ServerState server, long latencyMillis)
+    {
+        server.succeeded(latencyMillis);
+    }
+    
+    /**
+     * Records a request to a server failed for the server problem.
+     * 
+     * @param server the server.
+     */
+    public void recordFailure(ServerState server)
+    {
+        server.failed(failureThreshold);
+    }
+    
+    /**
+     * Probes servers with open circuits in background.
+     */
+    public void probe()
+    {
+        long now = System.currentTimeMillis();
+        for(final ServerState server: servers)
+        {
+            if(!server.isProbeRequired(now, probeInterval) || !server.probing.compareAndSet(false, true))
+            {
+                continue;
+            }
+            LdapSaslExecutors.getBackgroundExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        boolean available = prober.probe(server.getUri());
+                        LOGGER.fine(String.format("Probed LDAP server %s: %s", server.getUri(), available?"available":"unavailable"));
+                        server.probed(available);
+                    }
+                    catch(RuntimeException e)
+                    {
+                        LOGGER.log(Level.WARNING, String.format("Failed to probe LDAP server %s", server.getUri()), e);
+                        server.probed(false);
+                    }
+                    finally
+                    {
+                        server.probing.set(false);
+                    }
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import javax.annotation.CheckForNull;
+import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * {@link SSLSocketFactory} creating sockets with {@link LdapTlsContext}.
+ * 
+ * JNDI accepts only the name of the factory class for LDAPS
+ * (java.naming.ldap.factory.socket), and calls {@link #getDefault()} for each connection.
+ * The context to use is passed with {@link #use(LdapTlsContext)} in the connecting thread.
+ */
+public class LdapSslSocketFactory extends SSLSocketFactory
+{
+    private static final ThreadLocal<LdapTlsContext> CURRENT = new ThreadLocal<LdapTlsContext>();
+    
+    /**
+     * Sets the context used for connections in the current thread.
+     * 
+     * @param tlsContext the context. null to reset.
+     */
+    static void use(@CheckForNull LdapTlsContext tlsContext)
+    {
+        if(tlsContext == null)
+        {
+            CURRENT.remove();
+        }
+        else
+        {
+            CURRENT.set(tlsContext);
+        }
+    }
+    
+    /**
+     * Called from JNDI.
+     * 
+     * @return the factory for the context specified with {@link #use(LdapTlsContext)}.
+     */
+    public static SocketFactory getDefault()
+    {
+        LdapTlsContext tlsContext = CURRENT.get();
+        if(tlsContext == null)
+        {
+            return SSLSocketFactory.getDefault();
+        }
+        return tlsContext.getSocketFactory();
+    }
+    
+    private final LdapTlsContext tlsContext;
+    private final SSLSocketFactory factory;
+    
+    LdapSslSocketFactory(LdapTlsContext tlsContext, SSLSocketFactory factory)
+    {
+        this.tlsContext = tlsContext;
+        this.factory = factory;
+    }
+    
+    /**
+     * Starts measuring the handshake of the socket.
+     */
+    private Socket watch(Socket socket, final long since)
+    {
+        if(socket instanceof SSLSocket)
+        {
+            ((SSLSocket)socket).addHandshakeCompletedListener(new HandshakeCompletedListener()
+            {
+                public void handshakeCompleted(HandshakeCompletedEvent event)
+                {
+                    tlsContext.recordHandshake(System.currentTimeMillis() - since, event.getSession(), since);
+                }
+            });
+        }
+        return socket;
+    }
+    
+    @Override
+    public Socket createSocket() throws IOException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(), since);
+    }
+    
+    @Override
+    public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(s, host, port, autoClose), since);
+    }
+    
+    @Override
+    public Socket createSocket(String host, int port) throws IOException, UnknownHostException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(host, port), since);
+    }
+    
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException, UnknownHostException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(host, port, localHost, localPort), since);
+    }
+    
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(host, port), since);
+    }
+    
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException
+    {
+        long since = System.currentTimeMillis();
+        return watch(factory.createSocket(address, port, localAddress, localPort), since);
+    }
+    
+    @Override
+    public String[] getDefaultCipherSuites()
+    {
+        return factory.getDefaultCipherSuites();
+    }
+    
+    @Override
+    public String[] getSupportedCipherSuites()
+    {
+        return factory.getSupportedCipherSuites();
+    }
+}
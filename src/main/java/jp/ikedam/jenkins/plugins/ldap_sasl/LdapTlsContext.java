@@ -0,0 +1,186 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * TLS settings shared by connections of a realm.
+ * 
+ * The trust store and {@link SSLContext} are built only once,
+ * and the session cache of the {@link SSLContext} allows
+ * following connections to resume the TLS session instead of a full handshake.
+ */
+public class LdapTlsContext
+{
+    private final SSLContext sslContext;
+    private final AtomicLong handshakeCount = new AtomicLong();
+    private final AtomicLong resumedCount = new AtomicLong();
+    private final AtomicLong totalHandshakeMillis = new AtomicLong();
+    private volatile long lastHandshakeMillis = -1;
+    
+    /**
+     * @param trustStore the path to the trust store. null to use the default of JVM.
+     * @param trustStorePassword the password of the trust store. can be null.
+     * @param trustStoreType the type of the trust store. null for the default type.
+     * @param sessionCacheSize the number of TLS sessions to cache. 0 for no limit.
+     * @param sessionTimeout seconds to keep TLS sessions to resume. 0 for no limit.
+     * @throws GeneralSecurityException
+     * @throws IOException failed to read the trust store.
+     */
+    public LdapTlsContext(
+            @CheckForNull String trustStore,
+            @CheckForNull String trustStorePassword,
+            @CheckForNull String trustStoreType,
+            int sessionCacheSize,
+            int sessionTimeout
+    ) throws GeneralSecurityException, IOException
+    {
+        KeyStore keyStore = null;
+        if(!StringUtils.isBlank(trustStore))
+        {
+            keyStore = KeyStore.getInstance(StringUtils.isBlank(trustStoreType)?KeyStore.getDefaultType():trustStoreType);
+            InputStream in = new FileInputStream(trustStore);
+            try
+            {
+                keyStore.load(in, (trustStorePassword != null)?trustStorePassword.toCharArray():null);
+            }
+            finally
+            {
+                IOUtils.closeQuietly(in);
+            }
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        
+        sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, tmf.getTrustManagers(), null);
+        
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        sessions.setSessionCacheSize(Math.max(0, sessionCacheSize));
+        sessions.setSessionTimeout(Math.max(0, sessionTimeout));
+    }
+    
+    /**
+     * @return the factory to create sockets sharing the TLS sessions.
+     */
+    public SSLSocketFactory getSocketFactory()
+    {
+        return new LdapSslSocketFactory(this, sslContext.getSocketFactory());
+    }
+    
+    /**
+     * Records a handshake completed.
+     * 
+     * @param millis milliseconds since the socket is created.
+     * @param session the TLS session
+     * @param since when the socket is created.
+     */
+    void recordHandshake(long millis, SSLSession session, long since)
+    {
+        handshakeCount.incrementAndGet();
+        if(session.getCreationTime() < since)
+        {
+            // the session is established by other connections.
+            resumedCount.incrementAndGet();
+        }
+        totalHandshakeMillis.addAndGet(millis);
+        lastHandshakeMillis = millis;
+    }
+    
+    /**
+     * @return the number of handshakes completed.
+     */
+    public long getHandshakeCount()
+    {
+        return handshakeCount.get();
+    }
+    
+    /**
+     * @return the number of handshakes resuming cached sessions.
+     */
+    public long getResumedCount()
+    {
+        return resumedCount.get();
+    }
+    
+    /**
+     * @return the average milliseconds to connect and complete handshakes. -1 if none.
+     */
+    public long getAverageHandshakeMillis()
+    {
+        long count = handshakeCount.get();
+        return (count > 0)?(totalHandshakeMillis.get() / count):-1;
+    }
+    
+    /**
+     * @return milliseconds for the last handshake. -1 if none.
+     */
+    public long getLastHandshakeMillis()
+    {
+        return lastHandshakeMillis;
+    }
+    
+    /**
+     * @return the number of TLS sessions cached now.
+     */
+    public int getCachedSessionCount()
+    {
+        int count = 0;
+        Enumeration<byte[]> ids = sslContext.getClientSessionContext().getIds();
+        while(ids.hasMoreElements())
+        {
+            ids.nextElement();
+            ++count;
+        }
+        return count;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format(
+                "handshakes=%d, resumed=%d, average=%dms",
+                getHandshakeCount(),
+                getResumedCount(),
+                getAverageHandshakeMillis()
+        );
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+
+import org.acegisecurity.AuthenticationException;
+
+/**
+ * Names of users loaded from LDAP in bulk, to complete names in memory.
+ * 
+ * Loaded in background at the first completion,
+ * and reloaded in background when used after the reload interval.
+ */
+final class LdapUserNameIndex
+{
+    private static final Logger LOGGER = Logger.getLogger(LdapUserNameIndex.class.getName());
+    
+    private final LdapContextPool pool;
+    private final String searchBase;
+    private final String filter;
+    private final String attribute;
+    private final LdapPagedSearch pagedSearch;
+    private final long reloadInterval;
+    private final AtomicBoolean loading = new AtomicBoolean(false);
+    
+    private volatile LdapPrefixIndex names = LdapPrefixIndex.EMPTY;
+    private volatile long loadedAt;
+    
+    /**
+     * @param pool connections to search users.
+     * @param searchBase the base DN of users.
+     * @param filter the filter to find all users.
+     * @param attribute the attribute holding names of users.
+     * @param pageSize the number of users to receive in a page.
+     * @param reloadInterval milliseconds to reload users.
+     */
+    public LdapUserNameIndex(LdapContextPool pool, String searchBase, String filter, String attribute, int pageSize, long reloadInterval)
+    {
+        this.pool = pool;
+        this.searchBase = searchBase;
+        this.filter = filter;
+        this.attribute = attribute;
+        // all users are loaded regardless of the size and time budget.
+        this.pagedSearch = new LdapPagedSearch(Math.max(1, pageSize), 0, 0);
+        this.reloadInterval = reloadInterval;
+    }
+    
+    /**
+     * Completes names of users.
+     * Starts loading users in background if not loaded yet,
+     * not to make users wait for loading while typing.
+     * 
+     * @param prefix the name being input.
+     * @param max maximum number of names to return.
+     * @return names of users starting with the prefix. empty if not loaded yet.
+     */
+    public List<String> complete(String prefix, int max)
+    {
+        if(loadedAt == 0 || System.currentTimeMillis() - loadedAt >= reloadInterval)
+        {
+            loadInBackground();
+        }
+        return names.find(prefix, max);
+    }
+    
+    /**
+     * @return the number of users loaded.
+     */
+    public int getUserCount()
+    {
+        return names.size();
+    }
+    
+    private void loadInBackground()
+    {
+        if(!loading.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            LdapSaslExecutors.getBackgroundExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        loadNow();
+                    }
+                    catch(NamingException e)
+                    {
+                        LOGGER.log(Level.WARNING, String.format("Failed to load names of users under %s", searchBase), e);
+                    }
+                    catch(AuthenticationException e)
+                    {
+                        LOGGER.log(Level.WARNING, String.format("Failed to connect to load names of users under %s", searchBase), e);
+                    }
+                    finally
+                    {
+                        loading.set(false);
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e)
+        {
+            loading.set(false);
+        }
+    }
+    
+    /**
+     * Loads all users.
+     * 
+     * @throws NamingException
+     */
+    void loadNow() throws NamingException
+    {
+        long started = System.currentTimeMillis();
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        controls.setReturningAttributes(new String[]{attribute});
+        
+        final List<String> names = new ArrayList<String>();
+        LdapContextPool.Lease lease = pool.borrow();
+        boolean succeeded = false;
+        try
+        {
+            pagedSearch.search(lease.getContext(), searchBase, filter, null, controls, new LdapPagedSearch.Handler()
+            {
+                public boolean handle(SearchResult entry) throws NamingException
+                {
+                    Attribute attr = entry.getAttributes().get(attribute);
+                    for(int i = 0; attr != null && i < attr.size(); ++i)
+                    {
+                        names.add(attr.get(i).toString());
+                    }
+                    return true;
+                }
+            });
+            succeeded = true;
+        }
+        finally
+        {
+            if(!succeeded)
+            {
+                lease.invalidate();
+            }
+            lease.close();
+        }
+        
+        this.names = new LdapPrefixIndex(names);
+        this.loadedAt = System.currentTimeMillis();
+        LOGGER.fine(String.format("Loaded names of %d users under %s in %d ms", names.size(), searchBase, loadedAt - started));
+    }
+}
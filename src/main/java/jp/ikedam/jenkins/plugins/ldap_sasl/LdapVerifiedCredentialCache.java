@@ -0,0 +1,226 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.acegisecurity.userdetails.UserDetails;
+
+/**
+ * Remembers credentials verified by LDAP servers,
+ * not to bind for each request with HTTP basic authentication.
+ * 
+ * Passwords are never stored: only hashes with PBKDF2 and a random salt for each entry.
+ * Entries expire after the absolute TTL, or when not used for the idle TTL.
+ */
+class LdapVerifiedCredentialCache
+{
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 160;
+    
+    private static class Entry
+    {
+        public final byte[] salt;
+        public final byte[] hash;
+        public final UserDetails user;
+        public final long expiresAt;
+        public volatile long lastUsedAt;
+        
+        public Entry(byte[] salt, byte[] hash, UserDetails user, long now, long ttl)
+        {
+            this.salt = salt;
+            this.hash = hash;
+            this.user = user;
+            this.expiresAt = now + ttl;
+            this.lastUsedAt = now;
+        }
+    }
+    
+    private final long ttl;
+    private final long idleTtl;
+    private final int maxSize;
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+    
+    /**
+     * Username to the entry, in the order of access.
+     */
+    private final LinkedHashMap<String, Entry> entries;
+    
+    /**
+     * @param ttl milliseconds to keep verified credentials. 0 to disable.
+     * @param idleTtl milliseconds to keep verified credentials not used. 0 for no limit.
+     * @param maxSize maximum number of users to remember.
+     * @param iterations iterations of PBKDF2.
+     */
+    public LdapVerifiedCredentialCache(long ttl, long idleTtl, final int maxSize, int iterations)
+    {
+        this.ttl = ttl;
+        this.idleTtl = idleTtl;
+        this.maxSize = maxSize;
+        this.iterations = Math.max(1, iterations);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+            {
+                return size() > maxSize;
+            }
+        };
+    }
+    
+    /**
+     * @return whether this cache remembers anything.
+     */
+    public boolean isEnabled()
+    {
+        return ttl > 0 && maxSize > 0;
+    }
+    
+    /**
+     * @param username
+     * @param password
+     * @return the user verified with the same password. null if not cached.
+     */
+    @CheckForNull
+    public UserDetails get(String username, String password)
+    {
+        if(!isEnabled() || username == null || password == null)
+        {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized(this)
+        {
+            entry = entries.get(username);
+            if(entry == null)
+            {
+                return null;
+            }
+            if(isExpired(entry, now))
+            {
+                entries.remove(username);
+                return null;
+            }
+        }
+        // hash out of the lock, as it is slow on purpose.
+        if(!MessageDigest.isEqual(entry.hash, hash(password, entry.salt)))
+        {
+            return null;
+        }
+        entry.lastUsedAt = now;
+        return entry.user;
+    }
+    
+    /**
+     * Remembers the credential verified.
+     * 
+     * @param username
+     * @param password
+     * @param user the user authenticated with the credential.
+     */
+    public void put(String username, String password, UserDetails user)
+    {
+        if(!isEnabled() || username == null || password == null)
+        {
+            return;
+        }
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        Entry entry = new Entry(salt, hash(password, salt), user, System.currentTimeMillis(), ttl);
+        synchronized(this)
+        {
+            entries.put(username, entry);
+        }
+    }
+    
+    /**
+     * Forgets the credential of the user.
+     * 
+     * @param username
+     */
+    public synchronized void invalidate(String username)
+    {
+        entries.remove(username);
+    }
+    
+    /**
+     * Forgets all credentials.
+     */
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+    
+    /**
+     * @return the number of users remembered, including expired ones not purged yet.
+     */
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+    
+    private boolean isExpired(Entry entry, long now)
+    {
+        if(entry.expiresAt <= now)
+        {
+            return true;
+        }
+        if(idleTtl > 0 && now - entry.lastUsedAt >= idleTtl)
+        {
+            return true;
+        }
+        return false;
+    }
+    
+    private byte[] hash(String password, byte[] salt)
+    {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try
+        {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        }
+        catch(GeneralSecurityException e)
+        {
+            // PBKDF2WithHmacSHA1 is always available.
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            spec.clearPassword();
+        }
+    }
+}
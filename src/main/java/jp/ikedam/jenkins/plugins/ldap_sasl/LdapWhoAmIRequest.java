@@ -0,0 +1,117 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.nio.charset.Charset;
+
+import javax.annotation.CheckForNull;
+import javax.naming.NamingException;
+import javax.naming.ldap.ExtendedRequest;
+import javax.naming.ldap.ExtendedResponse;
+
+/**
+ * "Who am I?" extended operation (RFC 4532),
+ * returning the authorization identity of the bound user.
+ */
+final class LdapWhoAmIRequest implements ExtendedRequest
+{
+    private static final long serialVersionUID = 1L;
+    
+    /**
+     * The OID of the operation, listed in supportedExtension of servers supporting it.
+     */
+    public static final String OID = "1.3.6.1.4.1.4203.1.11.3";
+    
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * The response of "Who am I?".
+     */
+    public static final class Response implements ExtendedResponse
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private final String id;
+        private final String authzId;
+        
+        private Response(String id, String authzId)
+        {
+            this.id = id;
+            this.authzId = authzId;
+        }
+        
+        public String getID()
+        {
+            return id;
+        }
+        
+        public byte[] getEncodedValue()
+        {
+            return authzId.getBytes(UTF8);
+        }
+        
+        /**
+         * @return the authorization identity (RFC 4513). empty for anonymous.
+         */
+        public String getAuthzId()
+        {
+            return authzId;
+        }
+        
+        /**
+         * @return the DN in the authorization identity. null if the identity is not in the form of "dn:".
+         */
+        @CheckForNull
+        public String getDn()
+        {
+            if(!authzId.regionMatches(true, 0, "dn:", 0, 3))
+            {
+                return null;
+            }
+            String dn = authzId.substring(3);
+            return (dn.length() > 0)?dn:null;
+        }
+    }
+    
+    public String getID()
+    {
+        return OID;
+    }
+    
+    /**
+     * @return null, as the request has no value.
+     */
+    public byte[] getEncodedValue()
+    {
+        return null;
+    }
+    
+    public ExtendedResponse createExtendedResponse(String id, byte[] berValue, int offset, int length)
+            throws NamingException
+    {
+        // responseValue is the authzId itself, not encoded in BER.
+        String authzId = (berValue != null)?new String(berValue, offset, length, UTF8):"";
+        return new Response(id, authzId);
+    }
+}
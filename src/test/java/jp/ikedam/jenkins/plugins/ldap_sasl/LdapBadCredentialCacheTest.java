@@ -0,0 +1,76 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapBadCredentialCache
+ */
+public class LdapBadCredentialCacheTest
+{
+    @Test
+    public void testReject() throws Exception
+    {
+        LdapBadCredentialCache target = new LdapBadCredentialCache(60000, 10);
+        assertFalse(target.isRejected("test1", "badpassword"));
+        target.reject("test1", "badpassword");
+        assertTrue(target.isRejected("test1", "badpassword"));
+        assertFalse("other passwords are not rejected", target.isRejected("test1", "password1"));
+        assertFalse("other users are not rejected", target.isRejected("test2", "badpassword"));
+        target.clear();
+        assertFalse(target.isRejected("test1", "badpassword"));
+    }
+    
+    @Test
+    public void testExpire() throws Exception
+    {
+        LdapBadCredentialCache target = new LdapBadCredentialCache(10, 10);
+        target.reject("test1", "badpassword");
+        Thread.sleep(50);
+        assertFalse(target.isRejected("test1", "badpassword"));
+    }
+    
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        LdapBadCredentialCache target = new LdapBadCredentialCache(60000, 2);
+        target.reject("test1", "badpassword");
+        target.reject("test2", "badpassword");
+        target.reject("test3", "badpassword");
+        assertEquals(2, target.size());
+        assertFalse("the eldest is removed", target.isRejected("test1", "badpassword"));
+        assertTrue(target.isRejected("test3", "badpassword"));
+    }
+    
+    @Test
+    public void testDisabled() throws Exception
+    {
+        LdapBadCredentialCache target = new LdapBadCredentialCache(0, 10);
+        target.reject("test1", "badpassword");
+        assertFalse(target.isRejected("test1", "badpassword"));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapBulkhead
+ */
+public class LdapBulkheadTest
+{
+    @Test
+    public void testReject() throws Exception
+    {
+        LdapBulkhead target = new LdapBulkhead("test", 1, 0, 1000);
+        target.acquire();
+        assertEquals(1, target.getInFlight());
+        try
+        {
+            target.acquire();
+            fail("rejected when the queue is full");
+        }
+        catch(LdapBulkhead.RejectedException e)
+        {
+            assertEquals(1, target.getRejectedCount());
+        }
+        target.release();
+        assertEquals(0, target.getInFlight());
+        target.acquire();
+        target.release();
+    }
+    
+    @Test
+    public void testTimeout() throws Exception
+    {
+        LdapBulkhead target = new LdapBulkhead("test", 1, 1, 10);
+        target.acquire();
+        try
+        {
+            target.acquire();
+            fail("rejected when timed out");
+        }
+        catch(LdapBulkhead.RejectedException e)
+        {
+            assertEquals(0, target.getRejectedCount());
+            assertEquals(1, target.getTimedOutCount());
+            assertEquals(0, target.getQueueDepth());
+        }
+        target.release();
+    }
+    
+    @Test
+    public void testDeadline() throws Exception
+    {
+        LdapBulkhead target = new LdapBulkhead("test", 1, 1, 10000);
+        target.acquire();
+        long start = System.currentTimeMillis();
+        try
+        {
+            target.acquire(Deadline.after(10));
+            fail("rejected at the deadline");
+        }
+        catch(LdapBulkhead.RejectedException e)
+        {
+            assertTrue("not waiting for the queue timeout", System.currentTimeMillis() - start < 5000);
+            assertEquals(1, target.getTimedOutCount());
+        }
+        target.release();
+    }
+    
+    @Test
+    public void testWait() throws Exception
+    {
+        final LdapBulkhead target = new LdapBulkhead("test", 1, 1, 10000);
+        target.acquire();
+        Thread t = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                target.acquire();
+                target.release();
+            }
+        };
+        t.start();
+        for(int i = 0; i < 100 && target.getQueueDepth() == 0; ++i)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("waiting", 1, target.getQueueDepth());
+        target.release();
+        t.join(10000);
+        assertFalse(t.isAlive());
+        assertEquals(0, target.getQueueDepth());
+        assertEquals(0, target.getInFlight());
+    }
+    
+    @Test
+    public void testUnlimited() throws Exception
+    {
+        LdapBulkhead target = new LdapBulkhead("test", 0, 0, 0);
+        for(int i = 0; i < 100; ++i)
+        {
+            target.acquire();
+        }
+        assertEquals(0, target.getRejectedCount());
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.springframework.dao.DataRetrievalFailureException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapCache
+ */
+public class LdapCacheTest
+{
+    @Test
+    public void testGet() throws Exception
+    {
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 60000);
+        assertNull(target.get("key1"));
+        target.put("key1", "value1");
+        assertEquals("value1", target.get("key1"));
+        assertEquals(1, target.getHitCount());
+        assertEquals(1, target.getMissCount());
+        assertEquals(50, target.getHitRate());
+        
+        target.invalidate("key1");
+        assertNull(target.get("key1"));
+        
+        target.put("key1", "value1");
+        target.put("key2", "value2");
+        target.invalidateAll();
+        assertEquals(0, target.getSize());
+    }
+    
+    @Test
+    public void testExpire() throws Exception
+    {
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 10);
+        target.put("key1", "value1");
+        Thread.sleep(50);
+        assertNull(target.get("key1"));
+        assertEquals(1, target.getExpirationCount());
+    }
+    
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 60000);
+        for(int i = 0; i < 100; ++i)
+        {
+            target.put("key" + i, "value" + i);
+        }
+        assertTrue(target.getSize() <= 10);
+        assertEquals(100 - target.getSize(), target.getEvictionCount());
+    }
+    
+    @Test
+    public void testFrequentEntriesSurviveScan() throws Exception
+    {
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 100, 60000);
+        for(int i = 0; i < 10; ++i)
+        {
+            target.get("hot" + i);
+            target.put("hot" + i, "value");
+        }
+        for(int n = 0; n < 5; ++n)
+        {
+            for(int i = 0; i < 10; ++i)
+            {
+                assertNotNull(target.get("hot" + i));
+            }
+        }
+        
+        // scan of entries used only once.
+        for(int i = 0; i < 300; ++i)
+        {
+            target.get("cold" + i);
+            target.put("cold" + i, "value");
+        }
+        
+        for(int i = 0; i < 10; ++i)
+        {
+            assertNotNull("hot" + i, target.get("hot" + i));
+        }
+    }
+    
+    @Test
+    public void testDisabled() throws Exception
+    {
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 0, 60000);
+        target.put("key1", "value1");
+        assertNull(target.get("key1"));
+        
+        target = new LdapCache<String, String>("test", 10, 0);
+        target.put("key1", "value1");
+        assertNull(target.get("key1"));
+    }
+    
+    @Test
+    public void testRefreshAhead() throws Exception
+    {
+        Executor sameThread = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                command.run();
+            }
+        };
+        final String[] next = new String[]{ "value1" };
+        LdapCache.Loader<String, String> loader = new LdapCache.Loader<String, String>()
+        {
+            public String load(String key)
+            {
+                if(next[0] == null)
+                {
+                    throw new IllegalStateException("unavailable");
+                }
+                return next[0];
+            }
+        };
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 200, 50, sameThread);
+        
+        assertEquals("value1", target.get("key1", loader));
+        next[0] = "value2";
+        assertEquals("value1", target.get("key1", loader));
+        assertEquals(0, target.getRefreshCount());
+        
+        // read after 50% of TTL reloads the value.
+        Thread.sleep(120);
+        assertEquals("value1", target.get("key1", loader));
+        assertEquals("value2", target.get("key1", loader));
+        assertEquals(1, target.getRefreshCount());
+        
+        // failures keep the current value.
+        next[0] = null;
+        Thread.sleep(120);
+        assertEquals("value2", target.get("key1", loader));
+        assertEquals("value2", target.get("key1", loader));
+        assertEquals(1, target.getRefreshFailureCount());
+        
+        // null refresher never reloads.
+        next[0] = "value3";
+        assertEquals("value2", target.get("key1", loader, null));
+        assertEquals(1, target.getRefreshCount());
+    }
+    
+    @Test
+    public void testRefreshAfterInvalidate() throws Exception
+    {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+        Executor deferred = new Executor()
+        {
+            public void execute(Runnable command)
+            {
+                tasks.add(command);
+            }
+        };
+        final String[] next = new String[]{ "value1" };
+        LdapCache.Loader<String, String> loader = new LdapCache.Loader<String, String>()
+        {
+            public String load(String key)
+            {
+                return next[0];
+            }
+        };
+        LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 200, 50, deferred);
+        
+        assertEquals("value1", target.get("key1", loader));
+        Thread.sleep(120);
+        assertEquals("value1", target.get("key1", loader));
+        assertEquals(1, tasks.size());
+        
+        // flushed while reloading.
+        target.invalidate("key1");
+        next[0] = "value2";
+        tasks.get(0).run();
+        assertNull("flushed entry is not restored", target.peek("key1"));
+        assertEquals(0, target.getRefreshCount());
+        
+        // replaced while reloading.
+        assertEquals("value2", target.get("key1", loader));
+        Thread.sleep(120);
+        assertEquals("value2", target.get("key1", loader));
+        assertEquals(2, tasks.size());
+        target.put("key1", "value3");
+        next[0] = "value4";
+        tasks.get(1).run();
+        assertEquals("new value is kept", "value3", target.peek("key1"));
+        assertEquals(0, target.getRefreshCount());
+    }
+    
+    @Test
+    public void testCoalesce() throws Exception
+    {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger loads = new AtomicInteger();
+        final String[] next = new String[]{ "value1" };
+        final LdapCache.Loader<String, String> loader = new LdapCache.Loader<String, String>()
+        {
+            public String load(String key)
+            {
+                loads.incrementAndGet();
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                if(next[0] == null)
+                {
+                    throw new IllegalStateException("unavailable");
+                }
+                return next[0];
+            }
+        };
+        final LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 60000);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try
+        {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for(int i = 0; i < 10; ++i)
+            {
+                results.add(executor.submit(new Callable<String>()
+                {
+                    public String call()
+                    {
+                        return target.get("key1", loader);
+                    }
+                }));
+            }
+            while(target.getCoalescedCount() < 9)
+            {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            for(Future<String> result: results)
+            {
+                assertEquals("value1", result.get());
+            }
+            assertEquals(1, loads.get());
+            assertEquals("value1", target.get("key1"));
+            
+            // exceptions are shared.
+            final CountDownLatch failing = new CountDownLatch(1);
+            next[0] = null;
+            target.invalidateAll();
+            final LdapCache.Loader<String, String> failingLoader = new LdapCache.Loader<String, String>()
+            {
+                public String load(String key)
+                {
+                    try
+                    {
+                        failing.await(10, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                    return loader.load(key);
+                }
+            };
+            long coalesced = target.getCoalescedCount();
+            results.clear();
+            for(int i = 0; i < 2; ++i)
+            {
+                results.add(executor.submit(new Callable<String>()
+                {
+                    public String call()
+                    {
+                        return target.get("key1", failingLoader);
+                    }
+                }));
+            }
+            while(target.getCoalescedCount() < coalesced + 1)
+            {
+                Thread.sleep(10);
+            }
+            failing.countDown();
+            for(Future<String> result: results)
+            {
+                try
+                {
+                    result.get();
+                    fail();
+                }
+                catch(ExecutionException e)
+                {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+            assertEquals(2, loads.get());
+            assertNull(target.get("key1"));
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testCoalesceDeadline() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LdapCache.Loader<String, String> loader = new LdapCache.Loader<String, String>()
+        {
+            public String load(String key)
+            {
+                started.countDown();
+                try
+                {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                return "value1";
+            }
+        };
+        final LdapCache<String, String> target = new LdapCache<String, String>("test", 10, 60000);
+        
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<String> owner = executor.submit(new Callable<String>()
+            {
+                public String call()
+                {
+                    return target.get("key1", loader);
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            
+            // waiters give up at the deadline.
+            long start = System.currentTimeMillis();
+            try
+            {
+                target.get("key1", loader, null, Deadline.after(100));
+                fail();
+            }
+            catch(DataRetrievalFailureException e)
+            {
+                assertTrue(System.currentTimeMillis() - start < 5000);
+            }
+            
+            // interrupts are kept.
+            Thread.currentThread().interrupt();
+            try
+            {
+                target.get("key1", loader, null, Deadline.unlimited());
+                fail();
+            }
+            catch(DataRetrievalFailureException e)
+            {
+                assertTrue(Thread.interrupted());
+            }
+            
+            release.countDown();
+            assertEquals("value1", owner.get());
+            assertEquals(2, target.getCoalescedCount());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
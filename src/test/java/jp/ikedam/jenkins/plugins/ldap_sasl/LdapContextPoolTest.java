@@ -0,0 +1,127 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.ldap.LdapContext;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapContextPool
+ */
+public class LdapContextPoolTest
+{
+    private static class NullFactory implements LdapContextPool.Factory
+    {
+        public LdapContext create()
+        {
+            return null;
+        }
+    }
+    
+    private static class StubFactory implements LdapContextPool.Factory
+    {
+        public int created = 0;
+        
+        public LdapContext create()
+        {
+            ++created;
+            return (LdapContext)Proxy.newProxyInstance(
+                    LdapContext.class.getClassLoader(),
+                    new Class<?>[]{LdapContext.class},
+                    new InvocationHandler()
+                    {
+                        public Object invoke(Object proxy, Method method, Object[] args)
+                        {
+                            if("equals".equals(method.getName()))
+                            {
+                                return proxy == args[0];
+                            }
+                            if("hashCode".equals(method.getName()))
+                            {
+                                return System.identityHashCode(proxy);
+                            }
+                            return null;
+                        }
+                    }
+            );
+        }
+    }
+    
+    @Test
+    public void testFailedContextIsNotReturned() throws Exception
+    {
+        StubFactory factory = new StubFactory();
+        LdapContextPool pool = new LdapContextPool(factory, 1, 1000, 0, 0, 60000);
+        try
+        {
+            LdapContextPool.Lease lease = pool.borrow();
+            LdapContext ctx = lease.getContext();
+            LdapContextPool.recordFailure(ctx, new NameNotFoundException());
+            lease.close();
+            
+            lease = pool.borrow();
+            assertSame("reused after an entry not found", ctx, lease.getContext());
+            LdapContextPool.recordFailure(ctx, new CommunicationException());
+            lease.close();
+            
+            lease = pool.borrow();
+            assertNotSame("not reused after a communication failure", ctx, lease.getContext());
+            lease.close();
+            assertEquals(2, factory.created);
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+    
+    @Test
+    public void testEvictorDoesNotHoldPool() throws Exception
+    {
+        LdapContextPool pool = new LdapContextPool(new NullFactory(), 1, 1000, 60000, 0, 0);
+        LdapSaslExecutors.WeakPeriodicTask<LdapContextPool> evictor = pool.getEvictor();
+        assertNotNull(evictor);
+        WeakReference<LdapContextPool> ref = new WeakReference<LdapContextPool>(pool);
+        pool = null;
+        for(int i = 0; i < 50 && ref.get() != null; ++i)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull("pool is collected while the evictor is scheduled", ref.get());
+        
+        evictor.run();
+        assertTrue("evictor cancels itself", evictor.isCancelled());
+    }
+}
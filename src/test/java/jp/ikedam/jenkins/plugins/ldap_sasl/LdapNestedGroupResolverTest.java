@@ -0,0 +1,187 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapNestedGroupResolver
+ */
+public class LdapNestedGroupResolverTest
+{
+    /**
+     * Searches parents from a map, counting searches for each group.
+     */
+    private static class MapSearcher implements LdapNestedGroupResolver.ParentSearcher
+    {
+        private final Map<String, List<String>> parents = new HashMap<String, List<String>>();
+        public final Map<String, AtomicInteger> counts = new ConcurrentHashMap<String, AtomicInteger>();
+        
+        public MapSearcher add(String child, String... parentNames)
+        {
+            parents.put(dn(child), Arrays.asList(parentNames));
+            return this;
+        }
+        
+        public List<LdapNestedGroupResolver.Group> searchParents(String dn)
+        {
+            String key = LdapSaslSecurityRealm.normalizeDn(dn);
+            counts.putIfAbsent(key, new AtomicInteger());
+            counts.get(key).incrementAndGet();
+            List<String> names = parents.get(key);
+            return (names != null)?groups(names.toArray(new String[0])):Collections.<LdapNestedGroupResolver.Group>emptyList();
+        }
+    }
+    
+    private static String dn(String name)
+    {
+        return String.format("cn=%s,ou=groups,dc=example,dc=com", name).toLowerCase();
+    }
+    
+    private static List<LdapNestedGroupResolver.Group> groups(String... names)
+    {
+        List<LdapNestedGroupResolver.Group> groups = new ArrayList<LdapNestedGroupResolver.Group>();
+        for(String name: names)
+        {
+            groups.add(new LdapNestedGroupResolver.Group(dn(name), name));
+        }
+        return groups;
+    }
+    
+    private static List<String> names(List<LdapNestedGroupResolver.Group> groups)
+    {
+        List<String> names = new ArrayList<String>();
+        for(LdapNestedGroupResolver.Group group: groups)
+        {
+            names.add(group.getName());
+        }
+        return names;
+    }
+    
+    @Test
+    public void testExpand() throws Exception
+    {
+        MapSearcher searcher = new MapSearcher()
+                .add("A", "B")
+                .add("B", "C")
+                .add("D", "C");
+        LdapNestedGroupResolver target = new LdapNestedGroupResolver(10, 1, null, null);
+        assertEquals(
+                Arrays.asList("A", "D", "C", "B"),
+                names(target.expand(groups("A", "D", "C"), searcher))
+        );
+        assertEquals("already found groups are not expanded again", 1, searcher.counts.get(dn("C")).get());
+    }
+    
+    @Test
+    public void testCycle() throws Exception
+    {
+        MapSearcher searcher = new MapSearcher()
+                .add("A", "B")
+                .add("B", "C")
+                .add("C", "A");
+        LdapNestedGroupResolver target = new LdapNestedGroupResolver(10, 1, null, null);
+        assertEquals(Arrays.asList("A", "B", "C"), names(target.expand(groups("A"), searcher)));
+        assertEquals(1, searcher.counts.get(dn("A")).get());
+    }
+    
+    @Test
+    public void testDepth() throws Exception
+    {
+        MapSearcher searcher = new MapSearcher()
+                .add("A", "B")
+                .add("B", "C")
+                .add("C", "D");
+        assertEquals(
+                Arrays.asList("A", "B", "C"),
+                names(new LdapNestedGroupResolver(2, 1, null, null).expand(groups("A"), searcher))
+        );
+        assertEquals(
+                Arrays.asList("A"),
+                names(new LdapNestedGroupResolver(0, 1, null, null).expand(groups("A"), searcher))
+        );
+    }
+    
+    @Test
+    public void testMemoize() throws Exception
+    {
+        MapSearcher searcher = new MapSearcher()
+                .add("A", "Shared")
+                .add("B", "Shared")
+                .add("Shared", "Root");
+        LdapCache<String, List<LdapNestedGroupResolver.Group>> cache
+                = new LdapCache<String, List<LdapNestedGroupResolver.Group>>("test", 100, 60000);
+        LdapNestedGroupResolver target = new LdapNestedGroupResolver(10, 1, cache, null);
+        
+        assertEquals(Arrays.asList("A", "Shared", "Root"), names(target.expand(groups("A"), searcher)));
+        assertEquals(Arrays.asList("B", "Shared", "Root"), names(target.expand(groups("B"), searcher)));
+        assertEquals("shared parents are searched only once", 1, searcher.counts.get(dn("Shared")).get());
+        assertEquals(1, searcher.counts.get(dn("Root")).get());
+    }
+    
+    @Test
+    public void testParallel() throws Exception
+    {
+        MapSearcher searcher = new MapSearcher();
+        String[] children = new String[20];
+        for(int i = 0; i < children.length; ++i)
+        {
+            children[i] = String.format("Child%d", i);
+            searcher.add(children[i], String.format("Parent%d", i % 5));
+        }
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try
+        {
+            LdapNestedGroupResolver target = new LdapNestedGroupResolver(10, 4, null, executor);
+            List<String> found = names(target.expand(groups(children), searcher));
+            assertEquals(25, found.size());
+            for(int i = 0; i < 5; ++i)
+            {
+                assertTrue(found.contains(String.format("Parent%d", i)));
+            }
+            for(String child: children)
+            {
+                assertEquals(1, searcher.counts.get(dn(child)).get());
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
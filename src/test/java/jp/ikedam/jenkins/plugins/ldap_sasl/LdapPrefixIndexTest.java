@@ -0,0 +1,53 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapPrefixIndex
+ */
+public class LdapPrefixIndexTest
+{
+    @Test
+    public void testFind()
+    {
+        LdapPrefixIndex target = new LdapPrefixIndex(Arrays.asList(
+                "test2", "Test1", "group1", "test10", "TEST1", "other"
+        ));
+        assertEquals("names differing only in case are merged", 5, target.size());
+        assertEquals(Arrays.asList("Test1", "test10", "test2"), target.find("test", 10));
+        assertEquals("case insensitive", Arrays.asList("Test1", "test10"), target.find("TEST1", 10));
+        assertEquals("limited", Arrays.asList("Test1", "test10"), target.find("t", 2));
+        assertEquals("all", Arrays.asList("group1", "other", "Test1"), target.find("", 3));
+        assertEquals("no match", Collections.emptyList(), target.find("test3", 10));
+        assertEquals("after all names", Collections.emptyList(), target.find("zzz", 10));
+        assertEquals("empty", Collections.emptyList(), LdapPrefixIndex.EMPTY.find("", 10));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapResourceTracker
+ */
+public class LdapResourceTrackerTest
+{
+    private static class ListEnumeration<T> implements NamingEnumeration<T>
+    {
+        private final Iterator<T> it;
+        public boolean closed = false;
+        
+        public ListEnumeration(List<T> list)
+        {
+            this.it = list.iterator();
+        }
+        
+        public boolean hasMoreElements()
+        {
+            return it.hasNext();
+        }
+        
+        public T nextElement()
+        {
+            return it.next();
+        }
+        
+        public T next() throws NamingException
+        {
+            return nextElement();
+        }
+        
+        public boolean hasMore() throws NamingException
+        {
+            return hasMoreElements();
+        }
+        
+        public void close() throws NamingException
+        {
+            closed = true;
+        }
+    }
+    
+    @Test
+    public void testClose() throws Exception
+    {
+        long mark = LdapResourceTracker.mark();
+        ListEnumeration<String> raw = new ListEnumeration<String>(Arrays.asList("a", "b"));
+        NamingEnumeration<String> entries = LdapResourceTracker.manage(raw, "test");
+        assertEquals("tracked", 1, LdapResourceTracker.getOpenCountSince(mark));
+        assertEquals("delegated", "a", entries.next());
+        
+        LdapResourceTracker.closeQuietly(entries);
+        assertTrue("delegated", raw.closed);
+        assertEquals("untracked when closed", 0, LdapResourceTracker.getOpenCountSince(mark));
+    }
+    
+    @Test
+    public void testExhausted() throws Exception
+    {
+        long mark = LdapResourceTracker.mark();
+        NamingEnumeration<String> entries = LdapResourceTracker.manage(
+                new ListEnumeration<String>(Arrays.asList("a")),
+                "test"
+        );
+        assertTrue(entries.hasMore());
+        entries.next();
+        assertEquals("still tracked", 1, LdapResourceTracker.getOpenCountSince(mark));
+        assertFalse(entries.hasMore());
+        assertEquals("untracked when exhausted", 0, LdapResourceTracker.getOpenCountSince(mark));
+    }
+    
+    @Test
+    public void testDetectLeaks() throws Exception
+    {
+        long threshold = LdapResourceTracker.LEAK_DETECTION_THRESHOLD;
+        try
+        {
+            LdapResourceTracker.LEAK_DETECTION_THRESHOLD = 1;
+            NamingEnumeration<String> leaked = LdapResourceTracker.manage(
+                    new ListEnumeration<String>(Arrays.asList("a")),
+                    "test"
+            );
+            NamingEnumeration<String> idle = LdapResourceTracker.manage(
+                    new ListEnumeration<String>(Arrays.asList("a")),
+                    "test"
+            );
+            LdapResourceTracker.markIdle(idle);
+            Thread.sleep(10);
+            assertTrue("reported", LdapResourceTracker.detectLeaks() >= 1);
+            assertEquals("reported only once", 0, LdapResourceTracker.detectLeaks());
+            leaked.close();
+            idle.close();
+        }
+        finally
+        {
+            LdapResourceTracker.LEAK_DETECTION_THRESHOLD = threshold;
+        }
+    }
+}
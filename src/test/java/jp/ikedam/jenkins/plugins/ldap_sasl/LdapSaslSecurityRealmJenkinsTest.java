@@ -136,7 +136,7 @@ public class LdapSaslSecurityRealmJenkinsTest
         // ldaps smallest uri
         {
             assertEquals("ldaps smallest uri",
-                    FormValidation.Kind.WARNING,
+                    FormValidation.Kind.OK,
                     descriptor.doCheckLdapUriList("ldaps:///").kind);
         }
         
@@ -144,7 +144,7 @@ public class LdapSaslSecurityRealmJenkinsTest
         {
             assertEquals(
                     "ldaps largest uri",
-                    FormValidation.Kind.WARNING,
+                    FormValidation.Kind.OK,
                     descriptor.doCheckLdapUriList("lDAPs://somehost:8636/dc=example,dc=com").kind);
         }
         
@@ -26,6 +26,8 @@ package jp.ikedam.jenkins.plugins.ldap_sasl;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.naming.directory.SearchControls;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -123,4 +125,281 @@ public class LdapSaslSecurityRealmSimpleTest
             assertNull(target.getQueryPassword());
         }
     }
+    
+    @Test
+    public void testConfiguration()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList("ldap:///", "http:///", "ldap:///", "ldaps://host/dc=example,dc=jp"),
+                "DIGEST-MD5 CRAM-MD5",
+                100,
+                30,
+                "ou=People,dc=example,dc=jp",
+                "(& (uid=${uid}) (mail=$uid@example.jp) (cn=${cn}))",
+                "ou=Groups,dc=example,dc=jp",
+                "ROLE_",
+                null,
+                null
+                );
+        LdapRealmConfiguration configuration = target.getConfiguration();
+        assertEquals(Arrays.asList("ldap:///", "ldaps://host/dc=example,dc=jp"), configuration.getLdapUris());
+        assertEquals("DIGEST-MD5 CRAM-MD5", configuration.getMechanisms());
+        assertEquals("ldap:///", configuration.newEnvironment("ldap:///").get(javax.naming.Context.PROVIDER_URL));
+        assertEquals("100", configuration.newEnvironment("ldap:///").get("com.sun.jndi.ldap.connect.timeout"));
+        assertEquals("30", configuration.newEnvironment("ldap:///").get("com.sun.jndi.ldap.read.timeout"));
+        assertEquals(
+                "(& (uid=test1) (mail=test1@example.jp) (cn=${cn}))",
+                configuration.getUserQuery("test1")
+        );
+        assertEquals(
+                "(| (& (objectClass=groupOfUniqueNames) (uniqueMember=cn=test1))"
+                    + "(& (objectClass=groupOfNames) (member=cn=test1)))",
+                target.getGroupSearchQuery("cn=test1")
+        );
+        
+        // only attributes used are requested
+        assertEquals(Arrays.asList("1.1"), Arrays.asList(configuration.getUserSearchControls().getReturningAttributes()));
+        assertEquals(2, configuration.getUserSearchControls().getCountLimit());
+        assertEquals(Arrays.asList("cn"), Arrays.asList(configuration.getGroupSearchControls().getReturningAttributes()));
+        
+        // environments are copied
+        configuration.newEnvironment("ldap:///").put("test", "test");
+        assertNull(configuration.newEnvironment("ldap:///").get("test"));
+    }
+    
+    @Test
+    public void testGroupMembershipAttribute()
+    {
+        String membershipAttribute = LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE;
+        try
+        {
+            LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE = " memberOf ";
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldap:///"),
+                    "DIGEST-MD5",
+                    0,
+                    0,
+                    null,
+                    "uid=${uid}",
+                    null,
+                    null,
+                    null,
+                    null
+                    );
+            LdapRealmConfiguration configuration = target.getConfiguration();
+            assertEquals("memberOf", configuration.getGroupMembershipAttribute());
+            assertEquals(Arrays.asList("memberOf"), Arrays.asList(configuration.getUserSearchControls().getReturningAttributes()));
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE = membershipAttribute;
+        }
+    }
+    
+    @Test
+    public void testUserDnTemplate()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList("ldap:///"),
+                "DIGEST-MD5",
+                0,
+                0,
+                null,
+                null,
+                null,
+                null,
+                null,
+                null,
+                false,
+                "  uid=${uid},ou=People,dc=example,dc=jp  "
+                );
+        assertEquals("uid=${uid},ou=People,dc=example,dc=jp", target.getUserDnTemplate());
+        LdapRealmConfiguration configuration = target.getConfiguration();
+        assertTrue(configuration.isUserDnTemplateEnabled());
+        assertEquals("uid=test1,ou=People,dc=example,dc=jp", configuration.getUserDn("test1"));
+        assertEquals(
+                "uid=a\\,b\\+c=d,ou=People,dc=example,dc=jp",
+                configuration.getUserDn("a,b+c=d")
+        );
+        assertEquals(SearchControls.OBJECT_SCOPE, configuration.getUserReadControls().getSearchScope());
+        
+        // RFC 4514
+        assertEquals("test1", LdapRealmConfiguration.escapeDnValue("test1"));
+        assertEquals("a\\,b\\+c=d", LdapRealmConfiguration.escapeDnValue("a,b+c=d"));
+        assertEquals("\\\"\\;\\<\\>\\\\", LdapRealmConfiguration.escapeDnValue("\";<>\\"));
+        assertEquals("\\#a#", LdapRealmConfiguration.escapeDnValue("#a#"));
+        assertEquals("\\ a b\\ ", LdapRealmConfiguration.escapeDnValue(" a b "));
+        assertEquals("a\\00b", LdapRealmConfiguration.escapeDnValue("a\u0000b"));
+        
+        // not configured
+        target = new LdapSaslSecurityRealm(
+                Arrays.asList("ldap:///"),
+                "DIGEST-MD5",
+                0,
+                0,
+                null,
+                "uid=${uid}",
+                null,
+                null,
+                null,
+                null,
+                false,
+                "  "
+                );
+        assertFalse(target.getConfiguration().isUserDnTemplateEnabled());
+        assertNull(target.getConfiguration().getUserDn("test1"));
+    }
+    
+    @Test
+    public void testUserNameAttribute()
+    {
+        String[][] patterns = {
+            // template, attribute, query for all users
+            {"uid=${uid}", "uid", "uid=*"},
+            {"(& (objectClass=user) (sAMAccountName = $uid))", "sAMAccountName", "(& (objectClass=user) (sAMAccountName = *))"},
+            {"(& (uid=${uid}) (mail=$uid@example.jp))", "uid", "(& (uid=*) (mail=*@example.jp))"},
+            {"(objectClass=person)", null, null},
+            {"uid=$uidx", null, null},
+            {null, null, null},
+        };
+        for(String[] pattern: patterns)
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldap:///"),
+                    "DIGEST-MD5",
+                    0,
+                    0,
+                    null,
+                    pattern[0],
+                    null,
+                    null,
+                    null,
+                    null
+                    );
+            LdapRealmConfiguration configuration = target.getConfiguration();
+            assertEquals(pattern[0], pattern[1], configuration.getUserNameAttribute());
+            assertEquals(pattern[0], pattern[2], configuration.getAllUsersQuery());
+        }
+    }
+    
+    @Test
+    public void testNormalize()
+    {
+        assertEquals("test1", LdapSaslSecurityRealm.normalizeUsername(" Test1 "));
+        assertEquals(
+                "cn=user1,ou=people,dc=example,dc=com",
+                LdapSaslSecurityRealm.normalizeDn("CN=User1, ou=People,DC=example, dc=com")
+        );
+        assertEquals(
+                LdapSaslSecurityRealm.normalizeDn("cn=User\\,1,dc=example,dc=com"),
+                LdapSaslSecurityRealm.normalizeDn("CN=user\\,1, DC=Example,DC=com")
+        );
+    }
+    
+    @Test
+    public void testRebindSupported()
+    {
+        String[][] patterns = {
+            {"PLAIN", "true"},
+            {"plain", "true"},
+            {"PLAIN SIMPLE", "true"},
+            {"DIGEST-MD5", "false"},
+            {"PLAIN DIGEST-MD5", "false"},
+            {"", "false"},
+        };
+        for(String[] pattern: patterns)
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldap:///"),
+                    pattern[0],
+                    0,
+                    0,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null
+                    );
+            assertEquals(pattern[0], Boolean.parseBoolean(pattern[1]), target.getConfiguration().isRebindSupported());
+        }
+    }
+    
+    @Test
+    public void testTls()
+    {
+        // without StartTLS
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldap:///", "ldaps://host/"),
+                    "DIGEST-MD5",
+                    0,
+                    0,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null
+                    );
+            assertFalse(target.isUseStartTls());
+            LdapRealmConfiguration configuration = target.getConfiguration();
+            assertFalse(configuration.isTlsRequired("ldap:///"));
+            assertFalse(configuration.isStartTlsRequired("ldap:///"));
+            assertNull(configuration.newEnvironment("ldap:///").get("java.naming.ldap.factory.socket"));
+            assertTrue(configuration.isTlsRequired("ldaps://host/"));
+            assertFalse(configuration.isStartTlsRequired("ldaps://host/"));
+            assertEquals(
+                    LdapSslSocketFactory.class.getName(),
+                    configuration.newEnvironment("ldaps://host/").get("java.naming.ldap.factory.socket")
+            );
+        }
+        
+        // with StartTLS
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldap:///", "ldaps://host/"),
+                    "DIGEST-MD5",
+                    0,
+                    0,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    true
+                    );
+            assertTrue(target.isUseStartTls());
+            LdapRealmConfiguration configuration = target.getConfiguration();
+            assertTrue(configuration.isTlsRequired("ldap:///"));
+            assertTrue(configuration.isStartTlsRequired("ldap:///"));
+            assertNull(configuration.newEnvironment("ldap:///").get("java.naming.ldap.factory.socket"));
+            assertTrue(configuration.isTlsRequired("ldaps://host/"));
+            assertFalse(configuration.isStartTlsRequired("ldaps://host/"));
+        }
+        
+        // SSLContext is built only once
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList("ldaps://host/"),
+                    "DIGEST-MD5",
+                    0,
+                    0,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    null,
+                    false
+                    );
+            assertNull(target.getTlsStatistics());
+            LdapTlsContext tls = target.getTlsContext();
+            assertSame(tls, target.getTlsContext());
+            assertSame(tls, target.getTlsStatistics());
+            assertEquals(0, tls.getHandshakeCount());
+            assertEquals(-1, tls.getAverageHandshakeMillis());
+        }
+    }
 }
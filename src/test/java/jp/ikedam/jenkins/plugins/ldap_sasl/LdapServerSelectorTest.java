@@ -0,0 +1,160 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapServerSelector
+ */
+public class LdapServerSelectorTest
+{
+    private static final LdapServerSelector.Prober ALWAYS_AVAILABLE = new LdapServerSelector.Prober()
+    {
+        public boolean probe(String uri)
+        {
+            return true;
+        }
+    };
+    
+    private static String[] urisOf(List<LdapServerSelector.ServerState> servers)
+    {
+        String[] uris = new String[servers.size()];
+        for(int i = 0; i < uris.length; ++i)
+        {
+            uris[i] = servers.get(i).getUri();
+        }
+        return uris;
+    }
+    
+    @Test
+    public void testSelect()
+    {
+        LdapServerSelector target = new LdapServerSelector(
+                Arrays.asList("ldap://server1/", "ldap://server2/", "ldap://server3/"),
+                2,
+                0,
+                ALWAYS_AVAILABLE
+        );
+        
+        // configured order at first
+        assertArrayEquals(
+                new String[]{"ldap://server1/", "ldap://server2/", "ldap://server3/"},
+                urisOf(target.select())
+        );
+        
+        // faster servers first, unmeasured servers first
+        target.recordSuccess(target.getServers().get(0), 100);
+        target.recordSuccess(target.getServers().get(1), 10);
+        assertArrayEquals(
+                new String[]{"ldap://server3/", "ldap://server2/", "ldap://server1/"},
+                urisOf(target.select())
+        );
+    }
+    
+    @Test
+    public void testWhoAmISupported()
+    {
+        LdapServerSelector target = new LdapServerSelector(
+                Arrays.asList("ldap://server1/", "ldap://server2/"),
+                2,
+                0,
+                ALWAYS_AVAILABLE
+        );
+        assertNull("unknown at first", target.getServer("ldap://server1/").getWhoAmISupported());
+        
+        // remembered for each server
+        target.getServer("ldap://server1/").setWhoAmISupported(false);
+        target.getServer("ldap://server2/").setWhoAmISupported(true);
+        assertEquals(Boolean.FALSE, target.getServer("ldap://server1/").getWhoAmISupported());
+        assertEquals(Boolean.TRUE, target.getServer("ldap://server2/").getWhoAmISupported());
+    }
+    
+    @Test
+    public void testCircuit()
+    {
+        LdapServerSelector target = new LdapServerSelector(
+                Arrays.asList("ldap://server1/", "ldap://server2/"),
+                2,
+                0,
+                ALWAYS_AVAILABLE
+        );
+        LdapServerSelector.ServerState server1 = target.getServers().get(0);
+        
+        target.recordFailure(server1);
+        assertEquals("not opened with a single failure", LdapServerSelector.Circuit.CLOSED, server1.getCircuit());
+        
+        target.recordFailure(server1);
+        assertEquals("opened with failures in a row", LdapServerSelector.Circuit.OPEN, server1.getCircuit());
+        assertArrayEquals(new String[]{"ldap://server2/"}, urisOf(target.select()));
+        
+        // all servers are unavailable
+        target.recordFailure(target.getServers().get(1));
+        target.recordFailure(target.getServers().get(1));
+        assertArrayEquals(
+                "try all servers when no server is available",
+                new String[]{"ldap://server1/", "ldap://server2/"},
+                urisOf(target.select())
+        );
+        
+        target.recordSuccess(server1, 10);
+        assertEquals("closed with a success", LdapServerSelector.Circuit.CLOSED, server1.getCircuit());
+        assertEquals(0, server1.getConsecutiveFailures());
+    }
+    
+    @Test
+    public void testProbe() throws Exception
+    {
+        LdapServerSelector target = new LdapServerSelector(
+                Arrays.asList("ldap://server1/", "ldap://server2/"),
+                1,
+                1,
+                ALWAYS_AVAILABLE
+        );
+        LdapServerSelector.ServerState server1 = target.getServers().get(0);
+        target.recordFailure(server1);
+        assertEquals(LdapServerSelector.Circuit.OPEN, server1.getCircuit());
+        
+        Thread.sleep(10);
+        target.probe();
+        for(int i = 0; i < 100 && server1.getCircuit() == LdapServerSelector.Circuit.OPEN; ++i)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals("half-opened when probed", LdapServerSelector.Circuit.HALF_OPEN, server1.getCircuit());
+        assertArrayEquals(
+                "half-opened servers are tried after healthy ones",
+                new String[]{"ldap://server2/", "ldap://server1/"},
+                urisOf(target.select())
+        );
+        
+        target.recordFailure(server1);
+        assertEquals("opened again with a failure", LdapServerSelector.Circuit.OPEN, server1.getCircuit());
+    }
+}
@@ -23,14 +23,36 @@
  */
 package jp.ikedam.jenkins.plugins.ldap_sasl;
 
+import hudson.security.SecurityRealm;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.InitialLdapContext;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsResponseControl;
 
 import org.acegisecurity.AuthenticationServiceException;
 import org.acegisecurity.BadCredentialsException;
+import org.acegisecurity.GrantedAuthority;
 import org.acegisecurity.GrantedAuthorityImpl;
 import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
 import org.apache.commons.io.FileUtils;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -95,6 +117,28 @@ public class LdapTest
         EmbeddedUtils.startServer(config);
     }
     
+    /**
+     * Asserts the number of LDAP resources opened after the mark and open now.
+     * 
+     * Waits for a while, as connections losing races are closed in background.
+     */
+    private static void assertOpenCountSince(String message, int expected, long mark)
+    {
+        for(int i = 0; i < 100 && LdapResourceTracker.getOpenCountSince(mark) != expected; ++i)
+        {
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        assertEquals(message, expected, LdapResourceTracker.getOpenCountSince(mark));
+    }
+    
     @AfterClass
     public static void tearDownLdap()
     {
@@ -228,6 +272,32 @@ public class LdapTest
         }
     }
     
+    @Test
+    @For(LdapResourceTracker.class)
+    public void testLdapSaslSecurityRealm_ResourcesClosed()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "objectClass=inetOrgPerson",
+                "dc=example,dc=com",
+                null,
+                null,
+                null
+                );
+        
+        long mark = LdapResourceTracker.mark();
+        // more than one user matches, and the search is aborted.
+        LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+        assertNull(user.getDn());
+        assertOpenCountSince("connections and search results are closed", 0, mark);
+    }
+    
     @Test
     @For(LdapSaslSecurityRealm.class)
     public void testLdapSaslSecurityRealm_Failure()
@@ -343,6 +413,302 @@ public class LdapTest
         }
     }
     
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testLdapSaslSecurityRealm_LoginTimeout() throws InterruptedException
+    {
+        long loginTimeout = LdapSaslSecurityRealm.LOGIN_TIMEOUT;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final AtomicReference<Deadline> passedDeadline = new AtomicReference<Deadline>();
+        try
+        {
+            LdapSaslSecurityRealm.LOGIN_TIMEOUT = 200;
+            // blocks until the caller gives up, regardless of how fast LDAP is.
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    null,
+                    null
+                    )
+            {
+                @Override
+                protected UserDetails authenticate(String username, String password, Deadline deadline)
+                {
+                    passedDeadline.set(deadline);
+                    started.countDown();
+                    try
+                    {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e)
+                    {
+                        interrupted.countDown();
+                    }
+                    throw new AuthenticationServiceException("Login timeout: released without timing out");
+                }
+            };
+            
+            try
+            {
+                target.authenticate("test1", "password1");
+                assertTrue("Login timeout: Not reachable", false);
+            }
+            catch(AuthenticationServiceException e)
+            {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Timed out to authenticate test1"));
+            }
+            assertTrue("Login timeout: authentication started", started.await(0, TimeUnit.MILLISECONDS));
+            assertTrue("Login timeout: deadline passed", passedDeadline.get().isExpired());
+            assertTrue("Login timeout: blocked authentication cancelled", interrupted.await(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            release.countDown();
+            LdapSaslSecurityRealm.LOGIN_TIMEOUT = loginTimeout;
+        }
+    }
+    
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapContextPool.class})
+    public void testLdapSaslSecurityRealm_Rebind()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "PLAIN",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                null,
+                null,
+                null,
+                null
+                );
+        long mark = LdapResourceTracker.mark();
+        
+        // success
+        {
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Rebind: success", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Rebind: connection is pooled", 1, target.getRebindContextPool().getIdleCount());
+        }
+        
+        // the pooled connection is reused
+        {
+            LdapUser user = (LdapUser)target.authenticate("test2", "password2");
+            assertEquals("Rebind: reused", "cn=User2,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Rebind: connection is reused", 1, target.getRebindContextPool().getIdleCount());
+        }
+        
+        // bad password
+        try
+        {
+            target.authenticate("test1", "badpassword");
+            assertTrue("Rebind: bad password: Not reachable", false);
+        }
+        catch(BadCredentialsException e)
+        {
+            assertTrue("Rebind: bad password", true);
+        }
+        
+        // success after failure
+        {
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Rebind: success after failure", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+        }
+        
+        target.getRebindContextPool().close();
+        assertOpenCountSince("Rebind: no connections left", 0, mark);
+    }
+    
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapContextPool.class, LdapResourceTracker.class})
+    public void testLdapSaslSecurityRealm_Replaced() throws Exception
+    {
+        long mark = LdapResourceTracker.mark();
+        LdapSaslSecurityRealm.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(LdapSaslSecurityRealm.DescriptorImpl.class);
+        
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                "test3",
+                "password3"
+                );
+        descriptor.setActiveRealm(target);
+        target.loadUserByUsername("test1");
+        assertEquals("Replaced: pooled", 1, target.getQueryContextPool().getIdleCount());
+        
+        // replaced with another realm of this type.
+        LdapSaslSecurityRealm replacing = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                "test3",
+                "password3"
+                );
+        descriptor.setActiveRealm(replacing);
+        assertOpenCountSince("Replaced: closed", 0, mark);
+        
+        replacing.loadUserByUsername("test2");
+        assertEquals("Replaced: pooled", 1, replacing.getQueryContextPool().getIdleCount());
+        
+        // replaced with another type of realm when saved.
+        j.jenkins.setSecurityRealm(SecurityRealm.NO_AUTHENTICATION);
+        j.jenkins.save();
+        assertOpenCountSince("Replaced with another type: closed", 0, mark);
+    }
+    
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapContextPool.class})
+    public void testLdapSaslSecurityRealm_RebindServiceFailure()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "PLAIN",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                null,
+                null,
+                "test3",
+                "badpassword"
+                );
+        long mark = LdapResourceTracker.mark();
+        
+        // the service identity fails to bind: falls back to a new connection.
+        LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+        assertEquals("Rebind service failure: success", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+        assertEquals("Rebind service failure: not pooled", 0, target.getRebindContextPool().getIdleCount());
+        assertFalse("Rebind service failure: not rejected", target.getBadCredentialCache().isRejected("test1", "password1"));
+        
+        target.getQueryContextPool().close();
+        target.getRebindContextPool().close();
+        assertOpenCountSince("Rebind service failure: no connections left", 0, mark);
+    }
+    
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapConnectionRacer.class})
+    public void testLdapSaslSecurityRealm_ConnectRace()
+    {
+        int connectRaceWidth = LdapSaslSecurityRealm.CONNECT_RACE_WIDTH;
+        try
+        {
+            LdapSaslSecurityRealm.CONNECT_RACE_WIDTH = 2;
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            "ldap://127.0.0.1:1/",
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    null,
+                    null
+                    );
+            long mark = LdapResourceTracker.mark();
+            
+            // success
+            {
+                LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+                assertEquals("Connect race: success", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            }
+            
+            // bad password
+            try
+            {
+                target.authenticate("test1", "badpassword");
+                assertTrue("Connect race: bad password: Not reachable", false);
+            }
+            catch(BadCredentialsException e)
+            {
+                assertTrue("Connect race: bad password", true);
+            }
+            
+            assertOpenCountSince("Connect race: no connections left", 0, mark);
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.CONNECT_RACE_WIDTH = connectRaceWidth;
+        }
+    }
+    
+    @Test
+    @For(LdapConnectionRacer.class)
+    public void testConnectRace_Rejected() throws Exception
+    {
+        // a saturated executor: connects in the calling thread.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        LdapServerSelector selector = new LdapServerSelector(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                3,
+                0,
+                null
+                );
+        final List<Thread> connectedIn = new ArrayList<Thread>();
+        LdapConnectionRacer.Winner winner = new LdapConnectionRacer(executor, 2, 100).race(
+                selector.getServers(),
+                new LdapConnectionRacer.Connector()
+                {
+                    public LdapContext connect(LdapServerSelector.ServerState server) throws NamingException
+                    {
+                        connectedIn.add(Thread.currentThread());
+                        Hashtable<String, Object> env = new Hashtable<String, Object>();
+                        env.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+                        env.put(Context.PROVIDER_URL, server.getUri());
+                        env.put(Context.SECURITY_AUTHENTICATION, "none");
+                        return new InitialLdapContext(env, null);
+                    }
+                },
+                Deadline.after(3000)
+        );
+        try
+        {
+            assertNotNull("Connect race rejected: connected", winner.ctx);
+            assertEquals("Connect race rejected: in the calling thread", Arrays.asList(Thread.currentThread()), connectedIn);
+        }
+        finally
+        {
+            winner.ctx.close();
+        }
+    }
+    
     @Test
     @For(LdapSaslSecurityRealm.class)
     public void testLdapSaslSecurityRealm_loadUserByUsernameSuccess()
@@ -365,6 +731,39 @@ public class LdapTest
         assertEquals("cn=User1,ou=People,dc=example,dc=com", user.getDn());
     }
     
+    @Test
+    @For(LdapContextPool.class)
+    public void testLdapSaslSecurityRealm_loadUserByUsernamePooled()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                "test3",
+                "password3"
+                );
+        LdapUser user1 = (LdapUser)target.loadUserByUsername("test1");
+        assertEquals("cn=User1,ou=People,dc=example,dc=com", user1.getDn());
+        assertEquals("connection is returned to the pool", 1, target.getQueryContextPool().getIdleCount());
+        
+        LdapUser user2 = (LdapUser)target.loadUserByUsername("test2");
+        assertEquals("cn=User2,ou=People,dc=example,dc=com", user2.getDn());
+        assertEquals("connection is reused", 1, target.getQueryContextPool().getIdleCount());
+        assertEquals("connection is returned to the pool", 0, target.getQueryContextPool().getActiveCount());
+        
+        assertSame("cached", user1, target.loadUserByUsername("test1"));
+        assertSame("cached with the normalized name", user1, target.loadUserByUsername("TEST1"));
+        target.getUserCache().invalidate("test1");
+        assertNotSame("reloaded after flushed", user1, target.loadUserByUsername("test1"));
+    }
+    
     @Test
     @For(LdapSaslSecurityRealm.class)
     public void testLdapSaslSecurityRealm_loadUserByUsernameNotFound()
@@ -431,34 +830,136 @@ public class LdapTest
     }
     
     @Test
-    @For(LdapSaslSecurityRealm.class)
-    public void testSearchUserDnResolver_Success()
+    @For({LdapGroupNameIndex.class, LdapGroupLoader.class})
+    public void testLdapSaslSecurityRealm_loadGroupByGroupnameIndexed() throws Exception
     {
-        // Success
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "ou=Group,dc=example,dc=com",
+                "ROLE_",
+                "test3",
+                "password3"
+                );
+        long mark = LdapResourceTracker.mark();
+        
+        // searched until loaded.
+        LdapGroup group = (LdapGroup)target.loadGroupByGroupname("ROLE_group3");
+        assertEquals("searched", "ROLE_Group3", group.getName());
+        assertEquals("searched", "cn=Group3,ou=Group,dc=example,dc=com", group.getDn());
+        
+        target.getGroupNameIndex().loadNow();
+        assertEquals("loaded all at once", 6, target.getGroupNameIndex().getGroupCount());
+        
+        group = (LdapGroup)target.loadGroupByGroupname("ROLE_uniquegroup3");
+        assertEquals("case insensitive", "ROLE_UniqueGroup3", group.getName());
+        assertEquals(
+                "members are read when requested",
+                new HashSet<String>(Arrays.asList(
+                        "cn=User1,ou=People,dc=example,dc=com",
+                        "cn=User2,ou=People,dc=example,dc=com"
+                )),
+                group.getMemberDns()
+        );
+        
+        try
         {
-            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
-                    Arrays.asList(
-                            String.format("ldap://127.0.0.1:%d/", ldapPort)
-                            ),
-                    "DIGEST-MD5",
-                    0,
-                    3000,
-                    "dc=example,dc=com",
-                    "uid=${uid}",
-                    null,
-                    null,
-                    null,
-                    null
-                    );
-            
-            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
-            assertEquals("Query for user", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            target.loadGroupByGroupname("ROLE_NoSuchGroup");
+            fail("no such group");
+        }
+        catch(UsernameNotFoundException e)
+        {
+            // pass
         }
         
-        // Success(other than uid)
+        try
         {
-            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
-                    Arrays.asList(
+            target.loadGroupByGroupname("Group1");
+            fail("without the prefix");
+        }
+        catch(UsernameNotFoundException e)
+        {
+            // pass
+        }
+        
+        target.getQueryContextPool().close();
+        assertOpenCountSince("loadGroupByGroupname: no resources left", 0, mark);
+    }
+    
+    @Test
+    @For({LdapUserNameIndex.class, LdapGroupNameIndex.class})
+    public void testLdapSaslSecurityRealm_getNameCandidates() throws Exception
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "ou=Group,dc=example,dc=com",
+                "ROLE_",
+                "test3",
+                "password3"
+                );
+        target.getUserNameIndex().loadNow();
+        target.getGroupNameIndex().loadNow();
+        
+        assertEquals("users", Arrays.asList("test1", "test2", "test3"), target.getNameCandidates("TE"));
+        assertEquals("groups", Arrays.asList("ROLE_UniqueGroup1", "ROLE_UniqueGroup2", "ROLE_UniqueGroup3"), target.getNameCandidates("role_uni"));
+        assertEquals("inputting the prefix", 6, target.getNameCandidates("RO").size());
+        assertEquals("all", 9, target.getNameCandidates("").size());
+        assertEquals("none", 0, target.getNameCandidates("nosuchname").size());
+        
+        int size = LdapSaslSecurityRealm.AUTO_COMPLETE_SIZE;
+        try
+        {
+            LdapSaslSecurityRealm.AUTO_COMPLETE_SIZE = 2;
+            assertEquals("limited", Arrays.asList("test1", "test2", "ROLE_Group1", "ROLE_Group2"), target.getNameCandidates(""));
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.AUTO_COMPLETE_SIZE = size;
+        }
+    }
+    
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testSearchUserDnResolver_Success()
+    {
+        // Success
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    null,
+                    null,
+                    null,
+                    null
+                    );
+            
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Query for user", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+        }
+        
+        // Success(other than uid)
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
                             String.format("ldap://127.0.0.1:%d/", ldapPort)
                             ),
                     "DIGEST-MD5",
@@ -582,6 +1083,204 @@ public class LdapTest
         }
     }
     
+    private LdapSaslSecurityRealm createWhoAmIRealm(String userSearchBase, String userQueryTemplate)
+    {
+        return new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                userSearchBase,
+                userQueryTemplate,
+                "dc=example,dc=com",
+                null,
+                null,
+                null
+                );
+    }
+    
+    @Test
+    @For(LdapWhoAmIRequest.class)
+    public void testWhoAmI()
+    {
+        assertFalse("Who am I: disabled by default", LdapSaslSecurityRealm.USE_WHO_AM_I);
+        
+        boolean useWhoAmI = LdapSaslSecurityRealm.USE_WHO_AM_I;
+        try
+        {
+            LdapSaslSecurityRealm.USE_WHO_AM_I = true;
+            {
+                LdapSaslSecurityRealm target = createWhoAmIRealm("dc=example,dc=com", "uid=${uid}");
+                LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+                assertEquals("Who am I: DN", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+                assertEquals("Who am I: groups", 4, user.getAuthorities().length);
+                assertEquals(
+                        "Who am I: remembered for the server",
+                        Boolean.TRUE,
+                        target.getServerSelector().getServer(String.format("ldap://127.0.0.1:%d/", ldapPort)).getWhoAmISupported()
+                );
+                
+                // User3 is denied "Who am I?".
+                user = (LdapUser)target.authenticate("test3", "password3");
+                assertEquals("Who am I: fall back to the search", "cn=User3,ou=People,dc=example,dc=com", user.getDn());
+            }
+            
+            {
+                // a query finding no users.
+                LdapSaslSecurityRealm target = createWhoAmIRealm("dc=example,dc=com", "(& (uid=${uid}) (objectClass=groupOfNames))");
+                LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+                assertNull("Who am I: not matching the user query", user.getDn());
+            }
+            
+            {
+                LdapSaslSecurityRealm target = createWhoAmIRealm("ou=Group,dc=example,dc=com", "uid=${uid}");
+                LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+                assertNull("Who am I: not under the user search base", user.getDn());
+            }
+            
+            {
+                // not used to look up users, as bound as the query user.
+                LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                        Arrays.asList(
+                                String.format("ldap://127.0.0.1:%d/", ldapPort)
+                                ),
+                        "DIGEST-MD5",
+                        0,
+                        3000,
+                        "dc=example,dc=com",
+                        "uid=${uid}",
+                        "dc=example,dc=com",
+                        null,
+                        "test2",
+                        "password2"
+                        );
+                LdapUser user = (LdapUser)target.loadUserByUsername("test1");
+                assertEquals("Who am I: not for lookups", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            }
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.USE_WHO_AM_I = useWhoAmI;
+        }
+    }
+    
+    @Test
+    @For(LdapWhoAmIRequest.class)
+    public void testWhoAmI_NotSupported() throws Exception
+    {
+        boolean useWhoAmI = LdapSaslSecurityRealm.USE_WHO_AM_I;
+        stopLdapServer();
+        try
+        {
+            LdapSaslSecurityRealm.USE_WHO_AM_I = true;
+            startLdapServer("config_nowhoami.ldif");
+            LdapSaslSecurityRealm target = createWhoAmIRealm("dc=example,dc=com", "uid=${uid}");
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Not supported: fall back to the search", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Not supported: groups", 4, user.getAuthorities().length);
+            assertEquals(
+                    "Not supported: remembered for the server",
+                    Boolean.FALSE,
+                    target.getServerSelector().getServer(String.format("ldap://127.0.0.1:%d/", ldapPort)).getWhoAmISupported()
+            );
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.USE_WHO_AM_I = useWhoAmI;
+            stopLdapServer();
+            startLdapServer("config.ldif");
+        }
+    }
+    
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testUserDnTemplate()
+    {
+        // template only
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    null,
+                    null,
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "password3",
+                    false,
+                    "cn=${uid},ou=People,dc=example,dc=com"
+                    );
+            LdapUser user = (LdapUser)target.loadUserByUsername("User1");
+            assertEquals("Template: DN", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Template: groups", 4, user.getAuthorities().length);
+            
+            assertNull("Template: no entry at the DN", target.loadUserByUsername("test1"));
+            
+            user = (LdapUser)target.authenticate("test1", "password1");
+            assertNull("Template: no entry at the DN", user.getDn());
+            assertEquals("Template: no entry at the DN", 0, user.getAuthorities().length);
+        }
+        
+        // template with the user query
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "(& (cn=${uid}) (mail=*))",
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "password3",
+                    false,
+                    "cn=${uid},ou=People,dc=example,dc=com"
+                    );
+            long mark = LdapResourceTracker.mark();
+            
+            LdapUser user = (LdapUser)target.loadUserByUsername("User2");
+            assertEquals("Query: found with the template", "cn=User2,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Query: groups", 4, user.getAuthorities().length);
+            
+            assertNull("Query: not searched", target.loadUserByUsername("test1"));
+            assertNull("Query: not found", target.loadUserByUsername("nosuchuser"));
+            
+            target.getQueryContextPool().close();
+            target.getRebindContextPool().close();
+            assertOpenCountSince("Query: no resources left", 0, mark);
+        }
+        
+        // template with the user query not matching
+        {
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "(& (cn=${uid}) (objectClass=groupOfNames))",
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "password3",
+                    false,
+                    "cn=${uid},ou=People,dc=example,dc=com"
+                    );
+            assertNull("Not matching: not found", target.loadUserByUsername("User1"));
+        }
+    }
+    
     @Test
     @For(LdapSaslSecurityRealm.class)
     public void testSearchUserDnResolver_Failure()
@@ -756,6 +1455,405 @@ public class LdapTest
         }
     }
     
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapCache.class})
+    public void testSearchGroupResolver_Cached()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                null,
+                null
+                );
+        
+        LdapUser user1 = (LdapUser)target.authenticate("test1", "password1");
+        assertEquals("Groups are cached", 1, target.getGroupCache().getSize());
+        assertEquals("Groups are cached", 0, target.getGroupCache().getHitCount());
+        
+        LdapUser user2 = (LdapUser)target.authenticate("test1", "password1");
+        assertEquals("Cached groups are used", 1, target.getGroupCache().getHitCount());
+        assertEquals("Cached groups are used", 4, user2.getAuthorities().length);
+        assertEquals(
+                "Cached groups are used",
+                Arrays.asList(user1.getAuthorities()),
+                Arrays.asList(user2.getAuthorities())
+        );
+    }
+    
+    @Test
+    @For({LdapSaslSecurityRealm.class, LdapCache.class})
+    public void testSearchGroupResolver_CachedAsBoundUser()
+    {
+        String dn = "cn=User1,ou=People,dc=example,dc=com";
+        {
+            // without the query user, groups are cached for the user bound.
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    null,
+                    null
+                    );
+            target.authenticate("test1", "password1");
+            assertEquals("No query user: cached", 1, target.getGroupCache().getSize());
+            assertNull("No query user: not shared", target.getGroupCache().peek(LdapSaslSecurityRealm.normalizeDn(dn)));
+        }
+        
+        {
+            // with the query user, groups are loaded as the query user and shared.
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "password3"
+                    );
+            target.authenticate("test1", "password1");
+            assertNotNull("Query user: shared", target.getGroupCache().peek(LdapSaslSecurityRealm.normalizeDn(dn)));
+            
+            LdapUser user = (LdapUser)target.loadUserByUsername("test1");
+            assertEquals("Query user: shared", 1, target.getGroupCache().getHitCount());
+            assertEquals("Query user: shared", 4, user.getAuthorities().length);
+            
+            target.getQueryContextPool().close();
+            target.getRebindContextPool().close();
+        }
+        
+        {
+            // groups are searched as the user if the query user fails.
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "badpassword"
+                    );
+            target.authenticate("test1", "password1");
+            assertNull("Bad query user: not shared", target.getGroupCache().peek(LdapSaslSecurityRealm.normalizeDn(dn)));
+            assertEquals("Bad query user: cached for the user", 1, target.getGroupCache().getSize());
+            assertFalse("Bad query user: not rejected", target.getBadCredentialCache().isRejected("test1", "password1"));
+            
+            target.getQueryContextPool().close();
+            target.getRebindContextPool().close();
+        }
+    }
+    
+    @Test
+    @For(LdapPagedSearch.class)
+    public void testPagedSearch() throws Exception
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                "test3",
+                "password3"
+                );
+        long mark = LdapResourceTracker.mark();
+        SearchControls controls = new SearchControls();
+        controls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        final List<String> found = new ArrayList<String>();
+        LdapContextPool.Lease lease = target.getQueryContextPool().borrow();
+        try
+        {
+            // multiple pages
+            assertEquals(
+                    "Paged search: all pages",
+                    6,
+                    new LdapPagedSearch(2, 0, 0).search(
+                            lease.getContext(),
+                            "ou=Group,dc=example,dc=com",
+                            "(|(objectClass={0})(objectClass={1}))",
+                            new Object[]{ "groupOfNames", "groupOfUniqueNames" },
+                            controls,
+                            new LdapPagedSearch.Handler()
+                            {
+                                public boolean handle(SearchResult entry) throws NamingException
+                                {
+                                    found.add(entry.getNameInNamespace());
+                                    return true;
+                                }
+                            }
+                    )
+            );
+            assertEquals("Paged search: all pages", 6, found.size());
+            
+            // stopped by the handler
+            found.clear();
+            assertEquals(
+                    "Paged search: stopped",
+                    3,
+                    new LdapPagedSearch(2, 0, 0).search(
+                            lease.getContext(),
+                            "ou=Group,dc=example,dc=com",
+                            "(objectClass=*)",
+                            null,
+                            controls,
+                            new LdapPagedSearch.Handler()
+                            {
+                                public boolean handle(SearchResult entry) throws NamingException
+                                {
+                                    found.add(entry.getNameInNamespace());
+                                    return found.size() < 3;
+                                }
+                            }
+                    )
+            );
+            // the result set is abandoned with the page size 0.
+            byte[] cookie = null;
+            for(Control control: lease.getContext().getResponseControls())
+            {
+                if(control instanceof PagedResultsResponseControl)
+                {
+                    cookie = ((PagedResultsResponseControl)control).getCookie();
+                }
+            }
+            assertTrue("Paged search: abandoned", cookie == null || cookie.length == 0);
+            
+            // size budget
+            try
+            {
+                new LdapPagedSearch(2, 3, 0).search(
+                        lease.getContext(),
+                        "ou=Group,dc=example,dc=com",
+                        "(cn=*)",
+                        null,
+                        controls,
+                        new LdapPagedSearch.Handler()
+                        {
+                            public boolean handle(SearchResult entry) throws NamingException
+                            {
+                                return true;
+                            }
+                        }
+                );
+                assertTrue("Paged search: size budget: Not reachable", false);
+            }
+            catch(SizeLimitExceededException e)
+            {
+                assertTrue("Paged search: size budget", true);
+            }
+            
+            assertNull("Paged search: controls are restored", lease.getContext().getRequestControls());
+        }
+        finally
+        {
+            lease.close();
+        }
+        target.getQueryContextPool().close();
+        assertOpenCountSince("Paged search: no resources left", 0, mark);
+    }
+    
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testSearchGroupResolver_SizeLimit()
+    {
+        int sizeLimit = LdapSaslSecurityRealm.SEARCH_SIZE_LIMIT;
+        try
+        {
+            LdapSaslSecurityRealm.SEARCH_SIZE_LIMIT = 2;
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    null,
+                    null
+                    );
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Size limit: DN", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Size limit: groups found are used", 2, user.getAuthorities().length);
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.SEARCH_SIZE_LIMIT = sizeLimit;
+        }
+    }
+    
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testSearchGroupResolver_Pipelined()
+    {
+        LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                Arrays.asList(
+                        String.format("ldap://127.0.0.1:%d/", ldapPort)
+                        ),
+                "DIGEST-MD5",
+                0,
+                3000,
+                "dc=example,dc=com",
+                "uid=${uid}",
+                "dc=example,dc=com",
+                null,
+                "test3",
+                "password3"
+                );
+        long mark = LdapResourceTracker.mark();
+        
+        // DN is known from the cached user.
+        target.loadUserByUsername("test1");
+        target.getGroupCache().invalidateAll();
+        {
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Pipelined: DN", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Pipelined: groups", 4, user.getAuthorities().length);
+            assertTrue("Pipelined: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group1")));
+        }
+        
+        // DN known is outdated.
+        target.getGroupCache().invalidateAll();
+        target.getUserCache().put(
+                "test1",
+                new LdapUser("test1", "cn=User2,ou=People,dc=example,dc=com", new GrantedAuthority[0])
+        );
+        {
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Pipelined: outdated DN", "cn=User1,ou=People,dc=example,dc=com", user.getDn());
+            assertEquals("Pipelined: outdated DN", 4, user.getAuthorities().length);
+            assertTrue("Pipelined: outdated DN", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group1")));
+        }
+        
+        target.getQueryContextPool().close();
+        target.getRebindContextPool().close();
+        assertOpenCountSince("Pipelined: no resources left", 0, mark);
+    }
+    
+    @Test
+    @For(LdapSaslSecurityRealm.class)
+    public void testSearchGroupResolver_MembershipAttribute()
+    {
+        String membershipAttribute = LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE;
+        try
+        {
+            // virtual attribute of OpenDJ.
+            LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE = "isMemberOf";
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    null,
+                    null
+                    );
+            
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Membership attribute: groups", 4, user.getAuthorities().length);
+            assertTrue("Membership attribute: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group1")));
+            assertFalse("Membership attribute: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group2")));
+            assertTrue("Membership attribute: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("UniqueGroup3")));
+            assertEquals("Membership attribute: groups are not searched", 0, target.getGroupCache().getSize());
+            assertEquals("Membership attribute: names are cached", 4, target.getGroupNameCache().getSize());
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.GROUP_MEMBERSHIP_ATTRIBUTE = membershipAttribute;
+        }
+    }
+    
+    @Test
+    @For({LdapGroupIndex.class, LdapGroupLoader.class})
+    public void testSearchGroupResolver_Index()
+    {
+        long pollInterval = LdapSaslSecurityRealm.GROUP_INDEX_POLL_INTERVAL;
+        int pageSize = LdapSaslSecurityRealm.GROUP_INDEX_PAGE_SIZE;
+        try
+        {
+            LdapSaslSecurityRealm.GROUP_INDEX_POLL_INTERVAL = 60000;
+            // load in multiple pages.
+            LdapSaslSecurityRealm.GROUP_INDEX_PAGE_SIZE = 2;
+            LdapSaslSecurityRealm target = new LdapSaslSecurityRealm(
+                    Arrays.asList(
+                            String.format("ldap://127.0.0.1:%d/", ldapPort)
+                            ),
+                    "DIGEST-MD5",
+                    0,
+                    3000,
+                    "dc=example,dc=com",
+                    "uid=${uid}",
+                    "dc=example,dc=com",
+                    null,
+                    "test3",
+                    "password3"
+                    );
+            LdapGroupIndex index = target.getGroupIndex();
+            assertNotNull("Group index: enabled", index);
+            assertTrue("Group index: loaded", index.updateNow());
+            assertTrue("Group index: loaded", index.isLoaded());
+            assertEquals("Group index: loaded all groups", 6, index.getGroupCount());
+            
+            LdapUser user = (LdapUser)target.authenticate("test1", "password1");
+            assertEquals("Group index: groups", 4, user.getAuthorities().length);
+            assertTrue("Group index: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group1")));
+            assertFalse("Group index: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("Group2")));
+            assertTrue("Group index: groups", Arrays.asList(user.getAuthorities()).contains(new GrantedAuthorityImpl("UniqueGroup3")));
+            assertEquals("Group index: groups are not searched", 0, target.getGroupCache().getSize());
+            
+            assertEquals(
+                    "Group index: DNs are normalized",
+                    4,
+                    index.getGroups("CN=User1, ou=People,dc=example,dc=com").size()
+            );
+            
+            // polls modified groups.
+            assertTrue("Group index: polled", index.updateNow());
+            assertEquals("Group index: polled", 6, index.getGroupCount());
+            assertNotNull("Group index: polled", index.getUpdatedAt());
+        }
+        finally
+        {
+            LdapSaslSecurityRealm.GROUP_INDEX_POLL_INTERVAL = pollInterval;
+            LdapSaslSecurityRealm.GROUP_INDEX_PAGE_SIZE = pageSize;
+        }
+    }
+    
     @Test
     @For(LdapSaslSecurityRealm.class)
     public void testSearchGroupResolver_Success()
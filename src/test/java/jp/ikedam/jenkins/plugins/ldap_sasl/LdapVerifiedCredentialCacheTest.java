@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ * 
+ * Copyright (c) 2012-2013 IKEDA Yasuyuki
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package jp.ikedam.jenkins.plugins.ldap_sasl;
+
+import org.acegisecurity.GrantedAuthority;
+import org.acegisecurity.userdetails.UserDetails;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for LdapVerifiedCredentialCache
+ */
+public class LdapVerifiedCredentialCacheTest
+{
+    private static UserDetails createUser(String username)
+    {
+        return new LdapUser(username, null, new GrantedAuthority[0]);
+    }
+    
+    @Test
+    public void testGet() throws Exception
+    {
+        LdapVerifiedCredentialCache target = new LdapVerifiedCredentialCache(60000, 60000, 10, 10);
+        UserDetails user = createUser("test1");
+        assertNull(target.get("test1", "password1"));
+        target.put("test1", "password1", user);
+        assertSame(user, target.get("test1", "password1"));
+        assertNull("other passwords are not accepted", target.get("test1", "badpassword"));
+        assertNull("other users are not accepted", target.get("test2", "password1"));
+        target.invalidate("test1");
+        assertNull(target.get("test1", "password1"));
+    }
+    
+    @Test
+    public void testExpire() throws Exception
+    {
+        LdapVerifiedCredentialCache target = new LdapVerifiedCredentialCache(10, 0, 10, 10);
+        target.put("test1", "password1", createUser("test1"));
+        Thread.sleep(50);
+        assertNull(target.get("test1", "password1"));
+    }
+    
+    @Test
+    public void testIdleExpire() throws Exception
+    {
+        LdapVerifiedCredentialCache target = new LdapVerifiedCredentialCache(60000, 200, 10, 10);
+        target.put("test1", "password1", createUser("test1"));
+        target.put("test2", "password2", createUser("test2"));
+        for(int i = 0; i < 5; ++i)
+        {
+            Thread.sleep(100);
+            assertNotNull("kept while used", target.get("test1", "password1"));
+        }
+        assertNull("expired as not used", target.get("test2", "password2"));
+    }
+    
+    @Test
+    public void testMaxSize() throws Exception
+    {
+        LdapVerifiedCredentialCache target = new LdapVerifiedCredentialCache(60000, 0, 2, 10);
+        target.put("test1", "password1", createUser("test1"));
+        target.put("test2", "password2", createUser("test2"));
+        target.get("test1", "password1");
+        target.put("test3", "password3", createUser("test3"));
+        assertEquals(2, target.size());
+        assertNotNull("recently used one is kept", target.get("test1", "password1"));
+        assertNull("least recently used one is removed", target.get("test2", "password2"));
+    }
+    
+    @Test
+    public void testDisabled() throws Exception
+    {
+        LdapVerifiedCredentialCache target = new LdapVerifiedCredentialCache(0, 0, 10, 10);
+        target.put("test1", "password1", createUser("test1"));
+        assertNull(target.get("test1", "password1"));
+    }
+}